@@ -22,10 +22,13 @@
 package org.pankratzlab.unet.deprecated.hla;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Reader;
 import java.io.Serializable;
 import java.nio.file.Files;
@@ -35,6 +38,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import org.pankratzlab.unet.deprecated.util.SerializeUtils;
+import org.pankratzlab.unet.parser.util.ReferenceDataPack;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSet.Builder;
@@ -60,7 +64,7 @@ public final class AntigenDictionary implements Serializable {
    * This is a paper-thin wrapper around the HLA and SeroType dictionaries, to unify them in a
    * single serializable object.
    */
-  private static AntigenDictionary map;
+  private static volatile AntigenDictionary map;
 
   // Dictionary instances
   private final SetMultimap<HLAType, SeroType> hlaDict;
@@ -156,12 +160,43 @@ public final class AntigenDictionary implements Serializable {
       if (!Strings.isNullOrEmpty(filePath) && (new File(filePath)).exists()) {
         parseDictionaries(() -> new FileReader(filePath));
       } else {
-        parseDictionaries(() -> new InputStreamReader(
-            AntigenDictionary.class.getClassLoader().getResourceAsStream(MASTER_MAP_RECORDS)));
+        // The bundled dictionaries are compiled into the reference data pack at build time
+        map = ReferenceDataPack.read(MASTER_MAP_RECORDS, AntigenDictionary::readPacked).orElse(null);
+        if (map == null) {
+          parseDictionaries(AntigenDictionary::bundledReader);
+        }
       }
     }
   }
 
+  private static Reader bundledReader() {
+    return new InputStreamReader(AntigenDictionary.class.getClassLoader().getResourceAsStream(MASTER_MAP_RECORDS));
+  }
+
+  /** Write the bundled dictionaries to the given pack, see {@link ReferenceDataPack#main(String[])} */
+  public static void compilePack(ReferenceDataPack.Writer pack) throws IOException {
+    AntigenDictionary dictionary;
+    try {
+      dictionary = readDictionaries(AntigenDictionary::bundledReader);
+    } catch (Exception e) {
+      throw new IOException("Failed to read " + MASTER_MAP_RECORDS, e);
+    }
+    // Stored in the same serialized form as the user's cached map
+    pack.write(MASTER_MAP_RECORDS, out -> {
+      ObjectOutputStream objects = new ObjectOutputStream(out);
+      objects.writeObject(dictionary);
+      objects.flush();
+    });
+  }
+
+  private static AntigenDictionary readPacked(DataInputStream in) throws IOException {
+    try {
+      return (AntigenDictionary) new ObjectInputStream(in).readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+
   /**
    * If a cached map can be loaded, do so. If not, we parse the source file
    * 
@@ -170,6 +205,18 @@ public final class AntigenDictionary implements Serializable {
     if (readCachedMap()) {
       return;
     }
+    try {
+      // Build the singleton map and write it to disk
+      AntigenDictionary typeMap = readDictionaries(readerSupplier);
+      SerializeUtils.write(typeMap, SERIALIZED_MAP);
+      map = typeMap;
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** Parse the dictionaries from the given source file */
+  private static AntigenDictionary readDictionaries(Callable<Reader> readerSupplier) throws Exception {
     ImmutableSetMultimap.Builder<HLAType, SeroType> hlaBuilder = ImmutableSetMultimap.builder();
     ImmutableSetMultimap.Builder<SeroType, HLAType> seroBuilder = ImmutableSetMultimap.builder();
 
@@ -259,25 +306,18 @@ public final class AntigenDictionary implements Serializable {
         }
         // }
       }
+    }
 
-      // Build the singleton map and write it to disk
-      AntigenDictionary typeMap =
-          new AntigenDictionary(hlaBuilder.build(), seroBuilder.build(), validHLATypes.build());
-      SerializeUtils.write(typeMap, SERIALIZED_MAP);
-      map = typeMap;
-
-      // List<HLAType> multi = map.hlaDict.keySet().stream()
-      // .filter(ht -> map.hlaDict.get(ht).size() > 1).collect(Collectors.toList());
-      // System.out.println("Found " + multi.size() + " HLAType(s) with multiple SeroType
-      // mappings:");
-      // for (HLAType t : multi) {
-      // System.out.println("\t" + t.toString() + " --> "
-      // + map.hlaDict.get(t).stream().map(s -> s.toString()).collect(Collectors.joining(", ")));
-      // }
+    // List<HLAType> multi = map.hlaDict.keySet().stream()
+    // .filter(ht -> map.hlaDict.get(ht).size() > 1).collect(Collectors.toList());
+    // System.out.println("Found " + multi.size() + " HLAType(s) with multiple SeroType
+    // mappings:");
+    // for (HLAType t : multi) {
+    // System.out.println("\t" + t.toString() + " --> "
+    // + map.hlaDict.get(t).stream().map(s -> s.toString()).collect(Collectors.joining(", ")));
+    // }
 
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+    return new AntigenDictionary(hlaBuilder.build(), seroBuilder.build(), validHLATypes.build());
   }
 
   /**
@@ -57,6 +57,45 @@ public final class DonorCheckProperties {
   public static final String AC_INVALID_DISCARD = "Discard";
   public static final String FAIL_OR_DISCARD_IF_AC_INVALID_DEFAULT = AC_INVALID_DISCARD;
 
+  /** Threads used to search for haplotype pairs. Values less than 1 use all processors. */
+  public static final String HAPLOTYPE_SEARCH_THREADS = "HAPLOTYPE_SEARCH_THREADS";
+  public static final String HAPLOTYPE_SEARCH_THREADS_DEFAULT = "0";
+
+  /** Seconds to search for haplotypes before using the best found. Negative values never stop. */
+  public static final String HAPLOTYPE_SEARCH_TIME_LIMIT = "HAPLOTYPE_SEARCH_TIME_LIMIT";
+  public static final String HAPLOTYPE_SEARCH_TIME_LIMIT_DEFAULT = "10";
+
+  /** Number of most likely haplotype pairs to rank for each ethnicity */
+  public static final String HAPLOTYPE_PAIR_COUNT = "HAPLOTYPE_PAIR_COUNT";
+  public static final String HAPLOTYPE_PAIR_COUNT_DEFAULT = "3";
+
+  /**
+   * Estimated number of allele pairings above which haplotypes are found with an approximate beam
+   * search. Negative to always search exactly.
+   */
+  public static final String HAPLOTYPE_EXACT_SEARCH_LIMIT = "HAPLOTYPE_EXACT_SEARCH_LIMIT";
+  public static final String HAPLOTYPE_EXACT_SEARCH_LIMIT_DEFAULT = "100000000";
+
+  /** Number of partial haplotype pairs kept at each locus by the approximate beam search */
+  public static final String HAPLOTYPE_BEAM_WIDTH = "HAPLOTYPE_BEAM_WIDTH";
+  public static final String HAPLOTYPE_BEAM_WIDTH_DEFAULT = "500";
+
+  /** Maximum number of haplotype search results to keep on disk. Less than 1 disables the cache. */
+  public static final String HAPLOTYPE_CACHE_ENTRIES = "HAPLOTYPE_CACHE_ENTRIES";
+  public static final String HAPLOTYPE_CACHE_ENTRIES_DEFAULT = "5000";
+
+  /** Maximum size, in megabytes, of the haplotype search results kept on disk */
+  public static final String HAPLOTYPE_CACHE_MAX_MB = "HAPLOTYPE_CACHE_MAX_MB";
+  public static final String HAPLOTYPE_CACHE_MAX_MB_DEFAULT = "64";
+
+  /** Directory of the haplotype search results kept on disk */
+  public static final String HAPLOTYPE_CACHE_DIRECTORY = "HAPLOTYPE_CACHE_DIRECTORY";
+  public static final String HAPLOTYPE_CACHE_DIRECTORY_DEFAULT = Info.DONOR_CHECK_HOME + ".haplotypes" + File.separator;
+
+  /** Directory of the compiled snapshots of haplotype frequency tables */
+  public static final String FREQUENCY_SNAPSHOT_DIRECTORY = "FREQUENCY_SNAPSHOT_DIRECTORY";
+  public static final String FREQUENCY_SNAPSHOT_DIRECTORY_DEFAULT = Info.DONOR_CHECK_HOME + ".frequencies" + File.separator;
+
   private static Properties hlaProps;
 
   public static Properties get() {
@@ -81,6 +120,24 @@ public final class DonorCheckProperties {
       case FAIL_OR_DISCARD_IF_AC_INVALID:
         return hlaProps.getProperty(
             FAIL_OR_DISCARD_IF_AC_INVALID, FAIL_OR_DISCARD_IF_AC_INVALID_DEFAULT);
+      case HAPLOTYPE_SEARCH_THREADS:
+        return hlaProps.getProperty(HAPLOTYPE_SEARCH_THREADS, HAPLOTYPE_SEARCH_THREADS_DEFAULT);
+      case HAPLOTYPE_SEARCH_TIME_LIMIT:
+        return hlaProps.getProperty(HAPLOTYPE_SEARCH_TIME_LIMIT, HAPLOTYPE_SEARCH_TIME_LIMIT_DEFAULT);
+      case HAPLOTYPE_PAIR_COUNT:
+        return hlaProps.getProperty(HAPLOTYPE_PAIR_COUNT, HAPLOTYPE_PAIR_COUNT_DEFAULT);
+      case HAPLOTYPE_EXACT_SEARCH_LIMIT:
+        return hlaProps.getProperty(HAPLOTYPE_EXACT_SEARCH_LIMIT, HAPLOTYPE_EXACT_SEARCH_LIMIT_DEFAULT);
+      case HAPLOTYPE_BEAM_WIDTH:
+        return hlaProps.getProperty(HAPLOTYPE_BEAM_WIDTH, HAPLOTYPE_BEAM_WIDTH_DEFAULT);
+      case HAPLOTYPE_CACHE_ENTRIES:
+        return hlaProps.getProperty(HAPLOTYPE_CACHE_ENTRIES, HAPLOTYPE_CACHE_ENTRIES_DEFAULT);
+      case HAPLOTYPE_CACHE_MAX_MB:
+        return hlaProps.getProperty(HAPLOTYPE_CACHE_MAX_MB, HAPLOTYPE_CACHE_MAX_MB_DEFAULT);
+      case HAPLOTYPE_CACHE_DIRECTORY:
+        return hlaProps.getProperty(HAPLOTYPE_CACHE_DIRECTORY, HAPLOTYPE_CACHE_DIRECTORY_DEFAULT);
+      case FREQUENCY_SNAPSHOT_DIRECTORY:
+        return hlaProps.getProperty(FREQUENCY_SNAPSHOT_DIRECTORY, FREQUENCY_SNAPSHOT_DIRECTORY_DEFAULT);
       default:
         return null;
     }
@@ -22,6 +22,9 @@
 package org.pankratzlab.unet.hapstats;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -32,6 +35,7 @@ import java.util.Set;
 import org.pankratzlab.unet.deprecated.hla.HLALocus;
 import org.pankratzlab.unet.deprecated.hla.HLAType;
 import org.pankratzlab.unet.deprecated.hla.NullType;
+import org.pankratzlab.unet.parser.util.ReferenceDataPack;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
@@ -44,6 +48,7 @@ public final class AlleleGroups {
 
   private static final String EQUIV_DELIM = "/";
   private static final String COMMENT_FLAG = "#";
+  private static final String VERSION_FLAG = "# version:";
   private static final String ENTRY_DELIM = ";";
 
   private AlleleGroups() {}
@@ -52,10 +57,67 @@ public final class AlleleGroups {
   private static final String G_GROUP_PATH = "/hla_nom_g.txt";
   private static final ImmutableMap<HLAType, HLAType> P_GROUP;
   private static final ImmutableMap<HLAType, HLAType> G_GROUP;
+  private static final String G_GROUP_VERSION;
 
   static {
-    P_GROUP = buildGroup(P_GROUP_PATH);
-    G_GROUP = buildGroup(G_GROUP_PATH);
+    P_GROUP = readGroup(P_GROUP_PATH);
+    G_GROUP = readGroup(G_GROUP_PATH);
+    G_GROUP_VERSION = readVersion(G_GROUP_PATH);
+  }
+
+  /** @return The version in the header of the given group file, or an empty string if not found */
+  private static String readVersion(String pathToGroupFile) {
+    try (BufferedReader groupFileReader = new BufferedReader(
+        new InputStreamReader(AlleleGroups.class.getResourceAsStream(pathToGroupFile)))) {
+      String line;
+      while ((line = groupFileReader.readLine()) != null && line.startsWith(COMMENT_FLAG)) {
+        if (line.startsWith(VERSION_FLAG)) {
+          return line.substring(VERSION_FLAG.length()).trim();
+        }
+      }
+    } catch (Exception e) {
+      System.err.println("Failed to read allele group file version: " + pathToGroupFile);
+      e.printStackTrace();
+    }
+    return "";
+  }
+
+  /** @return The IPD-IMGT/HLA release of the G group file in use */
+  public static String getGGroupVersion() {
+    return G_GROUP_VERSION;
+  }
+
+  /** @return Every allele that is a member of a G group */
+  static Set<HLAType> getGGroupMembers() {
+    return G_GROUP.keySet();
+  }
+
+  /** Write the groups to the given pack, see {@link ReferenceDataPack#main(String[])} */
+  public static void compilePack(ReferenceDataPack.Writer pack) throws IOException {
+    pack.write(P_GROUP_PATH, out -> writeGroup(out, P_GROUP));
+    pack.write(G_GROUP_PATH, out -> writeGroup(out, G_GROUP));
+  }
+
+  private static void writeGroup(DataOutputStream out, ImmutableMap<HLAType, HLAType> group) throws IOException {
+    out.writeInt(group.size());
+    for (Map.Entry<HLAType, HLAType> entry : group.entrySet()) {
+      ReferenceDataPack.writeType(out, entry.getKey());
+      ReferenceDataPack.writeType(out, entry.getValue());
+    }
+  }
+
+  private static ImmutableMap<HLAType, HLAType> readPackedGroup(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    Builder<HLAType, HLAType> builder = ImmutableMap.builderWithExpectedSize(size);
+    for (int i = 0; i < size; i++) {
+      builder.put(ReferenceDataPack.readType(in), ReferenceDataPack.readType(in));
+    }
+    return builder.build();
+  }
+
+  /** @return The given group, from the reference data pack if it was compiled, else from its file */
+  private static ImmutableMap<HLAType, HLAType> readGroup(String pathToGroupFile) {
+    return ReferenceDataPack.read(pathToGroupFile, AlleleGroups::readPackedGroup).orElseGet(() -> buildGroup(pathToGroupFile));
   }
 
   private static ImmutableMap<HLAType, HLAType> buildGroup(String pathToGroupFile) {
@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.hapstats;
+
+import java.util.Locale;
+import org.pankratzlab.unet.parser.util.ReferenceDataPack;
+import org.pankratzlab.unet.parser.util.ReferenceDataWarmup;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Plain-text summary of the reference data and its caches, for display or export when tuning
+ * lookups
+ */
+public final class CacheDiagnostics {
+
+  private CacheDiagnostics() {}
+
+  /**
+   * @return One line per statistic for the startup warm-up, each loaded CWD database and the haplotype
+   *         frequency tables
+   */
+  public static String report() {
+    StringBuilder sb = new StringBuilder();
+
+    line(sb, "startup.pack", ReferenceDataPack.describe());
+    for (ReferenceDataWarmup.Dataset dataset : ReferenceDataWarmup.Dataset.values()) {
+      line(sb, "startup." + dataset.name(), ReferenceDataWarmup.describe(dataset));
+    }
+
+    for (CommonWellDocumented.Catalog catalog : CommonWellDocumented.loadedCatalogs()) {
+      String prefix = "cwd." + catalog.getSource().name();
+      line(sb, prefix + ".indexed", catalog.getIndexSize());
+      line(sb, prefix + ".cached", catalog.getStatusCacheSize() + " / " + CommonWellDocumented.STATUS_CACHE_SIZE);
+      stats(sb, prefix, catalog.getStatusCacheStats());
+    }
+
+    HaplotypeFrequencies.Snapshot tables = HaplotypeFrequencies.current();
+    line(sb, "haplotypes.loaded", tables.isLoaded());
+    line(sb, "haplotypes.generation", tables.getGeneration());
+    stats(sb, "haplotypes", tables.getFrequencyCacheStats());
+
+    return sb.toString();
+  }
+
+  private static void stats(StringBuilder sb, String prefix, CacheStats stats) {
+    line(sb, prefix + ".requests", stats.requestCount());
+    line(sb, prefix + ".hitRate", String.format(Locale.ROOT, "%.4f", stats.hitRate()));
+    line(sb, prefix + ".hits", stats.hitCount());
+    line(sb, prefix + ".misses", stats.missCount());
+    line(sb, prefix + ".loads", stats.loadCount());
+    line(sb, prefix + ".averageLoadMicros", String.format(Locale.ROOT, "%.1f", stats.averageLoadPenalty() / 1_000));
+    line(sb, prefix + ".totalLoadMillis", stats.totalLoadTime() / 1_000_000);
+    line(sb, prefix + ".evictions", stats.evictionCount());
+  }
+
+  private static void line(StringBuilder sb, String key, Object value) {
+    sb.append(key).append('=').append(value).append('\n');
+  }
+}
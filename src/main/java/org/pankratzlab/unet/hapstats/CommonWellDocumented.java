@@ -22,13 +22,21 @@
 package org.pankratzlab.unet.hapstats;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.jsoup.Jsoup;
@@ -39,10 +47,13 @@ import org.pankratzlab.unet.deprecated.hla.DonorCheckProperties;
 import org.pankratzlab.unet.deprecated.hla.HLAType;
 import org.pankratzlab.unet.deprecated.hla.NullType;
 import org.pankratzlab.unet.parser.XmlDonorParser;
+import org.pankratzlab.unet.parser.util.ReferenceDataPack;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import javafx.scene.control.ChoiceDialog;
@@ -66,10 +77,15 @@ public final class CommonWellDocumented {
   private static final String COMMON_FLAG = "C";
   private static final String ALLELE_FREQ_PATH = "/ciwd300.txt";
   private static final String ALLELE_FREQ_PATH_200 = "/cwd200.html";
-  private static volatile ImmutableMap<HLAType, Status> ALLELE_FREQS;
+  // Each database is read at most once, and kept for the life of the application
+  private static final Map<SOURCE, Catalog> CATALOGS = new ConcurrentHashMap<>();
+  // The database selected for the application
+  private static volatile Catalog ACTIVE;
+  // A database in use by one thread only, see Catalog#use()
+  private static final ThreadLocal<Catalog> SCOPED = new ThreadLocal<>();
 
-  private static LoadingCache<HLAType, Status> doGetStatusCache =
-      CacheBuilder.newBuilder().build(CacheLoader.from(CommonWellDocumented::doGetStatus));
+  /** Maximum number of alleles outside a database's index whose statuses are remembered */
+  public static final long STATUS_CACHE_SIZE = 10_000;
 
   public static enum Status {
     COMMON(1.0), INTERMEDIATE(0.5), WELL_DOCUMENTED(0.25), UNKNOWN(0.0);
@@ -86,26 +102,38 @@ public final class CommonWellDocumented {
   }
 
   public static enum SOURCE {
-    CWD_200("CWD", "2.0.0") {
+    CWD_200("CWD", "2.0.0", ALLELE_FREQ_PATH_200) {
       @Override
       public void load() {
         loadCWD200();
       }
+
+      @Override
+      ImmutableMap<HLAType, Status> read() {
+        return readCWD200();
+      }
     },
-    CIWD_300("CIWD", "3.0.0") {
+    CIWD_300("CIWD", "3.0.0", ALLELE_FREQ_PATH) {
       @Override
       public void load() {
         loadCIWD300();
       }
+
+      @Override
+      ImmutableMap<HLAType, Status> read() {
+        return readCIWD300();
+      }
     };
 
-    SOURCE(String d, String v) {
+    SOURCE(String d, String v, String path) {
       displayName = d + " " + v;
       versionString = v;
+      resourcePath = path;
     }
 
     private final String displayName;
     private final String versionString;
+    private final String resourcePath;
 
     @Override
     public String toString() {
@@ -116,8 +144,20 @@ public final class CommonWellDocumented {
       return versionString;
     }
 
+    /** Make this the database used by the application */
     public abstract void load();
 
+    /** @return The status of each allele listed in this database */
+    abstract ImmutableMap<HLAType, Status> read();
+
+    /**
+     * @return The statuses of this database. Read on first use, and shared by every later caller, so
+     *         databases of different versions can be used side by side.
+     */
+    public Catalog catalog() {
+      return CATALOGS.computeIfAbsent(this,
+          source -> ReferenceDataPack.read(resourcePath, in -> Catalog.readPacked(source, in)).orElseGet(() -> new Catalog(source, source.read())));
+    }
 
   }
 
@@ -147,8 +187,6 @@ public final class CommonWellDocumented {
   }
 
   public static void init() {
-    doGetStatusCache.invalidateAll();
-
     SOURCE def = loadPropertyCWDSource();
 
     ChoiceDialog<SOURCE> cd = new ChoiceDialog<>(def, SOURCE.values());
@@ -168,7 +206,23 @@ public final class CommonWellDocumented {
   }
 
   public static boolean isLoaded() {
-    return ALLELE_FREQS != null && !ALLELE_FREQS.isEmpty();
+    Catalog catalog = loadedCatalog();
+    return catalog != null && !catalog.alleleFreqs.isEmpty();
+  }
+
+  /** @return The CWD/CIWD database currently loaded, or null if none has been loaded */
+  public static SOURCE getLoadedSource() {
+    Catalog catalog = loadedCatalog();
+    return catalog == null ? null : catalog.source;
+  }
+
+  /**
+   * @return The catalog in use by this thread, as {@link #current()}, or null if none has been
+   *         loaded
+   */
+  public static Catalog loadedCatalog() {
+    Catalog catalog = SCOPED.get();
+    return catalog == null ? ACTIVE : catalog;
   }
 
   public static SOURCE loadPropertyCWDSource() {
@@ -199,6 +253,14 @@ public final class CommonWellDocumented {
   }
 
   public static void loadCWD200() {
+    ACTIVE = SOURCE.CWD_200.catalog();
+  }
+
+  public static void loadCIWD300() {
+    ACTIVE = SOURCE.CIWD_300.catalog();
+  }
+
+  private static ImmutableMap<HLAType, Status> readCWD200() {
     // -- Read allele frequency map --
     try (InputStream htmlStream = XmlDonorParser.class.getResourceAsStream(ALLELE_FREQ_PATH_200)) {
       Document parsed = Jsoup.parse(htmlStream, "UTF-8", "http://example.com");
@@ -231,7 +293,7 @@ public final class CommonWellDocumented {
       cwdMap.entries().forEach(e -> {
         freqMapBuilder.put(e);
       });
-      ALLELE_FREQS = freqMapBuilder.build();
+      return freqMapBuilder.build();
     } catch (Exception e) {
       System.err.println("Invalid Frequency file: " + ALLELE_FREQ_PATH);
       e.printStackTrace();
@@ -239,7 +301,7 @@ public final class CommonWellDocumented {
     }
   }
 
-  public static void loadCIWD300() {
+  private static ImmutableMap<HLAType, Status> readCIWD300() {
     try (BufferedReader reader = new BufferedReader(new InputStreamReader(XmlDonorParser.class.getResourceAsStream(ALLELE_FREQ_PATH)))) {
       ImmutableMap.Builder<HLAType, Status> freqMapBuilder = ImmutableMap.builder();
       Map<HLAType, Status> cwdMap = new HashMap<>();
@@ -262,7 +324,7 @@ public final class CommonWellDocumented {
       cwdMap.entrySet().forEach(e -> {
         freqMapBuilder.put(e);
       });
-      ALLELE_FREQS = freqMapBuilder.build();
+      return freqMapBuilder.build();
 
     } catch (Exception e) {
       System.err.println("Invalid Frequency file: " + ALLELE_FREQ_PATH);
@@ -289,7 +351,7 @@ public final class CommonWellDocumented {
    * @return Common/Well-documented status of the allele
    */
   public static Status getStatus(HLAType type) {
-    return doGetStatusCache.getUnchecked(type);
+    return current().getStatus(type);
   }
 
   /**
@@ -298,26 +360,31 @@ public final class CommonWellDocumented {
    *         G-group equivalents.
    */
   public static Status getEquivStatus(HLAType type) {
-    Status status = doGetStatusCache.getUnchecked(type);
-    // if status is unknown attempt getting the status from a common group
-    // only checking g group because overlap cough cause failures
-    if (Status.UNKNOWN.equals(status)) {
-      HLAType equivType = AlleleGroups.getGGroup(type);
-      status = doGetStatusCache.getUnchecked(equivType);
-    }
-
-    return status;
+    return current().getEquivStatus(type);
   }
 
+  /**
+   * @param type HLA allele
+   * @return The allele as listed in the CWD table, which may differ from the input by trailing :01
+   *         fields. Null if not listed.
+   */
   public static HLAType getCWDType(HLAType type) {
-    if (ALLELE_FREQS.containsKey(type)) {
+    return current().getCWDType(type);
+  }
+
+  /**
+   * @return The allele of the given table with the same specificity as the input, or null if there is
+   *         none
+   */
+  private static HLAType findCWDType(Map<HLAType, Status> alleleFreqs, HLAType type) {
+    if (alleleFreqs.containsKey(type)) {
       return type;
     }
     // adding or removing trailing :01's does not change the allele specificity
     // Try adding :01's to the specificity
     HLAType specModified = type;
     while (Objects.nonNull((specModified = HLAType.growSpec(specModified)))) {
-      if (ALLELE_FREQS.containsKey(specModified)) {
+      if (alleleFreqs.containsKey(specModified)) {
         return specModified;
       }
     }
@@ -325,20 +392,24 @@ public final class CommonWellDocumented {
     // Try removing fourth field, or tailing :01's, to the specificity
     specModified = type;
     while (Objects.nonNull((specModified = HLAType.reduceSpec(specModified)))) {
-      if (ALLELE_FREQS.containsKey(specModified)) {
+      if (alleleFreqs.containsKey(specModified)) {
         return specModified;
       }
     }
     return null;
-
   }
 
   private static final AtomicBoolean isInitializing = new AtomicBoolean(false);
   private static final CountDownLatch initializationLatch = new CountDownLatch(1);
 
-  private static Status doGetStatus(HLAType type) {
-    if (ALLELE_FREQS != null) {
-      return doGetStatusActual(type);
+  /**
+   * @return The catalog in use by this thread: the one it is using, if any, otherwise the one loaded
+   *         for the application. Loads the configured database if none has been loaded.
+   */
+  public static Catalog current() {
+    Catalog catalog = loadedCatalog();
+    if (catalog != null) {
+      return catalog;
     }
     if (isInitializing.compareAndSet(false, true)) {
       try {
@@ -357,30 +428,231 @@ public final class CommonWellDocumented {
       }
     }
 
-    return doGetStatusActual(type);
+    return loadedCatalog();
   }
 
-  private static Status doGetStatusActual(HLAType type) {
-    if (ALLELE_FREQS.containsKey(type)) {
-      return ALLELE_FREQS.get(type);
+  /** Write every database to the given pack, see {@link ReferenceDataPack#main(String[])} */
+  public static void compilePack(ReferenceDataPack.Writer pack) throws IOException {
+    for (SOURCE source : SOURCE.values()) {
+      pack.write(source.resourcePath, source.catalog()::writePacked);
     }
-    // adding or removing trailing :01's does not change the allele specificity
-    // Try adding :01's to the specificity
-    HLAType specModified = type;
-    while (Objects.nonNull((specModified = HLAType.growSpec(specModified)))) {
-      if (ALLELE_FREQS.containsKey(specModified)) {
-        return ALLELE_FREQS.get(specModified);
+  }
+
+  /** @return Every database that has been read so far, in {@link SOURCE} order */
+  static List<Catalog> loadedCatalogs() {
+    return ImmutableList.sortedCopyOf(Comparator.comparing(Catalog::getSource), CATALOGS.values());
+  }
+
+  /**
+   * Resolve the statuses of the given alleles ahead of time, so lookups during a search don't pay for
+   * them. Has no effect until a database is loaded.
+   *
+   * @see Catalog#warmUp(Collection)
+   */
+  public static void warmUp(Collection<HLAType> types) {
+    Catalog catalog = loadedCatalog();
+    if (catalog != null) {
+      catalog.warmUp(types);
+    }
+  }
+
+  /** The CWD status and type of an allele, and the status of its G group if it is unknown */
+  private static final class Resolution {
+    private final Status status;
+    private final Status equivStatus;
+    private final HLAType cwdType;
+
+    private Resolution(Status status, Status equivStatus, HLAType cwdType) {
+      this.status = status;
+      this.equivStatus = equivStatus;
+      this.cwdType = cwdType;
+    }
+
+    private Resolution(Map<HLAType, Status> alleleFreqs, HLAType type) {
+      cwdType = findCWDType(alleleFreqs, type);
+      status = Objects.isNull(cwdType) ? Status.UNKNOWN : alleleFreqs.get(cwdType);
+      // if status is unknown attempt getting the status from a common group
+      // only checking g group because overlap cough cause failures
+      if (Status.UNKNOWN.equals(status)) {
+        HLAType equivType = findCWDType(alleleFreqs, AlleleGroups.getGGroup(type));
+        equivStatus = Objects.isNull(equivType) ? Status.UNKNOWN : alleleFreqs.get(equivType);
+      } else {
+        equivStatus = status;
       }
     }
+  }
 
-    // Try removing fourth field, or tailing :01's, to the specificity
-    specModified = type;
-    while (Objects.nonNull((specModified = HLAType.reduceSpec(specModified)))) {
-      if (ALLELE_FREQS.containsKey(specModified)) {
-        return ALLELE_FREQS.get(specModified);
+  /** Ends a thread's use of a catalog, see {@link Catalog#use()} */
+  @FunctionalInterface
+  public interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /**
+   * The statuses of one CWD/CIWD database. Immutable, so any number of catalogs can be used at once,
+   * by any number of threads.
+   *
+   * <p>
+   * Every allele that can be found in the database is resolved when the catalog is created, or at
+   * build time when read from the {@link ReferenceDataPack}: the listed alleles, the alleles that
+   * differ from them only by trailing :01 fields, and the members of each G group. Lookups of these are a single hash probe. Any other allele is resolved on first use
+   * and kept in a cache bounded by {@link CommonWellDocumented#STATUS_CACHE_SIZE}.
+   */
+  public static final class Catalog {
+    private final SOURCE source;
+    private final ImmutableMap<HLAType, Status> alleleFreqs;
+    private final ImmutableMap<HLAType, Resolution> index;
+    private final LoadingCache<HLAType, Resolution> misses;
+
+    private Catalog(SOURCE source, ImmutableMap<HLAType, Status> alleleFreqs) {
+      this.source = source;
+      this.alleleFreqs = alleleFreqs;
+      Set<HLAType> alleles = new HashSet<>();
+      for (HLAType allele : alleleFreqs.keySet()) {
+        alleles.add(allele);
+        // Shorter alleles that find this one by adding :01's
+        HLAType specModified = allele;
+        while (specModified.spec().get(specModified.spec().size() - 1) == 1 && Objects.nonNull((specModified = HLAType.reduceSpec(specModified)))) {
+          alleles.add(specModified);
+        }
+        // Longer alleles that find this one by removing :01's
+        specModified = allele;
+        while (Objects.nonNull((specModified = HLAType.growSpec(specModified)))) {
+          alleles.add(specModified);
+        }
       }
+      alleles.addAll(AlleleGroups.getGGroupMembers());
+
+      ImmutableMap.Builder<HLAType, Resolution> indexBuilder = ImmutableMap.builderWithExpectedSize(alleles.size());
+      alleles.forEach(allele -> indexBuilder.put(allele, new Resolution(alleleFreqs, allele)));
+      index = indexBuilder.build();
+      misses = newStatusCache(alleleFreqs);
+    }
+
+    private Catalog(SOURCE source, ImmutableMap<HLAType, Status> alleleFreqs, ImmutableMap<HLAType, Resolution> index) {
+      this.source = source;
+      this.alleleFreqs = alleleFreqs;
+      this.index = index;
+      misses = newStatusCache(alleleFreqs);
+    }
+
+    private static LoadingCache<HLAType, Resolution> newStatusCache(ImmutableMap<HLAType, Status> alleleFreqs) {
+      return CacheBuilder.newBuilder().maximumSize(STATUS_CACHE_SIZE).recordStats()
+          .build(CacheLoader.from(type -> new Resolution(alleleFreqs, type)));
+    }
+
+    /** Write the statuses and index of this catalog, as read by {@link #readPacked} */
+    private void writePacked(DataOutputStream out) throws IOException {
+      out.writeInt(alleleFreqs.size());
+      for (Map.Entry<HLAType, Status> entry : alleleFreqs.entrySet()) {
+        ReferenceDataPack.writeType(out, entry.getKey());
+        out.writeByte(entry.getValue().ordinal());
+      }
+      out.writeInt(index.size());
+      for (Map.Entry<HLAType, Resolution> entry : index.entrySet()) {
+        ReferenceDataPack.writeType(out, entry.getKey());
+        out.writeByte(entry.getValue().status.ordinal());
+        out.writeByte(entry.getValue().equivStatus.ordinal());
+        ReferenceDataPack.writeType(out, entry.getValue().cwdType);
+      }
+    }
+
+    private static Catalog readPacked(SOURCE source, DataInputStream in) throws IOException {
+      Status[] statuses = Status.values();
+      int size = in.readInt();
+      ImmutableMap.Builder<HLAType, Status> alleleFreqs = ImmutableMap.builderWithExpectedSize(size);
+      for (int i = 0; i < size; i++) {
+        alleleFreqs.put(ReferenceDataPack.readType(in), statuses[in.readByte()]);
+      }
+      size = in.readInt();
+      ImmutableMap.Builder<HLAType, Resolution> index = ImmutableMap.builderWithExpectedSize(size);
+      for (int i = 0; i < size; i++) {
+        HLAType allele = ReferenceDataPack.readType(in);
+        Status status = statuses[in.readByte()];
+        Status equivStatus = statuses[in.readByte()];
+        index.put(allele, new Resolution(status, equivStatus, ReferenceDataPack.readType(in)));
+      }
+      return new Catalog(source, alleleFreqs.build(), index.build());
+    }
+
+    /** @return The database of this catalog */
+    public SOURCE getSource() {
+      return source;
+    }
+
+    /** @return Number of alleles resolved when this catalog was created */
+    public int getIndexSize() {
+      return index.size();
+    }
+
+    /** @return Number of other alleles currently cached */
+    public long getStatusCacheSize() {
+      return misses.size();
+    }
+
+    /**
+     * @return Hit, load and eviction counts for lookups of alleles outside the index. Lookups of
+     *         indexed alleles always hit and are not counted.
+     */
+    public CacheStats getStatusCacheStats() {
+      return misses.stats();
+    }
+
+    /**
+     * Resolve the statuses of the given alleles, such as a donor's candidate types before a haplotype
+     * search, so the first lookups during the search are hits.
+     */
+    public void warmUp(Collection<HLAType> types) {
+      types.forEach(this::resolve);
+    }
+
+    /** @see CommonWellDocumented#getStatus(HLAType) */
+    public Status getStatus(HLAType type) {
+      return resolve(type).status;
+    }
+
+    /** @see CommonWellDocumented#getEquivStatus(HLAType) */
+    public Status getEquivStatus(HLAType type) {
+      return resolve(type).equivStatus;
+    }
+
+    /** @see CommonWellDocumented#getCWDType(HLAType) */
+    public HLAType getCWDType(HLAType type) {
+      return resolve(type).cwdType;
+    }
+
+    /** @see CommonWellDocumented#cwdScore(List) */
+    public double cwdScore(List<HLAType> alleles) {
+      double score = 0;
+
+      for (HLAType type : alleles) {
+        Status status = getStatus(type);
+        score += status.getWeight();
+      }
+      return score;
+    }
+
+    /**
+     * Use this catalog for the static lookups of {@link CommonWellDocumented} on the calling thread,
+     * without changing the database used by any other thread, until the returned scope is closed
+     */
+    public Scope use() {
+      Catalog previous = SCOPED.get();
+      SCOPED.set(this);
+      return () -> {
+        if (previous == null) {
+          SCOPED.remove();
+        } else {
+          SCOPED.set(previous);
+        }
+      };
+    }
+
+    private Resolution resolve(HLAType type) {
+      Resolution resolution = index.get(type);
+      return resolution == null ? misses.getUnchecked(type) : resolution;
     }
-    return Status.UNKNOWN;
   }
 
   /**
@@ -388,12 +660,6 @@ public final class CommonWellDocumented {
    * @return A combined weighting of the input allele set, based on their CWD frequencies
    */
   public static double cwdScore(List<HLAType> alleles) {
-    double score = 0;
-
-    for (HLAType type : alleles) {
-      Status status = getStatus(type);
-      score += status.getWeight();
-    }
-    return score;
+    return current().cwdScore(alleles);
   }
 }
@@ -0,0 +1,603 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.hapstats;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import org.pankratzlab.unet.deprecated.hla.HLALocus;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Compact, indexed store of haplotype frequencies over a fixed list of loci, such as one NMDP
+ * frequency table. Rows are held as allele ids in a single sorted buffer, with the frequencies of
+ * every row in a second buffer, so tables with millions of rows need no objects per row. The
+ * buffers may be backed by arrays or by a memory-mapped {@link FrequencyTableSnapshot}.
+ *
+ * <p>
+ * Rows are looked up by a packed key: each allele is given a dense code within its column, and the
+ * codes of a row are packed into a single {@code long}, which indexes an open-addressing hash table
+ * of rows. Tables whose codes do not fit in 63 bits are searched by binary search instead.
+ *
+ * <p>
+ * The frequency of a haplotype over a subset of the loci is the marginal: the sum over every row
+ * containing its alleles. Marginal tables are built the first time they are needed and kept.
+ */
+public final class FrequencyTable {
+
+  /** Locus key shared by the DRB3, DRB4 and DRB5 alleles, which are tabulated in one column */
+  public static final String DRB345 = "DRB345";
+
+  private static final int ETHNICITIES = RaceGroup.values().length;
+
+  private final ImmutableList<String> loci;
+  private final ImmutableSet<String> lociSet;
+  private final ImmutableList<HLAType> alleles;
+  private final ImmutableMap<HLAType, Integer> alleleIds;
+  /** The allele id of each locus of each row, rows in ascending order */
+  private final IntBuffer keys;
+  /** The frequency of each ethnicity for each row, indexed by row and {@link RaceGroup#ordinal()} */
+  private final DoubleBuffer frequencies;
+  private final double[] maxFrequencies;
+  /** The rows with a nonzero frequency containing each allele. Built when first used. */
+  private volatile KnownRows knownRows;
+  /** The haplotypes of {@link #knownRows} of each allele looked up, by allele id */
+  private final Map<Integer, ImmutableSet<Haplotype>> knownHaplotypes = new ConcurrentHashMap<>();
+  /** Index of the rows by packed key. Built when first used. */
+  private volatile KeyIndex keyIndex;
+  private final Map<Set<String>, FrequencyTable> marginals = new ConcurrentHashMap<>();
+
+  /**
+   * @param keys Sorted, distinct rows of allele ids
+   * @param frequencies Frequencies of each row
+   * @param maxFrequencies Largest frequency of each ethnicity
+   */
+  FrequencyTable(List<String> loci, List<HLAType> alleles, IntBuffer keys, DoubleBuffer frequencies, double[] maxFrequencies) {
+    this.loci = ImmutableList.copyOf(loci);
+    this.lociSet = ImmutableSet.copyOf(loci);
+    this.alleles = ImmutableList.copyOf(alleles);
+    ImmutableMap.Builder<HLAType, Integer> ids = ImmutableMap.builder();
+    for (int id = 0; id < alleles.size(); id++) {
+      ids.put(alleles.get(id), id);
+    }
+    this.alleleIds = ids.build();
+    this.keys = keys;
+    this.frequencies = frequencies;
+    this.maxFrequencies = maxFrequencies.clone();
+  }
+
+  /**
+   * @param sumDuplicates If true, rows for the same haplotype are combined by adding their
+   *        frequencies. Otherwise duplicate rows are an error.
+   * @return A table of the given rows, which may be in any order
+   */
+  private static FrequencyTable sorted(List<String> loci, List<HLAType> alleles, int[] unsortedKeys, double[] unsortedFrequencies, int rows,
+      boolean sumDuplicates) {
+    int width = loci.size();
+    int[] order = sortRows(unsortedKeys, rows, width, alleles.size());
+
+    int[] sortedKeys = new int[rows * width];
+    double[] sortedFrequencies = new double[rows * ETHNICITIES];
+    int size = 0;
+    for (int row : order) {
+      if (size > 0 && compareKeys(sortedKeys, (size - 1) * width, unsortedKeys, row * width, width) == 0) {
+        if (!sumDuplicates) {
+          List<HLAType> duplicate = new ArrayList<>();
+          for (int column = 0; column < width; column++) {
+            duplicate.add(alleles.get(unsortedKeys[row * width + column]));
+          }
+          throw new IllegalArgumentException("Duplicate haplotype in frequency table: " + duplicate);
+        }
+        for (int e = 0; e < ETHNICITIES; e++) {
+          sortedFrequencies[(size - 1) * ETHNICITIES + e] += unsortedFrequencies[row * ETHNICITIES + e];
+        }
+        continue;
+      }
+      System.arraycopy(unsortedKeys, row * width, sortedKeys, size * width, width);
+      System.arraycopy(unsortedFrequencies, row * ETHNICITIES, sortedFrequencies, size * ETHNICITIES, ETHNICITIES);
+      size++;
+    }
+
+    double[] maxFrequencies = new double[ETHNICITIES];
+    for (int i = 0; i < size * ETHNICITIES; i++) {
+      maxFrequencies[i % ETHNICITIES] = Math.max(maxFrequencies[i % ETHNICITIES], sortedFrequencies[i]);
+    }
+    return new FrequencyTable(loci, alleles, IntBuffer.wrap(Arrays.copyOf(sortedKeys, size * width)),
+        DoubleBuffer.wrap(Arrays.copyOf(sortedFrequencies, size * ETHNICITIES)), maxFrequencies);
+  }
+
+  /**
+   * @return The indices of the given rows of allele ids in ascending order, by a stable radix sort
+   *         on each column from last to first
+   */
+  private static int[] sortRows(int[] keys, int rows, int width, int alleleCount) {
+    int[] order = IntStream.range(0, rows).toArray();
+    int[] next = new int[rows];
+    int[] counts = new int[alleleCount + 1];
+    for (int column = width - 1; column >= 0; column--) {
+      Arrays.fill(counts, 0);
+      for (int row = 0; row < rows; row++) {
+        counts[keys[row * width + column] + 1]++;
+      }
+      for (int id = 0; id < alleleCount; id++) {
+        counts[id + 1] += counts[id];
+      }
+      for (int row : order) {
+        next[counts[keys[row * width + column]]++] = row;
+      }
+      int[] swap = order;
+      order = next;
+      next = swap;
+    }
+    return order;
+  }
+
+  /**
+   * @return The key of the locus of the given allele, as used in {@link #getLoci()}. DRB3, DRB4,
+   *         DRB5 and unreported DRB345 alleles share {@link #DRB345}.
+   */
+  public static String locusKey(HLAType allele) {
+    return locusKey(allele.locus());
+  }
+
+  /** @return The key of the given locus, as used in {@link #getLoci()} */
+  public static String locusKey(HLALocus locus) {
+    return locus.isDRB345() ? DRB345 : locus.name();
+  }
+
+  /** @return The keys of the loci of the given haplotype's alleles */
+  public static ImmutableSet<String> lociOf(Haplotype haplotype) {
+    return haplotype.getTypes().stream().map(FrequencyTable::locusKey).collect(ImmutableSet.toImmutableSet());
+  }
+
+  /** @return The keys of the loci of this table, in table order */
+  public ImmutableList<String> getLoci() {
+    return loci;
+  }
+
+  /** @return The number of distinct haplotypes in this table */
+  public int size() {
+    return frequencies.limit() / ETHNICITIES;
+  }
+
+  /** @return true if every one of the given loci is in this table */
+  public boolean covers(Collection<String> loci) {
+    return lociSet.containsAll(loci);
+  }
+
+  /**
+   * @param haplotype Haplotype of alleles as they appear in the tables, over some or all of the loci
+   *        of this table
+   * @param ethnicity Target ethnicity
+   * @return The frequency of the haplotype, summed over every row containing it if it does not span
+   *         all the loci of this table. Zero if it is not in the table.
+   */
+  public double getFrequency(RaceGroup ethnicity, Haplotype haplotype) {
+    ImmutableSet<String> haplotypeLoci = lociOf(haplotype);
+    if (!haplotypeLoci.equals(lociSet)) {
+      return covers(haplotypeLoci) && haplotypeLoci.size() == haplotype.getTypes().size() ? marginal(haplotypeLoci).getFrequency(ethnicity, haplotype) : 0;
+    }
+    int row = find(haplotype);
+    return row < 0 ? 0 : frequencies.get(row * ETHNICITIES + ethnicity.ordinal());
+  }
+
+  /**
+   * @param haplotype Haplotype of alleles as they appear in the tables
+   * @param frequencies Receives the frequency of the haplotype in each ethnicity, indexed by
+   *        {@link RaceGroup#ordinal()}. As {@link #getFrequency(RaceGroup, Haplotype)}, for every
+   *        ethnicity at once.
+   */
+  public void getFrequencies(Haplotype haplotype, double[] frequencies) {
+    ImmutableSet<String> haplotypeLoci = lociOf(haplotype);
+    if (!haplotypeLoci.equals(lociSet)) {
+      if (covers(haplotypeLoci) && haplotypeLoci.size() == haplotype.getTypes().size()) {
+        marginal(haplotypeLoci).getFrequencies(haplotype, frequencies);
+      } else {
+        Arrays.fill(frequencies, 0, ETHNICITIES, 0);
+      }
+      return;
+    }
+    int row = find(haplotype);
+    for (int e = 0; e < ETHNICITIES; e++) {
+      frequencies[e] = row < 0 ? 0 : this.frequencies.get(row * ETHNICITIES + e);
+    }
+  }
+
+  /** @return The largest frequency of any haplotype in this table for the given ethnicity */
+  public double getMaxFrequency(RaceGroup ethnicity) {
+    return maxFrequencies[ethnicity.ordinal()];
+  }
+
+  /** @return true if rows are indexed by packed key, rather than searched by binary search */
+  boolean hasPackedKeys() {
+    return keyIndex().packable;
+  }
+
+  /**
+   * @param allele Allele as it appears in the tables
+   * @return The haplotypes of this table containing the allele with a nonzero frequency in at least
+   *         one ethnicity. Immutable, and built the first time the allele is looked up.
+   */
+  public Set<Haplotype> getKnownHaplotypes(HLAType allele) {
+    Integer id = alleleIds.get(allele);
+    if (id == null) {
+      return ImmutableSet.of();
+    }
+    return knownHaplotypes.computeIfAbsent(id, this::buildKnownHaplotypes);
+  }
+
+  /**
+   * @param subset Keys of some of the loci of this table
+   * @return The table of marginal frequencies over the given loci
+   */
+  public FrequencyTable marginal(Set<String> subset) {
+    if (subset.equals(lociSet)) {
+      return this;
+    }
+    if (!covers(subset) || subset.isEmpty()) {
+      throw new IllegalArgumentException("Loci " + subset + " are not a subset of " + loci);
+    }
+    return marginals.computeIfAbsent(ImmutableSet.copyOf(subset), this::project);
+  }
+
+  /** @return The alleles of this table, indexed by allele id */
+  ImmutableList<HLAType> getAlleles() {
+    return alleles;
+  }
+
+  /** @return The rows of allele ids, in ascending order */
+  IntBuffer getKeys() {
+    return keys.duplicate();
+  }
+
+  /** @return The frequencies of each row, indexed by row and {@link RaceGroup#ordinal()} */
+  DoubleBuffer getFrequencies() {
+    return frequencies.duplicate();
+  }
+
+  /** Sum the rows of this table that agree at the given loci */
+  private FrequencyTable project(Set<String> subset) {
+    int[] columns = IntStream.range(0, loci.size()).filter(c -> subset.contains(loci.get(c))).toArray();
+    int width = loci.size();
+    int rows = size();
+    int[] projected = new int[rows * columns.length];
+    for (int row = 0; row < rows; row++) {
+      for (int c = 0; c < columns.length; c++) {
+        projected[row * columns.length + c] = keys.get(row * width + columns[c]);
+      }
+    }
+    double[] rowFrequencies = new double[rows * ETHNICITIES];
+    frequencies.get(0, rowFrequencies);
+    List<String> projectedLoci = Arrays.stream(columns).mapToObj(loci::get).collect(ImmutableList.toImmutableList());
+    return sorted(projectedLoci, alleles, projected, rowFrequencies, rows, true);
+  }
+
+  private KeyIndex keyIndex() {
+    KeyIndex index = keyIndex;
+    if (index == null) {
+      synchronized (this) {
+        index = keyIndex;
+        if (index == null) {
+          index = new KeyIndex();
+          keyIndex = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  private KnownRows knownRows() {
+    KnownRows rows = knownRows;
+    if (rows == null) {
+      synchronized (this) {
+        rows = knownRows;
+        if (rows == null) {
+          rows = new KnownRows();
+          knownRows = rows;
+        }
+      }
+    }
+    return rows;
+  }
+
+  private ImmutableSet<Haplotype> buildKnownHaplotypes(int alleleId) {
+    KnownRows index = knownRows();
+    int width = loci.size();
+    ImmutableSet.Builder<Haplotype> known = ImmutableSet.builder();
+    for (int i = index.offsets[alleleId]; i < index.offsets[alleleId + 1]; i++) {
+      int row = index.rows[i];
+      List<HLAType> types = new ArrayList<>(width);
+      for (int column = 0; column < width; column++) {
+        types.add(alleles.get(keys.get(row * width + column)));
+      }
+      known.add(new Haplotype(types));
+    }
+    return known.build();
+  }
+
+  /** @return The row of the given haplotype, which spans exactly the loci of this table, or -1 */
+  private int find(Haplotype haplotype) {
+    int width = loci.size();
+    if (haplotype.getTypes().size() != width) {
+      return -1;
+    }
+    int[] key = new int[width];
+    Arrays.fill(key, -1);
+    for (HLAType type : haplotype.getTypes()) {
+      int column = loci.indexOf(locusKey(type));
+      Integer id = alleleIds.get(type);
+      if (id == null || key[column] >= 0) {
+        return -1;
+      }
+      key[column] = id;
+    }
+
+    KeyIndex index = keyIndex();
+    if (index.packable) {
+      long packed = index.pack(key);
+      return packed < 0 ? -1 : index.row(packed);
+    }
+    int low = 0;
+    int high = size() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int c = compareRow(mid, key);
+      if (c < 0) {
+        low = mid + 1;
+      } else if (c > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int compareRow(int row, int[] key) {
+    int start = row * key.length;
+    for (int i = 0; i < key.length; i++) {
+      int c = Integer.compare(keys.get(start + i), key[i]);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return 0;
+  }
+
+  private boolean isKnown(int row) {
+    for (int e = 0; e < ETHNICITIES; e++) {
+      if (frequencies.get(row * ETHNICITIES + e) > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int compareKeys(int[] keys1, int start1, int[] keys2, int start2, int width) {
+    for (int i = 0; i < width; i++) {
+      int c = Integer.compare(keys1[start1 + i], keys2[start2 + i]);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * The rows with a nonzero frequency containing each allele, as postings: the rows of allele id
+   * {@code a} are {@code rows[offsets[a]]} to {@code rows[offsets[a + 1] - 1]}, ascending
+   */
+  private final class KnownRows {
+    private final int[] offsets = new int[alleles.size() + 1];
+    private final int[] rows;
+
+    private KnownRows() {
+      int width = loci.size();
+      int size = size();
+      // Count the rows of each allele, then fill each allele's postings in row order
+      for (int row = 0; row < size; row++) {
+        if (isKnown(row)) {
+          for (int column = 0; column < width; column++) {
+            offsets[keys.get(row * width + column) + 1]++;
+          }
+        }
+      }
+      for (int id = 0; id < alleles.size(); id++) {
+        offsets[id + 1] += offsets[id];
+      }
+      rows = new int[offsets[alleles.size()]];
+      int[] next = Arrays.copyOf(offsets, alleles.size());
+      for (int row = 0; row < size; row++) {
+        if (isKnown(row)) {
+          for (int column = 0; column < width; column++) {
+            rows[next[keys.get(row * width + column)]++] = row;
+          }
+        }
+      }
+    }
+  }
+
+  /** Open-addressing hash table from the packed key of each row to the row */
+  private final class KeyIndex {
+    private static final long EMPTY = -1;
+    private static final double MAX_LOAD = 0.75;
+
+    /** Code of each allele id within each column, or -1 if it is not in the column */
+    private final int[][] codes;
+    private final int[] shifts;
+    private final boolean packable;
+    private final long[] slotKeys;
+    private final int[] slotRows;
+    private final int mask;
+
+    private KeyIndex() {
+      int width = loci.size();
+      int size = size();
+      codes = new int[width][alleles.size()];
+      shifts = new int[width];
+      int bits = 0;
+      for (int column = 0; column < width; column++) {
+        Arrays.fill(codes[column], -1);
+        int distinct = 0;
+        for (int row = 0; row < size; row++) {
+          int id = keys.get(row * width + column);
+          if (codes[column][id] < 0) {
+            codes[column][id] = distinct++;
+          }
+        }
+        shifts[column] = bits;
+        bits += distinct <= 1 ? 1 : Integer.SIZE - Integer.numberOfLeadingZeros(distinct - 1);
+      }
+      packable = bits < Long.SIZE;
+
+      if (!packable) {
+        slotKeys = new long[0];
+        slotRows = new int[0];
+        mask = 0;
+        return;
+      }
+      // The smallest power of two keeping the table at most MAX_LOAD full
+      int minimum = (int) Math.ceil(size / MAX_LOAD);
+      int capacity = minimum <= 1 ? 2 : Integer.highestOneBit(minimum - 1) << 1;
+      slotKeys = new long[capacity];
+      slotRows = new int[capacity];
+      mask = capacity - 1;
+      Arrays.fill(slotKeys, EMPTY);
+      int[] key = new int[width];
+      for (int row = 0; row < size; row++) {
+        for (int column = 0; column < width; column++) {
+          key[column] = keys.get(row * width + column);
+        }
+        long packed = pack(key);
+        int slot = slot(packed);
+        while (slotKeys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        slotKeys[slot] = packed;
+        slotRows[slot] = row;
+      }
+    }
+
+    /** @return The packed key of the given allele ids, or -1 if no row has them */
+    private long pack(int[] ids) {
+      long packed = 0;
+      for (int column = 0; column < shifts.length; column++) {
+        int id = ids[column];
+        int code = id < 0 || id >= alleles.size() ? -1 : codes[column][id];
+        if (code < 0) {
+          return EMPTY;
+        }
+        packed |= (long) code << shifts[column];
+      }
+      return packed;
+    }
+
+    /** @return The row with the given packed key, or -1 */
+    private int row(long packed) {
+      if (slotKeys.length == 0) {
+        return -1;
+      }
+      for (int slot = slot(packed); slotKeys[slot] != EMPTY; slot = (slot + 1) & mask) {
+        if (slotKeys[slot] == packed) {
+          return slotRows[slot];
+        }
+      }
+      return -1;
+    }
+
+    private int slot(long packed) {
+      // Murmur3 finalizer, so keys differing only in high codes spread over the table
+      long h = packed;
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return (int) h & mask;
+    }
+  }
+
+  /** Collects the rows of a {@link FrequencyTable} */
+  public static class Builder {
+    private final ImmutableList<String> loci;
+    private final List<HLAType> alleles = new ArrayList<>();
+    private final Map<HLAType, Integer> alleleIds = new HashMap<>();
+    private int[] keys;
+    private double[] frequencies;
+    private int rows = 0;
+
+    /** @param loci Keys of the loci of the table, as given by {@link FrequencyTable#locusKey} */
+    public Builder(List<String> loci) {
+      this.loci = ImmutableList.copyOf(loci);
+      keys = new int[64 * loci.size()];
+      frequencies = new double[64 * ETHNICITIES];
+    }
+
+    /**
+     * @param types One allele of each locus of the table, in any order
+     * @param frequenciesByEthnicity Frequency of the haplotype, indexed by {@link RaceGroup#ordinal()}
+     * @return This builder
+     */
+    public Builder add(Collection<HLAType> types, double[] frequenciesByEthnicity) {
+      int width = loci.size();
+      if (types.size() != width) {
+        throw new IllegalArgumentException("Expected one allele of each of " + loci + ": " + types);
+      }
+      if ((rows + 1) * width > keys.length) {
+        keys = Arrays.copyOf(keys, keys.length * 2);
+        frequencies = Arrays.copyOf(frequencies, frequencies.length * 2);
+      }
+      int[] key = new int[width];
+      Arrays.fill(key, -1);
+      for (HLAType type : types) {
+        int column = loci.indexOf(locusKey(type));
+        if (column < 0 || key[column] >= 0) {
+          throw new IllegalArgumentException("Expected one allele of each of " + loci + ": " + types);
+        }
+        key[column] = alleleIds.computeIfAbsent(type, t -> {
+          alleles.add(t);
+          return alleles.size() - 1;
+        });
+      }
+      System.arraycopy(key, 0, keys, rows * width, width);
+      System.arraycopy(frequenciesByEthnicity, 0, frequencies, rows * ETHNICITIES, ETHNICITIES);
+      rows++;
+      return this;
+    }
+
+    /** @throws IllegalArgumentException If any haplotype was added more than once */
+    public FrequencyTable build() {
+      return sorted(loci, alleles, keys, frequencies, rows, false);
+    }
+  }
+}
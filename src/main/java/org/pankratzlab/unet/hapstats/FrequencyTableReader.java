@@ -0,0 +1,379 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.hapstats;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.CellType;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Streams an NMDP haplotype frequency table into a {@link FrequencyTable}, without holding the file
+ * in memory. Reads Excel 97 workbooks ({@code .xls}), every sheet of which is a part of the table
+ * with its own header row, and comma or tab delimited text, either of which may be gzipped
+ * ({@code .gz}).
+ *
+ * <p>
+ * Rows are handed off in chunks to be parsed on the common {@link ForkJoinPool} while the file is
+ * read, and are added to the table in file order. Only a few chunks are in flight at once.
+ */
+final class FrequencyTableReader {
+
+  private static final String FREQ_COL_SUFFIX = "_freq";
+  private static final String DRB345_COLUMN = "DRB3-4-5";
+  private static final String GZIP_SUFFIX = ".gz";
+  private static final String XLS_SUFFIX = ".xls";
+  private static final int CHUNK_ROWS = 8192;
+  private static final int MAX_PENDING_CHUNKS = Math.max(2, 2 * ForkJoinPool.getCommonPoolParallelism());
+
+  private final List<String> locusColumns;
+  private final Function<String, HLAType> alleleParser;
+  private final double minimumFrequency;
+  // Each table has only a few thousand distinct alleles, so each is only parsed once
+  private final Map<String, HLAType> alleles = new ConcurrentHashMap<>();
+  private final Deque<Future<List<ParsedRow>>> pending = new ArrayDeque<>();
+  private FrequencyTable.Builder builder;
+  private List<String> tableLoci;
+  // Columns of the current sheet, set by its header row
+  private int[] alleleColumns;
+  private int[] ethnicityColumns;
+  // Rows of a workbook, or unsplit lines of delimited text, waiting to be parsed
+  private List<String[]> chunk = new ArrayList<>();
+  private List<String> lineChunk = new ArrayList<>();
+  private char delimiter = 0;
+
+  /**
+   * @param locusColumns Column headers of the loci to read. Any not in the table are skipped.
+   * @param alleleParser Converts an allele of the table to the form used for lookups
+   * @param minimumFrequency Frequencies below this are read as zero
+   */
+  FrequencyTableReader(List<String> locusColumns, Function<String, HLAType> alleleParser, double minimumFrequency) {
+    this.locusColumns = locusColumns;
+    this.alleleParser = alleleParser;
+    this.minimumFrequency = minimumFrequency;
+  }
+
+  /**
+   * @param file Table to read. The format is chosen by its name: {@code .xls} for a workbook,
+   *        otherwise delimited text whose delimiter is found from the header. A {@code .gz} suffix
+   *        means the file is gzipped.
+   * @return The haplotype frequencies of the table
+   * @throws IOException If the file can not be read
+   * @throws IllegalArgumentException If the table is malformed
+   */
+  FrequencyTable read(File file) throws IOException {
+    String name = file.getName().toLowerCase();
+    boolean gzipped = name.endsWith(GZIP_SUFFIX);
+    if (gzipped) {
+      name = name.substring(0, name.length() - GZIP_SUFFIX.length());
+    }
+
+    if (name.endsWith(XLS_SUFFIX) && !gzipped) {
+      try (POIFSFileSystem fs = new POIFSFileSystem(file, true)) {
+        readWorkbook(fs);
+      }
+    } else {
+      try (InputStream is = gzipped ? new GZIPInputStream(new FileInputStream(file), 1 << 16) : new FileInputStream(file)) {
+        if (name.endsWith(XLS_SUFFIX)) {
+          try (POIFSFileSystem fs = new POIFSFileSystem(is)) {
+            readWorkbook(fs);
+          }
+        } else {
+          readDelimited(is);
+        }
+      }
+    }
+
+    flushChunk();
+    while (!pending.isEmpty()) {
+      addParsedRows();
+    }
+    if (builder == null) {
+      throw new IllegalArgumentException("No header row in haplotype frequency table: " + file);
+    }
+    return builder.build();
+  }
+
+  /** Stream the cell records of each sheet of the given workbook */
+  private void readWorkbook(POIFSFileSystem fs) throws IOException {
+    HSSFRequest request = new HSSFRequest();
+    request.addListenerForAllRecords(new HSSFListener() {
+      private SSTRecord strings;
+      private boolean inSheet = false;
+      private boolean header = true;
+      private int rowIndex = -1;
+      private final List<String> cells = new ArrayList<>();
+
+      @Override
+      public void processRecord(org.apache.poi.hssf.record.Record record) {
+        if (record instanceof BOFRecord bof) {
+          inSheet = bof.getType() == BOFRecord.TYPE_WORKSHEET;
+          header = true;
+          rowIndex = -1;
+          cells.clear();
+        } else if (record instanceof EOFRecord) {
+          endRow();
+          inSheet = false;
+        } else if (record instanceof SSTRecord sst) {
+          strings = sst;
+        } else if (inSheet && record instanceof LabelSSTRecord label) {
+          setCell(label.getRow(), label.getColumn(), strings.getString(label.getSSTIndex()).getString());
+        } else if (inSheet && record instanceof LabelRecord label) {
+          setCell(label.getRow(), label.getColumn(), label.getValue());
+        } else if (inSheet && record instanceof NumberRecord number) {
+          setCell(number.getRow(), number.getColumn(), Double.toString(number.getValue()));
+        } else if (inSheet && record instanceof FormulaRecord formula && formula.getCachedResultTypeEnum() == CellType.NUMERIC) {
+          setCell(formula.getRow(), formula.getColumn(), Double.toString(formula.getValue()));
+        }
+      }
+
+      private void setCell(int row, int column, String value) {
+        if (row != rowIndex) {
+          endRow();
+          rowIndex = row;
+        }
+        while (cells.size() <= column) {
+          cells.add(null);
+        }
+        cells.set(column, value);
+      }
+
+      private void endRow() {
+        if (cells.isEmpty()) {
+          return;
+        }
+        String[] row = cells.toArray(new String[0]);
+        cells.clear();
+        if (header) {
+          header(row);
+          header = false;
+        } else {
+          row(row);
+        }
+      }
+    });
+    new HSSFEventFactory().processWorkbookEvents(request, fs);
+  }
+
+  /** Stream the lines of a comma or tab delimited table */
+  private void readDelimited(InputStream is) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1 << 16);
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.isBlank()) {
+        continue;
+      }
+      if (delimiter == 0) {
+        delimiter = line.indexOf('\t') >= 0 ? '\t' : ',';
+        header(split(line, delimiter));
+      } else {
+        // Lines are split when parsed, off this thread
+        checkHeader();
+        lineChunk.add(line);
+        if (lineChunk.size() >= CHUNK_ROWS) {
+          flushChunk();
+        }
+      }
+    }
+  }
+
+  /** @return The fields of a delimited line, with any surrounding quotes removed */
+  private static String[] split(String line, char delimiter) {
+    if (line.indexOf('"') < 0) {
+      List<String> fields = new ArrayList<>();
+      int start = 0;
+      for (int end; (end = line.indexOf(delimiter, start)) >= 0; start = end + 1) {
+        fields.add(line.substring(start, end).trim());
+      }
+      fields.add(line.substring(start).trim());
+      return fields.toArray(new String[0]);
+    }
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '"') {
+        if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else {
+          quoted = !quoted;
+        }
+      } else if (c == delimiter && !quoted) {
+        fields.add(field.toString().trim());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString().trim());
+    return fields.toArray(new String[0]);
+  }
+
+  /** Map the locus and ethnicity columns of a sheet from its header row */
+  private void header(String[] cells) {
+    flushChunk();
+    Map<String, Integer> alleleIndexMap = new LinkedHashMap<>();
+    ethnicityColumns = new int[RaceGroup.values().length];
+    Arrays.fill(ethnicityColumns, -1);
+    for (int colIndex = 0; colIndex < cells.length; colIndex++) {
+      String cellVal = cells[colIndex];
+      if (locusColumns.contains(cellVal)) {
+        alleleIndexMap.put(cellVal.equals(DRB345_COLUMN) ? FrequencyTable.DRB345 : cellVal, colIndex);
+      }
+      for (RaceGroup group : RaceGroup.values()) {
+        if (Objects.equals(cellVal, group.toString() + FREQ_COL_SUFFIX)) {
+          ethnicityColumns[group.ordinal()] = colIndex;
+        }
+      }
+    }
+    if (alleleIndexMap.isEmpty()) {
+      throw new IllegalArgumentException("No locus columns in haplotype frequency table header: " + Arrays.toString(cells));
+    }
+    for (RaceGroup group : RaceGroup.values()) {
+      if (ethnicityColumns[group.ordinal()] < 0) {
+        throw new IllegalArgumentException("No " + group + FREQ_COL_SUFFIX + " column in haplotype frequency table header: " + Arrays.toString(cells));
+      }
+    }
+
+    List<String> loci = ImmutableList.copyOf(alleleIndexMap.keySet());
+    if (builder == null) {
+      tableLoci = loci;
+      builder = new FrequencyTable.Builder(loci);
+    } else if (!tableLoci.containsAll(loci) || !loci.containsAll(tableLoci)) {
+      throw new IllegalArgumentException("Sheets of haplotype frequency table have different loci: " + tableLoci + ", " + loci);
+    }
+    alleleColumns = alleleIndexMap.values().stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /** Queue a row of haplotype data to be parsed */
+  private void row(String[] cells) {
+    checkHeader();
+    chunk.add(cells);
+    if (chunk.size() >= CHUNK_ROWS) {
+      flushChunk();
+    }
+  }
+
+  private void checkHeader() {
+    if (builder == null) {
+      throw new IllegalArgumentException("Haplotype frequency table has no header row");
+    }
+  }
+
+  /** Start parsing the queued rows, first adding the oldest parsed rows if too many are in flight */
+  private void flushChunk() {
+    if (chunk.isEmpty() && lineChunk.isEmpty()) {
+      return;
+    }
+    List<String[]> rows = chunk;
+    List<String> lines = lineChunk;
+    char lineDelimiter = delimiter;
+    int[] alleleCols = alleleColumns;
+    int[] ethnicityCols = ethnicityColumns;
+    chunk = new ArrayList<>();
+    lineChunk = new ArrayList<>();
+    pending.add(ForkJoinPool.commonPool().submit(() -> {
+      List<String[]> cells = new ArrayList<>(rows);
+      lines.forEach(line -> cells.add(split(line, lineDelimiter)));
+      return parse(cells, alleleCols, ethnicityCols);
+    }));
+    while (pending.size() > MAX_PENDING_CHUNKS) {
+      addParsedRows();
+    }
+  }
+
+  /** Wait for the oldest chunk in flight and add its rows to the table */
+  private void addParsedRows() {
+    try {
+      for (ParsedRow row : pending.remove().get()) {
+        builder.add(row.types(), row.frequencies());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted reading haplotype frequency table", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private List<ParsedRow> parse(List<String[]> rows, int[] alleleCols, int[] ethnicityCols) {
+    List<ParsedRow> parsed = new ArrayList<>(rows.size());
+    for (String[] cells : rows) {
+      List<HLAType> types = new ArrayList<>(alleleCols.length);
+      for (int colIndex : alleleCols) {
+        String allele = colIndex < cells.length ? cells[colIndex] : null;
+        if (allele == null || allele.isEmpty()) {
+          throw new IllegalArgumentException("Missing allele in haplotype frequency table row: " + Arrays.toString(cells));
+        }
+        types.add(alleles.computeIfAbsent(allele, alleleParser));
+      }
+      double[] frequencies = new double[ethnicityCols.length];
+      for (int e = 0; e < ethnicityCols.length; e++) {
+        // Blank frequencies are zero, as Excel reads them
+        String value = ethnicityCols[e] < cells.length ? cells[ethnicityCols[e]] : null;
+        double frequency = value == null || value.isEmpty() ? 0 : Double.parseDouble(value);
+        frequencies[e] = frequency < minimumFrequency ? 0 : frequency;
+      }
+      parsed.add(new ParsedRow(types, frequencies));
+    }
+    return parsed;
+  }
+
+  /** A haplotype of the table and its frequency in each ethnicity */
+  private record ParsedRow(List<HLAType> types, double[] frequencies) {}
+}
@@ -0,0 +1,301 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.hapstats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import org.pankratzlab.unet.deprecated.hla.DonorCheckProperties;
+import org.pankratzlab.unet.deprecated.hla.HLALocus;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.deprecated.hla.NullType;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Compiled, binary copy of a {@link FrequencyTable} read from an NMDP table file, so the file only
+ * needs to be parsed again when it changes. Snapshots are memory-mapped rather than read, so loading
+ * one costs little more than checksumming its source file.
+ *
+ * <p>
+ * A snapshot holds a header describing its source and allele dictionary, followed by the rows of
+ * allele ids, fixed-width and sorted, and the matrix of frequencies with one column per
+ * {@link RaceGroup}. A snapshot is used only if it was compiled the same way from a file with the
+ * same SHA-256 checksum, which is much faster to compute than parsing the file.
+ */
+final class FrequencyTableSnapshot {
+
+  /** Changed whenever the snapshot layout changes */
+  private static final int FORMAT_VERSION = 1;
+  private static final int MAGIC = 0x44434846;
+  private static final String SNAPSHOT_SUFFIX = ".bin";
+  private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+  private static final int ETHNICITIES = RaceGroup.values().length;
+  private static final Object LOCK = new Object();
+
+  private FrequencyTableSnapshot() {}
+
+  /** Reads and compiles a table file */
+  @FunctionalInterface
+  interface TableCompiler {
+    FrequencyTable compile() throws IOException;
+  }
+
+  /**
+   * @param source NMDP table file
+   * @param compileVersion Describes everything besides the file that the compiled table depends
+   *        on, such as the columns read and the allele groups
+   * @param compiler Parses the file, if there is no current snapshot of it
+   * @return The table of the current snapshot of the given file, or the compiled table, which is
+   *         then written to a new snapshot
+   * @throws IOException If the file can not be read
+   */
+  static FrequencyTable load(File source, String compileVersion, TableCompiler compiler) throws IOException {
+    File directory = new File(DonorCheckProperties.getOrDefault(DonorCheckProperties.FREQUENCY_SNAPSHOT_DIRECTORY));
+    return load(directory, source, compileVersion, compiler);
+  }
+
+  /** @see #load(File, String, TableCompiler) */
+  static FrequencyTable load(File directory, File source, String compileVersion, TableCompiler compiler) throws IOException {
+    synchronized (LOCK) {
+      String prefix = snapshotPrefix(source, compileVersion);
+      String checksum = checksum(source);
+      File[] candidates = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(SNAPSHOT_SUFFIX));
+      for (File candidate : candidates == null ? new File[0] : candidates) {
+        Optional<Snapshot> snapshot = readHeader(candidate);
+        if (snapshot.isPresent() && snapshot.get().matches(compileVersion, checksum)) {
+          Optional<FrequencyTable> mapped = snapshot.get().map(candidate);
+          if (mapped.isPresent()) {
+            return mapped.get();
+          }
+        }
+        // Outdated. This can fail on some systems while an older table is still mapped.
+        candidate.delete();
+      }
+
+      FrequencyTable table = compiler.compile();
+      try {
+        write(table, directory, prefix + checksum.substring(0, 16) + SNAPSHOT_SUFFIX, source, compileVersion, checksum);
+        deleteOrphans(directory);
+      } catch (IOException e) {
+        System.err.println("Unable to write haplotype frequency snapshot to " + directory);
+        e.printStackTrace();
+      }
+      return table;
+    }
+  }
+
+  /** Delete the snapshots of files that no longer exist */
+  private static void deleteOrphans(File directory) {
+    File[] snapshots = directory.listFiles((dir, name) -> name.endsWith(SNAPSHOT_SUFFIX));
+    for (File snapshot : snapshots == null ? new File[0] : snapshots) {
+      Optional<Snapshot> header = readHeader(snapshot);
+      if (header.isEmpty() || !new File(header.get().sourcePath).exists()) {
+        snapshot.delete();
+      }
+    }
+  }
+
+  /** @return The start of the name of each snapshot of the given file */
+  private static String snapshotPrefix(File source, String compileVersion) {
+    return Hashing.sha256().hashString(source.getAbsolutePath() + ";" + compileVersion, StandardCharsets.UTF_8).toString().substring(0, 16) + "-";
+  }
+
+  private static String checksum(File source) throws IOException {
+    return Files.asByteSource(source).hash(Hashing.sha256()).toString();
+  }
+
+  private static void write(FrequencyTable table, File directory, String name, File source, String compileVersion, String checksum)
+      throws IOException {
+    ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+    try (DataOutputStream header = new DataOutputStream(headerBytes)) {
+      header.writeInt(FORMAT_VERSION);
+      header.writeUTF(compileVersion);
+      header.writeUTF(source.getAbsolutePath());
+      header.writeUTF(checksum);
+      header.writeInt(table.getLoci().size());
+      for (String locus : table.getLoci()) {
+        header.writeUTF(locus);
+      }
+      header.writeInt(table.getAlleles().size());
+      for (HLAType allele : table.getAlleles()) {
+        header.writeUTF(allele.locus().name());
+        header.writeBoolean(allele instanceof NullType);
+        header.writeByte(allele.spec().size());
+        for (int field : allele.spec()) {
+          header.writeInt(field);
+        }
+      }
+      header.writeInt(table.size());
+      for (RaceGroup e : RaceGroup.values()) {
+        header.writeDouble(table.getMaxFrequency(e));
+      }
+    }
+
+    directory.mkdirs();
+    File temp = File.createTempFile("snapshot", ".tmp", directory);
+    try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ORDER);
+      buffer.putInt(MAGIC);
+      buffer.putInt(headerBytes.size());
+      flush(channel, buffer);
+      channel.write(ByteBuffer.wrap(headerBytes.toByteArray()));
+      long position = align(8 + headerBytes.size());
+
+      channel.position(position);
+      IntBuffer keys = table.getKeys();
+      while (keys.hasRemaining()) {
+        while (keys.hasRemaining() && buffer.remaining() >= Integer.BYTES) {
+          buffer.putInt(keys.get());
+        }
+        flush(channel, buffer);
+      }
+      channel.position(align(channel.position()));
+      DoubleBuffer frequencies = table.getFrequencies();
+      while (frequencies.hasRemaining()) {
+        while (frequencies.hasRemaining() && buffer.remaining() >= Double.BYTES) {
+          buffer.putDouble(frequencies.get());
+        }
+        flush(channel, buffer);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+    java.nio.file.Files.move(temp.toPath(), new File(directory, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /** @return The given offset, rounded up to a multiple of 8 bytes */
+  private static long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  /** @return The header of the given snapshot, if it is a readable snapshot of the current format */
+  private static Optional<Snapshot> readHeader(File snapshotFile) {
+    try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer prefix = ByteBuffer.allocate(8).order(ORDER);
+      if (channel.read(prefix, 0) < 8) {
+        return Optional.empty();
+      }
+      prefix.flip();
+      int headerLength = prefix.getInt(4);
+      if (prefix.getInt(0) != MAGIC || headerLength < 0 || headerLength > channel.size()) {
+        return Optional.empty();
+      }
+      ByteBuffer headerBytes = ByteBuffer.allocate(headerLength);
+      channel.read(headerBytes, 8);
+      DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes.array()));
+      if (header.readInt() != FORMAT_VERSION) {
+        return Optional.empty();
+      }
+      Snapshot snapshot = new Snapshot();
+      snapshot.compileVersion = header.readUTF();
+      snapshot.sourcePath = header.readUTF();
+      snapshot.checksum = header.readUTF();
+      int lociCount = header.readInt();
+      for (int i = 0; i < lociCount; i++) {
+        snapshot.loci.add(header.readUTF());
+      }
+      int alleleCount = header.readInt();
+      for (int i = 0; i < alleleCount; i++) {
+        HLALocus locus = HLALocus.valueOf(header.readUTF());
+        boolean isNull = header.readBoolean();
+        List<Integer> spec = new ArrayList<>();
+        for (int fields = header.readByte(); fields > 0; fields--) {
+          spec.add(header.readInt());
+        }
+        snapshot.alleles.add(isNull ? new NullType(locus, spec) : new HLAType(locus, spec));
+      }
+      snapshot.rows = header.readInt();
+      for (int e = 0; e < ETHNICITIES; e++) {
+        snapshot.maxFrequencies[e] = header.readDouble();
+      }
+      snapshot.keysOffset = align(8 + headerLength);
+      snapshot.frequenciesOffset = align(snapshot.keysOffset + (long) snapshot.rows * lociCount * Integer.BYTES);
+      if (channel.size() != snapshot.frequenciesOffset + (long) snapshot.rows * ETHNICITIES * Double.BYTES) {
+        // Incomplete
+        return Optional.empty();
+      }
+      return Optional.of(snapshot);
+    } catch (IOException | IllegalArgumentException e) {
+      return Optional.empty();
+    }
+  }
+
+  /** The header of a snapshot */
+  private static class Snapshot {
+    private String compileVersion;
+    private String sourcePath;
+    private String checksum;
+    private final List<String> loci = new ArrayList<>();
+    private final List<HLAType> alleles = new ArrayList<>();
+    private int rows;
+    private final double[] maxFrequencies = new double[ETHNICITIES];
+    private long keysOffset;
+    private long frequenciesOffset;
+
+    /** @return true if this snapshot was compiled the given way from a file with the given checksum */
+    private boolean matches(String version, String sourceChecksum) {
+      return Objects.equals(compileVersion, version) && Objects.equals(checksum, sourceChecksum);
+    }
+
+    /** @return The table of this snapshot, backed by the mapped file. Empty if it can not be mapped. */
+    private Optional<FrequencyTable> map(File snapshotFile) {
+      try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+        MappedByteBuffer keys = channel.map(MapMode.READ_ONLY, keysOffset, (long) rows * loci.size() * Integer.BYTES);
+        MappedByteBuffer frequencies = channel.map(MapMode.READ_ONLY, frequenciesOffset, (long) rows * ETHNICITIES * Double.BYTES);
+        return Optional
+            .of(new FrequencyTable(loci, alleles, keys.order(ORDER).asIntBuffer(), frequencies.order(ORDER).asDoubleBuffer(), maxFrequencies));
+      } catch (IOException | IllegalArgumentException e) {
+        System.err.println("Unable to map haplotype frequency snapshot " + snapshotFile);
+        e.printStackTrace();
+        return Optional.empty();
+      }
+    }
+  }
+}
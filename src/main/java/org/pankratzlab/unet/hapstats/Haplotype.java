@@ -35,6 +35,8 @@ import com.google.common.collect.UnmodifiableIterator;
 public class Haplotype implements Comparable<Haplotype> {
 
   private final ImmutableSortedSet<HLAType> types;
+  // Haplotypes are frequently used as keys, so the hash is only computed once
+  private int hash;
 
   public Haplotype(Collection<HLAType> types) {
     if (types.size() < 2) {
@@ -61,9 +63,13 @@ public class Haplotype implements Comparable<Haplotype> {
 
   @Override
   public int hashCode() {
-    final int prime = 31;
-    int result = 1;
-    result = prime * result + ((types == null) ? 0 : types.hashCode());
+    int result = hash;
+    if (result == 0) {
+      final int prime = 31;
+      result = 1;
+      result = prime * result + ((types == null) ? 0 : types.hashCode());
+      hash = result;
+    }
     return result;
   }
 
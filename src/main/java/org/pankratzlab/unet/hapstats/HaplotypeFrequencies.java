@@ -22,37 +22,37 @@
 package org.pankratzlab.unet.hapstats;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.util.EnumMap;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 import java.util.StringJoiner;
-import java.util.stream.Collectors;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import org.pankratzlab.unet.deprecated.hla.DonorCheckProperties;
 import org.pankratzlab.unet.deprecated.hla.HLAType;
 import org.pankratzlab.unet.deprecated.hla.NullType;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.value.ChangeListener;
 
 /**
- * Static utility class for accessing haplotype frequencies for B-C and DR-DQ haplotypes. Uses
- * two-field alleles and P/G groups.
+ * Static utility class for accessing haplotype frequencies for B-C and DR-DQ haplotypes, and for
+ * haplotypes over any loci of an optional multi-locus table. Uses two-field alleles and P/G groups.
  */
 public final class HaplotypeFrequencies {
 
@@ -60,14 +60,32 @@ public final class HaplotypeFrequencies {
   public static final int UNKNOWN_HAP_SIG_FIGS = 5;
   public static final RoundingMode UNKNOWN_HAP_ROUNDING_MODE = RoundingMode.HALF_UP;
   public static final BigDecimal UNKNOWN_HAP_CUTOFF = new BigDecimal(0.00001).setScale(UNKNOWN_HAP_SIG_FIGS, UNKNOWN_HAP_ROUNDING_MODE);
-  private static final String FREQ_COL_SUFFIX = "_freq";
+  /** Changed whenever tables are read differently, so outdated snapshots are not used */
+  private static final int TABLE_COMPILE_VERSION = 1;
+  /** Smallest frequency, as read from a table, that is not below {@link #UNKNOWN_HAP_CUTOFF} */
+  private static final double MIN_KNOWN_FREQUENCY = minKnownFrequency();
 
   public static final String NMDP_CB_PROP = "hla.nmdp.haplotype.bc";
   public static final String NMDP_DRDQ_PROP = "hla.nmdp.haplotype.drdq";
+  /** Optional table of haplotypes spanning any loci, which are read from its header */
+  public static final String NMDP_MULTI_PROP = "hla.nmdp.haplotype.multi";
 
-  private static Map<Haplotype, HaplotypeFrequency> TABLES;
-  private static BooleanProperty initializedProperty = new SimpleBooleanProperty(false);
-  private static String missingTableMsg;
+  /** Column headers of the loci that may appear in a frequency table, in table order */
+  private static final List<String> LOCUS_COLUMNS = ImmutableList.of("A", "C", "B", "DRB3-4-5", "DRB1", "DQA1", "DQB1", "DPA1", "DPB1");
+
+  /** Maximum number of haplotypes whose frequencies are remembered between table loads */
+  public static final long FREQUENCY_CACHE_SIZE = 100_000;
+
+  private static final int ETHNICITIES = RaceGroup.values().length;
+
+  /** Tables in use before any are loaded */
+  private static final Snapshot NOT_LOADED = new Snapshot(0, null, "", null);
+  // Published whole, so a reader sees the tables, version, messages and cache of a single load
+  private static final AtomicReference<Snapshot> CURRENT = new AtomicReference<>(NOT_LOADED);
+  private static final AtomicLong GENERATIONS = new AtomicLong();
+  // Loads are serialized so snapshots are published in the order they were started
+  private static final Object LOAD_LOCK = new Object();
+  private static final BooleanProperty initializedProperty = new SimpleBooleanProperty(false);
 
   private HaplotypeFrequencies() {}
 
@@ -79,8 +97,8 @@ public final class HaplotypeFrequencies {
    * @return True if {@link #doInitialization()} succeeded.
    */
   public static BooleanProperty successfullyInitialized() {
-    if (Objects.isNull(TABLES)) {
-      initializedProperty = doInitialization();
+    if (!current().isLoaded()) {
+      doInitialization();
     }
     return initializedProperty;
   }
@@ -93,7 +111,19 @@ public final class HaplotypeFrequencies {
    * @return true if at least one haplotype is read successfully
    */
   public static BooleanProperty doInitialization(String bcTablePath, String drdqTablePath) {
-    return completeDoInitialization(bcTablePath, drdqTablePath);
+    return completeDoInitialization(bcTablePath, drdqTablePath, null);
+  }
+
+  /**
+   * Used to test frequency table parsing
+   *
+   * @param bcTablePath file path for BC haplotype frequency file
+   * @param drdqTablePath file path for DRDQ haplotype frequency file
+   * @param multiTablePath file path for a haplotype frequency file over any loci
+   * @return true if at least one haplotype is read successfully
+   */
+  public static BooleanProperty doInitialization(String bcTablePath, String drdqTablePath, String multiTablePath) {
+    return completeDoInitialization(bcTablePath, drdqTablePath, multiTablePath);
   }
 
   /**
@@ -105,9 +135,38 @@ public final class HaplotypeFrequencies {
    * @return true if at least one haplotype is read successfully.
    */
   public static BooleanProperty doInitialization() {
+    loadConfigured();
+    return initializedProperty;
+  }
+
+  /**
+   * Load the haplotype frequency tables on a new background thread. Lookups, including those of
+   * searches already running, use the current tables until the new tables are completely loaded.
+   *
+   * @return The newly loaded tables, once published
+   */
+  public static Future<Snapshot> reload() {
+    FutureTask<Snapshot> task = new FutureTask<>(HaplotypeFrequencies::loadConfigured);
+    Thread loader = new Thread(task, "Haplotype frequency reload");
+    loader.setDaemon(true);
+    loader.start();
+    return task;
+  }
+
+  /** Load and publish the tables set in {@link DonorCheckProperties} */
+  private static Snapshot loadConfigured() {
     String bcTablePath = DonorCheckProperties.get().getProperty(NMDP_CB_PROP);
     String drdqTablePath = DonorCheckProperties.get().getProperty(NMDP_DRDQ_PROP);
-    return completeDoInitialization(bcTablePath, drdqTablePath);
+    String multiTablePath = DonorCheckProperties.get().getProperty(NMDP_MULTI_PROP);
+    return load(bcTablePath, drdqTablePath, multiTablePath);
+  }
+
+  /**
+   * @return The most recently loaded tables. Hold on to these for the duration of a task that must
+   *         see the same frequencies throughout, even if the tables are reloaded.
+   */
+  public static Snapshot current() {
+    return CURRENT.get();
   }
 
   /**
@@ -115,47 +174,102 @@ public final class HaplotypeFrequencies {
    *
    * @param bcTablePath file path for BC haplotype frequency file
    * @param drdqTablePath file path for DRDQ haplotype frequency file
+   * @param multiTablePath file path for a haplotype frequency file over any loci. Optional, so only
+   *        reported missing if a path is given.
    * @return true if at least one haplotype is read successfully
    */
-  private static BooleanProperty completeDoInitialization(String bcTablePath, String drdqTablePath) {
-    Builder<Haplotype, HaplotypeFrequency> frequencyMapBuilder = ImmutableMap.builder();
+  private static BooleanProperty completeDoInitialization(String bcTablePath, String drdqTablePath, String multiTablePath) {
+    load(bcTablePath, drdqTablePath, multiTablePath);
+    return initializedProperty;
+  }
+
+  /**
+   * Build a new snapshot of the given tables and make it current
+   *
+   * @see #completeDoInitialization(String, String, String)
+   */
+  private static Snapshot load(String bcTablePath, String drdqTablePath, String multiTablePath) {
+    synchronized (LOAD_LOCK) {
+      Snapshot snapshot = readTables(bcTablePath, drdqTablePath, multiTablePath);
+      CURRENT.set(snapshot);
+      initializedProperty.set(snapshot.isInitialized());
+      return snapshot;
+    }
+  }
+
+  /** @return A snapshot of the given tables, with the next generation number */
+  private static Snapshot readTables(String bcTablePath, String drdqTablePath, String multiTablePath) {
     StringJoiner noTable = new StringJoiner("\n");
-    ImmutableMap<Haplotype, HaplotypeFrequency> table = ImmutableMap.of();
+    List<FrequencyTable> tables = ImmutableList.of();
     try {
+      ImmutableList.Builder<FrequencyTable> tablesBuilder = ImmutableList.builder();
 
       File bcTableFile;
       if (!Strings.isNullOrEmpty(bcTablePath) && (bcTableFile = new File(bcTablePath)).exists()) {
-        Builder<Haplotype, HaplotypeFrequency> bcBuilder = ImmutableMap.builder();
-        buildTable(bcBuilder, bcTableFile, "C", "B");
-        frequencyMapBuilder.putAll(bcBuilder.build());
+        tablesBuilder.add(buildTable(bcTableFile, ImmutableList.of("C", "B")));
       } else {
         noTable.add("CB");
       }
 
       File drdqTableFile;
       if (!Strings.isNullOrEmpty(drdqTablePath) && (drdqTableFile = new File(drdqTablePath)).exists()) {
-        Builder<Haplotype, HaplotypeFrequency> drdqBuilder = ImmutableMap.builder();
-        buildTable(drdqBuilder, drdqTableFile, "DRB3-4-5", "DRB1", "DQB1");
-        frequencyMapBuilder.putAll(drdqBuilder.build());
+        tablesBuilder.add(buildTable(drdqTableFile, ImmutableList.of("DRB3-4-5", "DRB1", "DQB1")));
       } else {
         noTable.add("DRB345-DRB1-DQB1");
       }
 
-      table = frequencyMapBuilder.build();
+      File multiTableFile;
+      if (!Strings.isNullOrEmpty(multiTablePath)) {
+        if ((multiTableFile = new File(multiTablePath)).exists()) {
+          tablesBuilder.add(buildTable(multiTableFile, LOCUS_COLUMNS));
+        } else {
+          noTable.add(multiTablePath);
+        }
+      }
+
+      tables = tablesBuilder.build();
     } catch (Throwable e) {
       System.err.println("Error building haplotype frequency table");
       e.printStackTrace();
     }
-    TABLES = table;
+    String tableVersion = tableVersion(bcTablePath) + ";" + tableVersion(drdqTablePath) + ";" + tableVersion(multiTablePath);
 
-    missingTableMsg = "";
+    String missingTableMsg = "";
     if (!noTable.toString().isEmpty()) {
       missingTableMsg = "The following frequency table(s) are missing. Corresponding haplotype frequencies will not be used.\n" + noTable.toString()
           + "\n\nYou can edit the table paths via the 'Haplotypes' menu.";
     }
 
-    initializedProperty.set(!TABLES.isEmpty());
-    return initializedProperty;
+    return new Snapshot(GENERATIONS.incrementAndGet(), tables, tableVersion, missingTableMsg);
+  }
+
+  private static Cache<Haplotype, Frequencies> newFrequencyCache() {
+    return CacheBuilder.newBuilder().maximumSize(FREQUENCY_CACHE_SIZE).recordStats().build();
+  }
+
+  /**
+   * @return Hit, miss and eviction counts for haplotype frequency lookups since the tables were last
+   *         loaded
+   */
+  public static CacheStats getFrequencyCacheStats() {
+    return current().getFrequencyCacheStats();
+  }
+
+  /** @return The path, size and modification time of the given table file, if it exists */
+  private static String tableVersion(String tablePath) {
+    File tableFile;
+    if (Strings.isNullOrEmpty(tablePath) || !(tableFile = new File(tablePath)).exists()) {
+      return "";
+    }
+    return tableFile.getAbsolutePath() + "," + tableFile.length() + "," + tableFile.lastModified();
+  }
+
+  /**
+   * @return An identifier for the frequency tables last loaded, which changes if different tables
+   *         are loaded or the table files change. Empty if no tables have been loaded.
+   */
+  public static String getTableVersion() {
+    return current().getTableVersion();
   }
 
   /**
@@ -163,65 +277,44 @@ public final class HaplotypeFrequencies {
    *         call. Empty if no missing tables.
    */
   public static String getMissingTableMessage() {
-    return missingTableMsg;
+    return current().getMissingTableMessage();
   }
 
-  /** Helper method to build a haplotype table from a CSV file from NMDP */
-  private static void buildTable(Builder<Haplotype, HaplotypeFrequency> frequencyTableBuilder, File frequencyFile, String... loci) {
-
-    try (InputStream is = new FileInputStream(frequencyFile); HSSFWorkbook workbook = new HSSFWorkbook(is)) {
-
-      for (int sheetIdx = 0; sheetIdx < workbook.getNumberOfSheets(); sheetIdx++) {
-        Iterator<Row> rows = workbook.getSheetAt(0).rowIterator();
-        Map<String, Integer> alleleIndexMap = new HashMap<>();
-        Map<RaceGroup, Integer> ethnicityMap = new EnumMap<>(RaceGroup.class);
-        Row headerRow = rows.next();
-        for (Cell headerCell : headerRow) {
-          int colIndex = headerCell.getColumnIndex();
-          String cellVal = headerCell.toString();
-          for (String l : loci) {
-            if (cellVal.equals(l)) {
-              alleleIndexMap.put(l, colIndex);
-            }
-          }
-          for (RaceGroup group : RaceGroup.values()) {
-            if (cellVal.equals(group.toString() + FREQ_COL_SUFFIX)) {
-              ethnicityMap.put(group, colIndex);
-            }
-          }
-        }
-        // TODO could validate the header extraction by ensuring all loci and ethnicities were
-        // found
-
-        while (rows.hasNext()) {
-          Row row = rows.next();
-
-          // Process each haplotype entry
-          Set<HLAType> types = new HashSet<>();
-          for (String header : loci) {
-            Cell cell = row.getCell(alleleIndexMap.get(header));
-            types.add(makeType(cell.toString()));
-          }
-          Haplotype haplotype = new Haplotype(types);
-          Map<RaceGroup, BigDecimal> hapMap = new HashMap<>();
-          for (RaceGroup group : RaceGroup.values()) {
-            Cell cell = row.getCell(ethnicityMap.get(group));
-            BigDecimal frequency = new BigDecimal(cell.getNumericCellValue());
-
-            if (frequency.compareTo(UNKNOWN_HAP_CUTOFF) < 0) {
-              frequency = BigDecimal.ZERO;
-            }
-            hapMap.put(group, frequency);
-          }
-          frequencyTableBuilder.put(haplotype, new HaplotypeFrequency(hapMap));
-        }
-      }
+  /**
+   * Helper method to build a haplotype table from a file from NMDP, or from its snapshot if the file
+   * has been read before
+   *
+   * @param loci Column headers of the loci to read. Any not in the file are skipped.
+   * @see FrequencyTableReader
+   * @see FrequencyTableSnapshot
+   */
+  private static FrequencyTable buildTable(File frequencyFile, List<String> loci) {
+    String compileVersion =
+        "compile=" + TABLE_COMPILE_VERSION + ";loci=" + loci + ";g=" + AlleleGroups.getGGroupVersion() + ";cutoff=" + MIN_KNOWN_FREQUENCY;
+    try {
+      return FrequencyTableSnapshot.load(frequencyFile, compileVersion,
+          () -> new FrequencyTableReader(loci, HaplotypeFrequencies::makeType, MIN_KNOWN_FREQUENCY).read(frequencyFile));
     } catch (IOException e) {
       System.err.println("Error generating haplotype frequencies");
       throw new IllegalArgumentException(e);
     }
   }
 
+  /**
+   * @return The smallest double whose exact value is at least {@link #UNKNOWN_HAP_CUTOFF}, so table
+   *         frequencies can be compared without converting each to a {@link BigDecimal}
+   */
+  private static double minKnownFrequency() {
+    double frequency = UNKNOWN_HAP_CUTOFF.doubleValue();
+    while (new BigDecimal(frequency).compareTo(UNKNOWN_HAP_CUTOFF) < 0) {
+      frequency = Math.nextUp(frequency);
+    }
+    while (new BigDecimal(Math.nextDown(frequency)).compareTo(UNKNOWN_HAP_CUTOFF) >= 0) {
+      frequency = Math.nextDown(frequency);
+    }
+    return frequency;
+  }
+
   /** Convert a record to a {@link HLAType} */
   private static HLAType makeType(String alleleString) {
     if (alleleString.equals(UNREPORTED_DRB345)) {
@@ -264,36 +357,274 @@ public final class HaplotypeFrequencies {
    * @param ethnicity Target ethnicity
    * @param haplotype Target haplotype
    * @return The population frequency in the specified ethnicity of the haplotype containing these two
-   *         types
+   *         types. Zero unless a table spans exactly the loci of the haplotype.
    */
   public static BigDecimal getFrequency(RaceGroup ethnicity, Haplotype haplotype) {
-    BigDecimal freq = BigDecimal.ZERO;
-    Haplotype equivHaplotype = new Haplotype(haplotype.getTypes().stream().map(AlleleGroups::getGGroup).map(HaplotypeFrequencies::adjustNulls)
-        .map(HaplotypeFrequencies::truncateFields).collect(Collectors.toSet()));
-    if (Objects.nonNull(TABLES) && TABLES.containsKey(equivHaplotype)) {
-      freq = TABLES.get(equivHaplotype).getFrequencyForEthnicity(ethnicity);
-    }
-    return freq;
+    return current().getFrequency(ethnicity, haplotype);
   }
 
-  /** Helper class linking {@link RaceGroup} and frequency values for a particular Haplotype */
-  private static class HaplotypeFrequency {
+  /**
+   * @param haplotype Target haplotype
+   * @param frequencies Receives the population frequency of the haplotype in each ethnicity, indexed
+   *        by {@link RaceGroup#ordinal()}
+   */
+  public static void getFrequencies(Haplotype haplotype, double[] frequencies) {
+    current().getFrequencies(haplotype, frequencies);
+  }
 
-    private final ImmutableMap<RaceGroup, BigDecimal> frequencyForEthnicity;
+  /**
+   * @param loci Keys of the target loci, see {@link FrequencyTable#locusKey(HLAType)}
+   * @return The table of haplotypes spanning exactly these loci, possibly marginal, for repeated
+   *         lookups by packed key. Empty if no loaded table covers them. Alleles must be looked up as
+   *         they appear in the tables.
+   */
+  public static Optional<FrequencyTable> getTable(Set<String> loci) {
+    return current().getTable(loci);
+  }
 
-    private HaplotypeFrequency(Map<RaceGroup, BigDecimal> hapMap) {
-      Builder<RaceGroup, BigDecimal> builder = ImmutableMap.builder();
-      builder.putAll(hapMap);
-      this.frequencyForEthnicity = builder.build();
+  /** @return The given table frequency, as the tables have always reported it */
+  private static BigDecimal toBigDecimal(double frequency) {
+    return frequency == 0 ? BigDecimal.ZERO : new BigDecimal(frequency);
+  }
+
+  /**
+   * @param allele Target allele, in any resolution
+   * @return The haplotypes containing the equivalent 2-field G group allele that have a nonzero
+   *         frequency in at least one ethnicity. Any haplotype not in this set for all of its alleles
+   *         has a frequency of zero in every ethnicity.
+   */
+  public static Set<Haplotype> getKnownHaplotypes(HLAType allele) {
+    return current().getKnownHaplotypes(allele);
+  }
+
+  /**
+   * @param allele Target allele, in any resolution
+   * @param loci Keys of the loci of the haplotypes, see {@link FrequencyTable#locusKey(HLAType)}
+   * @return As {@link #getKnownHaplotypes(HLAType)}, for haplotypes spanning exactly the given loci
+   */
+  public static Set<Haplotype> getKnownHaplotypes(HLAType allele, Set<String> loci) {
+    return current().getKnownHaplotypes(allele, loci);
+  }
+
+  /**
+   * @param ethnicity Target ethnicity
+   * @return The largest frequency of any haplotype in the specified ethnicity, or zero if no tables
+   *         are loaded. No haplotype lookup can exceed this value.
+   */
+  public static BigDecimal getMaxFrequency(RaceGroup ethnicity) {
+    return current().getMaxFrequency(ethnicity);
+  }
+
+  /**
+   * @param ethnicity Target ethnicity
+   * @param loci Keys of the loci of the haplotypes, see {@link FrequencyTable#locusKey(HLAType)}
+   * @return The largest frequency in the specified ethnicity of any haplotype spanning exactly the
+   *         given loci, or zero if no table spans them
+   */
+  public static BigDecimal getMaxFrequency(RaceGroup ethnicity, Set<String> loci) {
+    return current().getMaxFrequency(ethnicity, loci);
+  }
+
+  /**
+   * Immutable set of haplotype frequency tables from one load. The static lookups of
+   * {@link HaplotypeFrequencies} always use the most recent snapshot; tasks that must not see the
+   * tables change part way through, such as a haplotype search, should look up frequencies in the
+   * snapshot they started with.
+   *
+   * <p>
+   * A haplotype only has a frequency if a table spans exactly its loci, as the B-C and DR-DQ tables
+   * have always been looked up. {@link #withMarginals()} gives the same tables, looking up
+   * haplotypes over fewer loci by marginal frequencies instead.
+   */
+  public static final class Snapshot {
+    private final long generation;
+    private final List<FrequencyTable> tables;
+    private final String tableVersion;
+    private final String missingTableMsg;
+    private final boolean marginals;
+    private final Snapshot withMarginals;
+    // Each snapshot has its own cache, so a lookup can never see a frequency from other tables
+    private final Cache<Haplotype, Frequencies> frequencyCache = newFrequencyCache();
+    // Each allele as it appears in the tables, shared with the marginal view and dropped on reload
+    private final Map<HLAType, HLAType> equivalentTypes;
+
+    private Snapshot(long generation, List<FrequencyTable> tables, String tableVersion, String missingTableMsg) {
+      this.generation = generation;
+      this.tables = tables;
+      this.tableVersion = tableVersion;
+      this.missingTableMsg = missingTableMsg;
+      marginals = false;
+      equivalentTypes = new ConcurrentHashMap<>();
+      withMarginals = new Snapshot(this);
+    }
+
+    /** View of the given snapshot's tables that looks up marginal frequencies */
+    private Snapshot(Snapshot exact) {
+      generation = exact.generation;
+      tables = exact.tables;
+      tableVersion = exact.tableVersion;
+      missingTableMsg = exact.missingTableMsg;
+      marginals = true;
+      equivalentTypes = exact.equivalentTypes;
+      withMarginals = this;
+    }
+
+    /**
+     * @return These tables, looking up a haplotype that spans fewer loci than the smallest table
+     *         covering it by that table's marginal frequencies. Used by searches over arbitrary
+     *         loci, see {@link HaplotypeFrequencies#NMDP_MULTI_PROP}.
+     */
+    public Snapshot withMarginals() {
+      return withMarginals;
+    }
+
+    /** @return True if this is the {@link #withMarginals()} view */
+    public boolean usesMarginals() {
+      return marginals;
+    }
+
+    /** @return The number of loads, including this one, since startup. Zero if never loaded. */
+    public long getGeneration() {
+      return generation;
+    }
+
+    /** @return True if these tables were loaded, even if all of them are missing */
+    public boolean isLoaded() {
+      return tables != null;
+    }
+
+    /** @return True if at least one haplotype was read */
+    public boolean isInitialized() {
+      return isLoaded() && tables.stream().anyMatch(t -> t.size() > 0);
+    }
+
+    /** @see HaplotypeFrequencies#getTableVersion() */
+    public String getTableVersion() {
+      return tableVersion;
+    }
+
+    /** @see HaplotypeFrequencies#getMissingTableMessage() */
+    public String getMissingTableMessage() {
+      return missingTableMsg;
+    }
+
+    /** @see HaplotypeFrequencies#getFrequencyCacheStats() */
+    public CacheStats getFrequencyCacheStats() {
+      return frequencyCache.stats();
+    }
+
+    /** @see HaplotypeFrequencies#getFrequency(RaceGroup, Haplotype) */
+    public BigDecimal getFrequency(RaceGroup ethnicity, Haplotype haplotype) {
+      return frequencies(haplotype).decimals[ethnicity.ordinal()];
+    }
+
+    /** @see HaplotypeFrequencies#getFrequencies(Haplotype, double[]) */
+    public void getFrequencies(Haplotype haplotype, double[] frequencies) {
+      System.arraycopy(frequencies(haplotype).values, 0, frequencies, 0, ETHNICITIES);
+    }
+
+    /** @return The frequencies of the haplotype in every ethnicity, looked up once per haplotype */
+    private Frequencies frequencies(Haplotype haplotype) {
+      Frequencies frequencies = frequencyCache.getIfPresent(haplotype);
+      if (frequencies == null) {
+        // Two threads may both look up a new haplotype, but will find the same frequencies
+        frequencies = lookupFrequencies(haplotype);
+        frequencyCache.put(haplotype, frequencies);
+      }
+      return frequencies;
+    }
+
+    /** @return The allele as it appears in the frequency tables */
+    private HLAType equivalentType(HLAType type) {
+      HLAType equivalent = equivalentTypes.get(type);
+      if (equivalent == null) {
+        equivalent = equivalentTypes.computeIfAbsent(type, t -> truncateFields(adjustNulls(AlleleGroups.getGGroup(t))));
+      }
+      return equivalent;
+    }
+
+    /** Look up a haplotype's frequencies in these tables, bypassing the cache */
+    private Frequencies lookupFrequencies(Haplotype haplotype) {
+      List<HLAType> equivTypes = new ArrayList<>(haplotype.getTypes().size());
+      haplotype.getTypes().forEach(t -> equivTypes.add(equivalentType(t)));
+      Haplotype equivHaplotype = new Haplotype(equivTypes);
+      double[] values = new double[ETHNICITIES];
+      FrequencyTable table = tableFor(FrequencyTable.lociOf(equivHaplotype), marginals);
+      if (table != null) {
+        table.getFrequencies(equivHaplotype, values);
+      }
+      BigDecimal[] decimals = new BigDecimal[ETHNICITIES];
+      for (int e = 0; e < ETHNICITIES; e++) {
+        decimals[e] = toBigDecimal(values[e]);
+      }
+      return new Frequencies(values, decimals);
+    }
+
+    /** @see HaplotypeFrequencies#getTable(Set) */
+    public Optional<FrequencyTable> getTable(Set<String> loci) {
+      return Optional.ofNullable(tableFor(loci, true));
+    }
+
+    /**
+     * @param loci Keys of the target loci, see {@link FrequencyTable#locusKey(HLAType)}
+     * @param marginal Whether a marginal table may be used
+     * @return The table with exactly these loci if one is loaded, otherwise the marginal table of the
+     *         smallest loaded table covering them if allowed. Null if there is no such table.
+     */
+    private FrequencyTable tableFor(Set<String> loci, boolean marginal) {
+      if (!isLoaded() || loci.isEmpty()) {
+        return null;
+      }
+      FrequencyTable covering = null;
+      for (FrequencyTable table : tables) {
+        if (table.getLoci().size() == loci.size() && table.covers(loci)) {
+          return table;
+        }
+        if (marginal && table.covers(loci) && (covering == null || table.getLoci().size() < covering.getLoci().size())) {
+          covering = table;
+        }
+      }
+      return covering == null ? null : covering.marginal(loci);
     }
 
-    private BigDecimal getFrequencyForEthnicity(RaceGroup e) {
-      return frequencyForEthnicity.get(e);
+    /** @see HaplotypeFrequencies#getKnownHaplotypes(HLAType) */
+    public Set<Haplotype> getKnownHaplotypes(HLAType allele) {
+      if (!isLoaded()) {
+        return ImmutableSet.of();
+      }
+      HLAType equivAllele = equivalentType(allele);
+      // An unmodifiable view over the indexed sets of each table, rather than a copy
+      Set<Haplotype> known = ImmutableSet.of();
+      for (FrequencyTable table : tables) {
+        Set<Haplotype> tableKnown = table.getKnownHaplotypes(equivAllele);
+        if (!tableKnown.isEmpty()) {
+          known = known.isEmpty() ? tableKnown : Sets.union(known, tableKnown);
+        }
+      }
+      return known;
     }
 
-    @Override
-    public String toString() {
-      return frequencyForEthnicity.toString();
+    /** @see HaplotypeFrequencies#getKnownHaplotypes(HLAType, Set) */
+    public Set<Haplotype> getKnownHaplotypes(HLAType allele, Set<String> loci) {
+      FrequencyTable table = tableFor(loci, marginals);
+      return table == null ? ImmutableSet.of() : table.getKnownHaplotypes(equivalentType(allele));
+    }
+
+    /** @see HaplotypeFrequencies#getMaxFrequency(RaceGroup) */
+    public BigDecimal getMaxFrequency(RaceGroup ethnicity) {
+      if (!isLoaded()) {
+        return BigDecimal.ZERO;
+      }
+      return toBigDecimal(tables.stream().mapToDouble(t -> t.getMaxFrequency(ethnicity)).max().orElse(0));
+    }
+
+    /** @see HaplotypeFrequencies#getMaxFrequency(RaceGroup, Set) */
+    public BigDecimal getMaxFrequency(RaceGroup ethnicity, Set<String> loci) {
+      FrequencyTable table = tableFor(loci, marginals);
+      return table == null ? BigDecimal.ZERO : toBigDecimal(table.getMaxFrequency(ethnicity));
     }
   }
+
+  /** Cached frequencies of a haplotype in each ethnicity, indexed by {@link RaceGroup#ordinal()} */
+  private record Frequencies(double[] values, BigDecimal[] decimals) {}
 }
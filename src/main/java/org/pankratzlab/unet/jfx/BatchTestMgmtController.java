@@ -27,6 +27,7 @@ import org.pankratzlab.unet.hapstats.CommonWellDocumented.SOURCE;
 import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
 import org.pankratzlab.unet.jfx.prop.DCProperty;
 import org.pankratzlab.unet.jfx.wizard.ValidationResultsController;
+import org.pankratzlab.unet.model.ValidationModel;
 import org.pankratzlab.unet.model.ValidationModelBuilder;
 import org.pankratzlab.unet.model.ValidationTable;
 import org.pankratzlab.unet.validation.AlertHelper;
@@ -482,18 +483,13 @@ public class BatchTestMgmtController {
           alert.showAndWait();
         }
 
-        SOURCE current = CommonWellDocumented.loadPropertyCWDSource();
         String currentRel = DonorCheckProperties.get().getProperty(AntigenDictionary.REL_DNA_SER_PROP);
 
         SOURCE source = selectedItem.cwdSource.get();
         String rel = selectedItem.relDnaSerFile.get();
-        boolean changedCWID = false;
         boolean changedRel = false;
-
-        if (current != source || !CommonWellDocumented.isLoaded()) {
-          CommonWellDocumented.loadCIWDVersion(source);
-          changedCWID = true;
-        }
+        // Show the test with its own CWD catalog, leaving the configured one in place
+        CommonWellDocumented.Catalog catalog = source == null ? CommonWellDocumented.current() : source.catalog();
         boolean alterRel = false;
         if (Strings.isNullOrEmpty(currentRel)) {
           if (!Strings.isNullOrEmpty(rel)) {
@@ -522,25 +518,9 @@ public class BatchTestMgmtController {
 
         List<WizardPane> pages = new ArrayList<>();
 
-        String f1 = selectedItem.filePaths.get().get(0);
-        String f2 = selectedItem.filePaths.get().get(1);
-        ValidationModelBuilder builder1 = new ValidationModelBuilder();
-        ValidationModelBuilder builder2 = new ValidationModelBuilder();
-        SourceType.parseFile(builder1, new File(f1));
-        SourceType.parseFile(builder2, new File(f2));
-        builder1.validate(false);
-        builder2.validate(false);
-        if (selectedItem.remapFile != null && selectedItem.remapFile.get() != null && new File(selectedItem.remapFile.get()).exists()) {
-          XMLRemapProcessor processor = new XMLRemapProcessor(selectedItem.remapFile.get());
-          if (builder1.hasCorrections() && processor.hasRemappings(builder1.getSourceType())) {
-            builder1.processCorrections(processor);
-          }
-          if (builder2.hasCorrections() && processor.hasRemappings(builder2.getSourceType())) {
-            builder2.processCorrections(processor);
-          }
-        }
-
         try {
+          List<ValidationModel> models = buildModels(selectedItem, catalog);
+
           LandingController.makePage(pages, table, LandingController.RESULTS_STEP, new ValidationResultsController());
           Wizard.Flow pageFlow = new LinearFlow(pages);
 
@@ -553,15 +533,15 @@ public class BatchTestMgmtController {
           validationWizard.setTitle("DonorCheck " + string);
           validationWizard.setFlow(pageFlow);
 
-          table.setFirstModel(builder1.build());
-          table.setSecondModel(builder2.build());
+          table.setCWDCatalog(catalog);
+          table.setFirstModel(models.get(0));
+          table.setSecondModel(models.get(1));
+          // The table shows the haplotypes once they are found
+          models.forEach(ValidationModel::prefetchHaplotypes);
 
           // show wizard and wait for response
           validationWizard.showAndWait();
 
-          if (changedCWID) {
-            CommonWellDocumented.loadCIWDVersion(current);
-          }
           if (changedRel) {
             if (currentRel == null) {
               DonorCheckProperties.get().setProperty(AntigenDictionary.REL_DNA_SER_PROP, "");
@@ -584,6 +564,36 @@ public class BatchTestMgmtController {
     new Thread(runValidationTask).start();
   }
 
+  /**
+   * Parse and build the models of a test's two files, using the given CWD catalog for the static
+   * lookups of the parsers
+   *
+   * @return The model of each file
+   */
+  @SuppressWarnings("try")
+  private static List<ValidationModel> buildModels(ValidationTestFileSet test, CommonWellDocumented.Catalog catalog) throws IOException {
+    try (CommonWellDocumented.Scope cwdScope = catalog.use()) {
+      String f1 = test.filePaths.get().get(0);
+      String f2 = test.filePaths.get().get(1);
+      ValidationModelBuilder builder1 = new ValidationModelBuilder();
+      ValidationModelBuilder builder2 = new ValidationModelBuilder();
+      SourceType.parseFile(builder1, new File(f1));
+      SourceType.parseFile(builder2, new File(f2));
+      builder1.validate(false);
+      builder2.validate(false);
+      if (test.remapFile != null && test.remapFile.get() != null && new File(test.remapFile.get()).exists()) {
+        XMLRemapProcessor processor = new XMLRemapProcessor(test.remapFile.get());
+        if (builder1.hasCorrections() && processor.hasRemappings(builder1.getSourceType())) {
+          builder1.processCorrections(processor);
+        }
+        if (builder2.hasCorrections() && processor.hasRemappings(builder2.getSourceType())) {
+          builder2.processCorrections(processor);
+        }
+      }
+      return List.of(builder1.build(), builder2.build());
+    }
+  }
+
   @FXML
   void openTestDirectory() {
     ValidationTestFileSet selectedItem = testTable.getSelectionModel().getSelectedItem();
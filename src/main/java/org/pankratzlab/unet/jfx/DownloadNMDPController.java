@@ -106,7 +106,8 @@ public class DownloadNMDPController {
   void selectFile(ActionEvent event, String tableTitle, StringProperty localProp) {
     FileChooser fc = CurrentDirectoryProvider.getFileChooser();
     fc.setTitle("Select " + tableTitle + " frequency table");
-    fc.getExtensionFilters().setAll(new ExtensionFilter("Excel", "*.xls"));
+    fc.getExtensionFilters().setAll(new ExtensionFilter("Frequency tables", "*.xls", "*.csv", "*.tsv", "*.txt", "*.gz"), new ExtensionFilter("Excel", "*.xls"),
+        new ExtensionFilter("Delimited text", "*.csv", "*.tsv", "*.txt", "*.csv.gz", "*.tsv.gz", "*.txt.gz"));
     File tableFile = fc.showOpenDialog(rootPane.getScene().getWindow());
     if (Objects.nonNull(tableFile) && tableFile.exists()) {
       localProp.setValue(tableFile.getAbsolutePath());
@@ -21,12 +21,15 @@
  */
 package org.pankratzlab.unet.jfx;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.ResourceBundle;
 import java.util.concurrent.ExecutionException;
 import javax.annotation.Nullable;
@@ -36,6 +39,7 @@ import org.controlsfx.dialog.WizardPane;
 import org.pankratzlab.unet.deprecated.hla.CurrentDirectoryProvider;
 import org.pankratzlab.unet.deprecated.hla.Info;
 import org.pankratzlab.unet.deprecated.jfx.JFXUtilHelper;
+import org.pankratzlab.unet.hapstats.CacheDiagnostics;
 import org.pankratzlab.unet.hapstats.CommonWellDocumented;
 import org.pankratzlab.unet.hapstats.CommonWellDocumented.SOURCE;
 import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
@@ -62,6 +66,7 @@ import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
+import javafx.scene.control.ButtonBar.ButtonData;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextArea;
@@ -295,6 +300,34 @@ public class LandingController {
     TypeValidationApp.hostServices.showDocument(WEBSITE_DONORCHECK_GITHUB);
   }
 
+  @FXML
+  void showCacheDiagnostics(ActionEvent event) {
+    String report = CacheDiagnostics.report();
+    TextArea textArea = new TextArea(report);
+    textArea.setEditable(false);
+
+    ButtonType export = new ButtonType("Export...", ButtonData.LEFT);
+    Alert alert = new Alert(AlertType.INFORMATION, "", export, ButtonType.CLOSE);
+    alert.setTitle("Cache diagnostics");
+    alert.setHeaderText("Reference data cache statistics");
+    alert.getDialogPane().setContent(textArea);
+    alert.setResizable(true);
+    if (alert.showAndWait().filter(export::equals).isEmpty()) {
+      return;
+    }
+
+    Optional<File> destination = DonorNetUtils.getFile(rootPane, "Export cache diagnostics", "donorcheck_caches", "Text", ".txt", false);
+    if (destination.isPresent()) {
+      try (PrintWriter pw = new PrintWriter(destination.get())) {
+        pw.write(report);
+      } catch (IOException e) {
+        Alert error = new Alert(AlertType.ERROR);
+        error.setHeaderText("Failed to save cache diagnostics to file: " + destination.get().getName());
+        error.showAndWait();
+      }
+    }
+  }
+
   @FXML
   void runValidation(ActionEvent event) throws IOException {
     // The way DonorCheck is set up, "validation" is run in two parts
@@ -22,9 +22,9 @@ public final class TutorialHelper {
     DownloadNMDPController dc = new DownloadNMDPController();
     showTutorial(NMDP_DOWNLOAD, dc, "Set Frequency Directory");
     if (dc.isDirty()) {
-      new Thread(JFXUtilHelper.createProgressTask(() -> {
-        HaplotypeFrequencies.doInitialization();
-      })).start();
+      // Loads in the background; the application, and any running search, keeps the current tables
+      // until the new ones are ready
+      HaplotypeFrequencies.reload();
     }
   }
 
@@ -25,6 +25,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Set;
 
+import org.pankratzlab.unet.parser.util.ReferenceDataWarmup;
+
 import com.google.common.collect.ImmutableSet;
 
 import javafx.application.Application;
@@ -56,6 +58,9 @@ public class TypeValidationApp extends Application {
     // Retain the HostServices for later
     TypeValidationApp.hostServices = getHostServices();
 
+    // Read reference data while the user picks their files
+    ReferenceDataWarmup.start();
+
     // Set the Title to the Stage
     primaryStage.setTitle(APP_TITLE);
     primaryStage.getIcons().add(new Image(TypeValidationApp.class.getResourceAsStream(ICON_PATH)));
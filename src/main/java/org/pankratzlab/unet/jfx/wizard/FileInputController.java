@@ -55,7 +55,6 @@ import javafx.beans.value.ObservableBooleanValue;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
-import javafx.concurrent.Worker;
 import javafx.concurrent.WorkerStateEvent;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
@@ -81,6 +80,7 @@ import javafx.scene.text.Font;
 public class FileInputController extends AbstractValidatingWizardController {
 
   private static final String FILE_DISPLAY_CLASS = "file-display";
+  private static final long SKIP_HAPLOTYPES_PROMPT_SECONDS = 10;
 
   private ObservableList<ReadOnlyObjectWrapper<File>> selectedFileProperties = FXCollections.observableArrayList();
 
@@ -256,11 +256,18 @@ public class FileInputController extends AbstractValidatingWizardController {
   private void finish(DonorFileParser donorParser, BiConsumer<ValidationTable, ValidationModel> setter, ReadOnlyObjectWrapper<File> linkedFile,
       File selectedFile, ValidationModelBuilder builder) {
 
-    ScheduledExecutorService dialogScheduler = Executors.newSingleThreadScheduledExecutor();
+    ValidationTable table = getTable();
 
     Task<Void> buildModelText = JFXUtilHelper.createProgressTask(() -> {
-      // valid model, build and set
-      setter.accept(getTable(), builder.build());
+      // valid model, build and set. Haplotypes are shown as they are found, and the search stops at
+      // the time limit with the most likely haplotypes found so far.
+      long timeLimit = haplotypeTimeLimit();
+      ValidationModel model =
+          builder.build(timeLimit, TimeUnit.SECONDS, (bc, drdq) -> Platform.runLater(() -> table.setProvisionalHaplotypes(bc, drdq)));
+      setter.accept(table, model);
+      // The table shows the haplotypes once the search completes
+      model.prefetchHaplotypes();
+      offerToSkipHaplotypes(model, timeLimit);
     });
 
     EventHandler<WorkerStateEvent> succeededHandler = buildModelText.getOnSucceeded();
@@ -285,45 +292,61 @@ public class FileInputController extends AbstractValidatingWizardController {
       });
     });
 
+    new Thread(buildModelText).start();
+  }
 
-    Thread backgroundThread = new Thread(buildModelText);
-
-    long timeoutThreshold = 10;
-    TimeUnit timeoutUnit = TimeUnit.SECONDS;
+  /**
+   * If the haplotype search of the given model is still running after
+   * {@link #SKIP_HAPLOTYPES_PROMPT_SECONDS}, offer to stop it with the most likely haplotypes found
+   * so far
+   *
+   * @param timeLimit Seconds the search is limited to, or negative for no limit
+   */
+  private void offerToSkipHaplotypes(ValidationModel model, long timeLimit) {
+    if (timeLimit >= 0 && timeLimit <= SKIP_HAPLOTYPES_PROMPT_SECONDS) {
+      // The search stops on its own first
+      return;
+    }
+    ScheduledExecutorService dialogScheduler = Executors.newSingleThreadScheduledExecutor();
 
     // Schedule the dialog to appear after the timeout
     dialogScheduler.schedule(() -> {
-      if (backgroundThread.isAlive()) {
-        Platform.runLater(() -> {
-          Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
-          alert.setTitle("Calculation in Progress");
-          alert.setHeaderText("Haplotype computation is taking longer than expected.");
-          alert.setContentText(
-              "This is an optional calculation. You can skip this step to finish building the model now. Primary file data will be present, but some haplotype information may be incomplete.");
-
-          ButtonType skipButton = new ButtonType("Skip This Step", ButtonBar.ButtonData.CANCEL_CLOSE);
-          ButtonType waitButton = new ButtonType("Keep Waiting", ButtonBar.ButtonData.OK_DONE);
-          alert.getButtonTypes().setAll(waitButton, skipButton);
-
-          alert.showAndWait().ifPresent(response -> {
-            if (response == skipButton) {
-              // We interrupt the thread directly, not the task.
-              backgroundThread.interrupt();
-            }
-          });
+      Platform.runLater(() -> {
+        if (model.haplotypesComputed()) {
+          return;
+        }
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+        alert.setTitle("Calculation in Progress");
+        alert.setHeaderText("Haplotype computation is taking longer than expected.");
+        alert.setContentText(
+            "This is an optional calculation. You can skip this step to use the most likely haplotypes found so far. Primary file data will be present, but some haplotype information may be incomplete.");
+
+        ButtonType skipButton = new ButtonType("Skip This Step", ButtonBar.ButtonData.CANCEL_CLOSE);
+        ButtonType waitButton = new ButtonType("Keep Waiting", ButtonBar.ButtonData.OK_DONE);
+        alert.getButtonTypes().setAll(waitButton, skipButton);
+        // Nothing left to skip once the search finishes
+        model.whenHaplotypesComputed(() -> Platform.runLater(alert::close));
+
+        alert.showAndWait().ifPresent(response -> {
+          if (response == skipButton && !model.haplotypesComputed()) {
+            model.stopHaplotypeSearch();
+          }
         });
-      }
-    }, timeoutThreshold, timeoutUnit);
+      });
+    }, SKIP_HAPLOTYPES_PROMPT_SECONDS, TimeUnit.SECONDS);
+    dialogScheduler.shutdown();
 
-    // Now, start the background thread
-    backgroundThread.start();
+    // Finally, don't show the dialog if the search finishes first
+    model.whenHaplotypesComputed(dialogScheduler::shutdownNow);
+  }
 
-    // Finally, ensure the scheduler is shut down when the task finishes for any reason.
-    buildModelText.stateProperty().addListener((obs, oldState, newState) -> {
-      if (newState == Worker.State.SUCCEEDED || newState == Worker.State.FAILED || newState == Worker.State.CANCELLED) {
-        dialogScheduler.shutdownNow();
-      }
-    });
+  /** @return Seconds to spend searching for haplotypes, or negative for no limit */
+  private long haplotypeTimeLimit() {
+    try {
+      return Long.parseLong(DonorCheckProperties.getOrDefault(DonorCheckProperties.HAPLOTYPE_SEARCH_TIME_LIMIT).trim());
+    } catch (NumberFormatException e) {
+      return Long.parseLong(DonorCheckProperties.HAPLOTYPE_SEARCH_TIME_LIMIT_DEFAULT);
+    }
   }
 
   /**
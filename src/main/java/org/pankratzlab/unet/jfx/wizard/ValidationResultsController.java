@@ -32,7 +32,6 @@ import java.util.Set;
 import javax.imageio.ImageIO;
 import org.pankratzlab.unet.deprecated.hla.HLAType;
 import org.pankratzlab.unet.deprecated.hla.NullType;
-import org.pankratzlab.unet.hapstats.CommonWellDocumented;
 import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
 import org.pankratzlab.unet.jfx.DonorNetUtils;
 import org.pankratzlab.unet.model.BCHaplotypeRow;
@@ -505,7 +504,7 @@ public class ValidationResultsController extends AbstractValidatingWizardControl
    * Helper class to color cells when the row's haplotype is unknown or individual alleles are not
    * common
    */
-  private static class HaplotypeCellFactory<T extends HaplotypeRow> implements Callback<TableColumn<T, HLAType>, TableCell<T, HLAType>> {
+  private class HaplotypeCellFactory<T extends HaplotypeRow> implements Callback<TableColumn<T, HLAType>, TableCell<T, HLAType>> {
 
     @Override
     public TableCell<T, HLAType> call(TableColumn<T, HLAType> param) {
@@ -535,7 +534,7 @@ public class ValidationResultsController extends AbstractValidatingWizardControl
             }
           }
 
-          switch (CommonWellDocumented.getEquivStatus(allele)) {
+          switch (getTable().getEquivStatus(allele)) {
             case UNKNOWN:
               getStyleClass().add(0, UK_ALLELE_CLASS);
               break;
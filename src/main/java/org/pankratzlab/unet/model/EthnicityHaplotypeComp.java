@@ -0,0 +1,70 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.model;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import org.pankratzlab.unet.hapstats.Haplotype;
+import org.pankratzlab.unet.hapstats.RaceGroup;
+
+/**
+ * {@link Comparator} to sort collections of {@link Haplotype}s based on their frequency and the CWD
+ * status of their alleles.
+ */
+class EthnicityHaplotypeComp implements Comparator<ScoredHaplotypes> {
+  private static final Map<RaceGroup, EthnicityHaplotypeComp> comparators = new EnumMap<>(RaceGroup.class);
+
+  static {
+    for (RaceGroup ethnicity : RaceGroup.values()) {
+      comparators.put(ethnicity, new EthnicityHaplotypeComp(ethnicity));
+    }
+  }
+
+  private RaceGroup ethnicity;
+
+  EthnicityHaplotypeComp(RaceGroup e) {
+    this.ethnicity = e;
+  }
+
+  /** @return The shared comparator instance for the given ethnicity */
+  static EthnicityHaplotypeComp of(RaceGroup e) {
+    return comparators.get(e);
+  }
+
+  /** @return The ethnicity whose scores this comparator ranks by */
+  RaceGroup getEthnicity() {
+    return ethnicity;
+  }
+
+  @Override
+  public int compare(ScoredHaplotypes o1, ScoredHaplotypes o2) {
+
+    int result = o1.compareTo(o2, ethnicity);
+
+    if (result == 0) {
+      // If the scores are the same, we compare the unique HLATypes between these two
+      result = o2.getTieBreakKey().compareUnshared(o1.getTieBreakKey());
+    }
+    return result;
+  }
+}
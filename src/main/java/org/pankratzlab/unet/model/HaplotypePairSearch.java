@@ -0,0 +1,1147 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.pankratzlab.unet.deprecated.hla.DonorCheckProperties;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.hapstats.CommonWellDocumented;
+import org.pankratzlab.unet.hapstats.FrequencyTable;
+import org.pankratzlab.unet.hapstats.Haplotype;
+import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
+import org.pankratzlab.unet.hapstats.RaceGroup;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+/**
+ * Exact branch-and-bound search for the most likely pair of {@link Haplotype}s given a set of
+ * per-locus, per-{@link Strand} candidate alleles.
+ *
+ * <p>
+ * The search space is the same as an exhaustive enumeration of strand one/strand two combinations:
+ * at each locus only the candidates with the best CWD weight for their strand are considered, and
+ * only the first locus fixes which strand contributes to the first haplotype. Rather than scoring
+ * every combination, each complete first haplotype is given an optimistic upper bound (its own CWD
+ * weight and frequency plus the best weight and frequency any complementary haplotype could have),
+ * and is skipped if that bound can not beat the current best pair. If more than one pair is ranked
+ * per ethnicity (see {@link #setRankedPairCount(int)}), the bound must instead beat the lowest
+ * ranked pair once the ranking is full. First haplotypes are expanded
+ * most-promising first so a strong incumbent is found early.
+ *
+ * <p>
+ * Most allele combinations do not appear in the frequency tables. The index of
+ * {@link HaplotypeFrequencies#getKnownHaplotypes(HLAType, Set)} identifies the candidates that form known
+ * haplotypes without looking any others up. Each first haplotype is paired with the known second
+ * haplotypes first; the remaining, unknown, second haplotypes are only enumerated if a pair with no
+ * frequency for its second haplotype could still improve on the best pairs found.
+ *
+ * <p>
+ * Mirrored pairs are only enumerated once: loci are visited with the fewest candidates first, and
+ * the second haplotype may never sort ahead of the first at the first locus where they differ. The
+ * reported orientation of each pair is the one the exhaustive search would have selected.
+ *
+ * <p>
+ * If more than one thread is requested, the first haplotypes are split between fork/join tasks.
+ * Each task keeps its own best pairs, and the tasks are merged with the {@link EthnicityHaplotypeComp}
+ * ordering; as no two distinct pairs compare equal the result does not depend on how the work was
+ * split. Tasks share their best scores so far, so any task can prune with a pair found by another.
+ *
+ * <p>
+ * The search can be given a deadline, or {@link #stop() stopped} at any time, after which it
+ * returns the best pairs found so far (see {@link #isOptimal()}), and a listener to be notified each time a better pair is found.
+ *
+ * <p>
+ * Inputs with many candidates per strand can make even the pruned search too large. For these an
+ * approximate beam search can be used instead (see {@link #setBeamWidth(int)}), which builds pairs
+ * one locus at a time and keeps only the most promising partial pairs at each step. Its results are
+ * not guaranteed to be the most likely; {@link #getEstimatedPairs()} gives the size of the full
+ * search space to decide between the two.
+ *
+ * <p>
+ * Searches over overlapping candidates can share a {@link Memo}, so per-locus candidate lists,
+ * haplotype frequencies and scored pairs common to both are only computed once.
+ */
+class HaplotypePairSearch {
+
+  /**
+   * The exhaustive search this replaces shared a single best-so-far pair between all ethnicities and
+   * only consulted the ordering of this ethnicity when updating it. The best pair by this ordering is
+   * reported for every ethnicity, so the reported haplotypes are unchanged. The other ranked pairs of
+   * each ethnicity are ordered by its own scores.
+   */
+  static final RaceGroup RANKING_ETHNICITY = RaceGroup.AFA;
+
+  /** Slack for floating point error when comparing a bound against an actual score */
+  private static final double BOUND_TOLERANCE = 1e-12;
+
+  /** Number of tasks to aim for per thread, so idle threads can steal work from busy ones */
+  private static final int TASKS_PER_THREAD = 4;
+
+  /** Frequencies of a haplotype that is not in the frequency tables */
+  private static final double[] NO_FREQUENCIES = new double[RaceGroup.values().length];
+
+  /**
+   * Pools for parallel searches, by parallelism. Searches running when the configured parallelism
+   * changes keep their pool, and the workers of an unused pool exit once idle.
+   */
+  private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+  private final List<LocusOptions> loci = new ArrayList<>();
+  private final List<LocusOptions> visitOrder;
+  private final int firstLocusIndex;
+  /** Position in {@link #candidatesByCode} contributed by each candidate index, per visited locus */
+  private final int[] strides;
+  /** Every possible haplotype, indexed by the mixed-radix code of its candidate indices */
+  private List<StrandOneCandidate> candidatesByCode = ImmutableList.of();
+  /** The possible haplotypes with a frequency in any ethnicity, most frequent first */
+  private List<StrandOneCandidate> knownCandidates = ImmutableList.of();
+  private final int parallelism;
+  private final Memo memo;
+  private final double[] maxFrequencies = new double[RaceGroup.values().length];
+  private final LongAdder nodesExplored = new LongAdder();
+  private final LongAdder nodesPruned = new LongAdder();
+  private volatile boolean cancelled = false;
+  private long deadline;
+  private boolean hasDeadline = false;
+  private volatile boolean timedOut = false;
+  private volatile boolean stopped = false;
+  private Consumer<Map<RaceGroup, ScoredHaplotypes>> progressListener = null;
+  private Consumer<ScoredHaplotypes> publisher = null;
+  private int rankedPairCount = 1;
+  private int beamWidth = 0;
+  private final long estimatedPairs;
+  private Map<RaceGroup, List<ScoredHaplotypes>> rankedPairs = new EnumMap<>(RaceGroup.class);
+
+  /**
+   * Create a search using the number of threads set in {@link DonorCheckProperties}.
+   *
+   * @param typesByLocus List of mappings, one per locus, of {@link Strand} to possible alleles for
+   *        that strand. These should already be pruned of unknown alleles and condensed to groups.
+   */
+  HaplotypePairSearch(List<Multimap<Strand, HLAType>> typesByLocus) {
+    this(typesByLocus, configuredParallelism());
+  }
+
+  /**
+   * @param typesByLocus List of mappings, one per locus, of {@link Strand} to possible alleles for
+   *        that strand. These should already be pruned of unknown alleles and condensed to groups.
+   * @param parallelism Number of threads to search with. The search runs on the calling thread if
+   *        this is 1 or less.
+   */
+  HaplotypePairSearch(List<Multimap<Strand, HLAType>> typesByLocus, int parallelism) {
+    this(typesByLocus, parallelism, new Memo());
+  }
+
+  /**
+   * @param typesByLocus List of mappings, one per locus, of {@link Strand} to possible alleles for
+   *        that strand. These should already be pruned of unknown alleles and condensed to groups.
+   * @param parallelism Number of threads to search with. The search runs on the calling thread if
+   *        this is 1 or less.
+   * @param memo Results to share with other searches
+   */
+  HaplotypePairSearch(List<Multimap<Strand, HLAType>> typesByLocus, int parallelism, Memo memo) {
+    this.parallelism = parallelism;
+    this.memo = memo;
+    // Frequencies and known haplotypes are those of haplotypes spanning exactly the searched loci
+    Set<String> tableLoci = typesByLocus.stream().flatMap(t -> t.values().stream()).map(FrequencyTable::locusKey).collect(ImmutableSet.toImmutableSet());
+    for (int i = 0; i < typesByLocus.size(); i++) {
+      loci.add(memo.locusOptions(typesByLocus.get(i), tableLoci));
+    }
+    List<Integer> visitIndices = new ArrayList<>();
+    for (int i = 0; i < loci.size(); i++) {
+      visitIndices.add(i);
+    }
+    visitIndices.sort(Comparator.comparingInt(i -> loci.get(i).strandOneCandidates.size()));
+    visitOrder = new ArrayList<>();
+    visitIndices.forEach(i -> visitOrder.add(loci.get(i)));
+    firstLocusIndex = visitIndices.indexOf(0);
+
+    for (RaceGroup e : RaceGroup.values()) {
+      maxFrequencies[e.ordinal()] = memo.frequencyTables().getMaxFrequency(e, tableLoci).doubleValue();
+    }
+
+    strides = new int[visitOrder.size()];
+    int stride = 1;
+    for (int i = strides.length - 1; i >= 0; i--) {
+      strides[i] = stride;
+      stride *= visitOrder.get(i).strandOneCandidates.size();
+    }
+
+    long pairs = 1;
+    for (LocusOptions locus : loci) {
+      long locusPairs = Arrays.stream(locus.strandTwoOptions).mapToLong(o -> o.length).sum();
+      pairs = locusPairs > 0 && pairs > Long.MAX_VALUE / locusPairs ? Long.MAX_VALUE : pairs * locusPairs;
+    }
+    estimatedPairs = pairs;
+  }
+
+  /**
+   * @return The highest-scoring haplotype pair for each ethnicity, or the highest found before the
+   *         deadline. Empty if no pairs are possible.
+   * @throws InterruptedException If the calling thread is interrupted during the search
+   */
+  Map<RaceGroup, ScoredHaplotypes> search() throws InterruptedException {
+    if (loci.isEmpty() || loci.get(0).firstStrandTypes.isEmpty()) {
+      // The first haplotype must draw its first locus from the first strand
+      return new BestPairs().asMap();
+    }
+
+    if (beamWidth > 0) {
+      BestPairs best = searchBeam();
+      rankedPairs = best.asRankedMap();
+      return best.asMap();
+    }
+
+    List<StrandOneCandidate> strandOnes = new ArrayList<>();
+    generateStrandOneHaplotypes(strandOnes, new int[visitOrder.size()], 0, null);
+    // Every second haplotype is also a possible first haplotype, as each locus offers the second
+    // strand a subset of the first strand's candidates
+    candidatesByCode = ImmutableList.copyOf(strandOnes);
+    List<StrandOneCandidate> known = new ArrayList<>();
+    strandOnes.stream().filter(c -> c.known).forEach(known::add);
+    known.sort(Comparator.comparingDouble(StrandOneCandidate::maxFrequency).reversed());
+    knownCandidates = ImmutableList.copyOf(known);
+    if (timedOut) {
+      // Second haplotypes can only be looked up once every candidate is known
+      return new BestPairs().asMap();
+    }
+
+    // Expand the most promising first haplotypes first
+    strandOnes.sort(Comparator.comparingDouble(StrandOneCandidate::maxBound).reversed());
+
+    BestPairs best;
+    if (parallelism <= 1 || strandOnes.size() < 2) {
+      best = searchStrandTwo(strandOnes, newBestPairs(null));
+    } else {
+      best = searchInParallel(strandOnes);
+    }
+    rankedPairs = best.asRankedMap();
+    return best.asMap();
+  }
+
+  /**
+   * @param deadlineNanos {@link System#nanoTime()} at which to stop searching and report the best
+   *        pairs found so far
+   */
+  void setDeadline(long deadlineNanos) {
+    deadline = deadlineNanos;
+    hasDeadline = true;
+  }
+
+  /**
+   * Stop the search as if its deadline had passed, so it reports the best pairs found so far. Can
+   * be called from any thread, before or during the search.
+   */
+  void stop() {
+    stopped = true;
+  }
+
+  /**
+   * @param listener Notified with the best pairs found so far each time they improve. Notifications
+   *        may come from worker threads, but are never concurrent.
+   */
+  void setProgressListener(Consumer<Map<RaceGroup, ScoredHaplotypes>> listener) {
+    progressListener = listener;
+  }
+
+  /** @param count Number of pairs to rank for each ethnicity, see {@link #getRankedPairs()} */
+  void setRankedPairCount(int count) {
+    rankedPairCount = Math.max(1, count);
+  }
+
+  /**
+   * @return The highest-scoring haplotype pairs of each ethnicity found by the last
+   *         {@link #search()}. The first is the pair reported for the ethnicity, see
+   *         {@link #RANKING_ETHNICITY}, followed by the others in order of the ethnicity's own score.
+   *         At most {@link #setRankedPairCount(int)} pairs are kept for each ethnicity.
+   */
+  Map<RaceGroup, List<ScoredHaplotypes>> getRankedPairs() {
+    return rankedPairs;
+  }
+
+  /**
+   * @param width Number of partial pairs to keep at each locus, or 0 to search exhaustively. A beam
+   *        search runs on the calling thread and its results may not be the most likely pairs.
+   */
+  void setBeamWidth(int width) {
+    beamWidth = Math.max(0, width);
+  }
+
+  /**
+   * @return The number of allele pairings an exhaustive search would consider, before pruning:
+   *         the product over loci of the possible strand one/strand two combinations. Saturates at
+   *         {@link Long#MAX_VALUE}.
+   */
+  long getEstimatedPairs() {
+    return estimatedPairs;
+  }
+
+  /**
+   * @return true if the last {@link #search()} covered every pair, so its results are the best
+   *         possible. false if it stopped at the deadline, was stopped, or was a beam search.
+   */
+  boolean isOptimal() {
+    return !timedOut && beamWidth == 0;
+  }
+
+  /** @return Number of search nodes visited by the last {@link #search()} */
+  long getNodesExplored() {
+    return nodesExplored.sum();
+  }
+
+  /** @return Number of search subtrees skipped by the last {@link #search()} */
+  long getNodesPruned() {
+    return nodesPruned.sum();
+  }
+
+  /**
+   * @return The number of threads to search with, from {@link DonorCheckProperties}. Any value less
+   *         than 1 uses all available processors.
+   */
+  static int configuredParallelism() {
+    int threads;
+    try {
+      threads = Integer.parseInt(DonorCheckProperties.getOrDefault(DonorCheckProperties.HAPLOTYPE_SEARCH_THREADS).trim());
+    } catch (NumberFormatException e) {
+      threads = 0;
+    }
+    return threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+  }
+
+  /** @return true if the deadline has passed or the search was stopped, so it should stop */
+  private boolean pastDeadline() {
+    if (!timedOut && (stopped || hasDeadline && System.nanoTime() - deadline >= 0)) {
+      timedOut = true;
+    }
+    return timedOut;
+  }
+
+  /**
+   * @param floors Best scores shared between tasks, or null if the search is not split
+   * @return An empty {@link BestPairs} which reports its improvements to the progress listener
+   */
+  private BestPairs newBestPairs(DoubleAccumulator[] floors) {
+    BestPairs best = new BestPairs(rankedPairCount, floors);
+    if (progressListener != null) {
+      best.improvementListener = publisher();
+    }
+    return best;
+  }
+
+  /** @return A listener combining the improvements of every task for the progress listener */
+  private synchronized Consumer<ScoredHaplotypes> publisher() {
+    if (publisher == null) {
+      BestPairs published = new BestPairs();
+      publisher = candidate -> {
+        synchronized (published) {
+          if (published.offer(candidate)) {
+            progressListener.accept(published.asMap());
+          }
+        }
+      };
+    }
+    return publisher;
+  }
+
+  /** @return The number of pairs to rank for each ethnicity, from {@link DonorCheckProperties} */
+  static int configuredRankedPairCount() {
+    try {
+      return Math.max(1, Integer.parseInt(DonorCheckProperties.getOrDefault(DonorCheckProperties.HAPLOTYPE_PAIR_COUNT).trim()));
+    } catch (NumberFormatException e) {
+      return Integer.parseInt(DonorCheckProperties.HAPLOTYPE_PAIR_COUNT_DEFAULT);
+    }
+  }
+
+  /**
+   * @return The number of allele pairings above which the approximate beam search is used, from
+   *         {@link DonorCheckProperties}. Negative if the exact search should always be used.
+   */
+  static long configuredExactSearchLimit() {
+    try {
+      return Long.parseLong(DonorCheckProperties.getOrDefault(DonorCheckProperties.HAPLOTYPE_EXACT_SEARCH_LIMIT).trim());
+    } catch (NumberFormatException e) {
+      return Long.parseLong(DonorCheckProperties.HAPLOTYPE_EXACT_SEARCH_LIMIT_DEFAULT);
+    }
+  }
+
+  /** @return The beam width for approximate searches, from {@link DonorCheckProperties} */
+  static int configuredBeamWidth() {
+    try {
+      return Math.max(1, Integer.parseInt(DonorCheckProperties.getOrDefault(DonorCheckProperties.HAPLOTYPE_BEAM_WIDTH).trim()));
+    } catch (NumberFormatException e) {
+      return Integer.parseInt(DonorCheckProperties.HAPLOTYPE_BEAM_WIDTH_DEFAULT);
+    }
+  }
+
+  /** @return The shared pool for parallel searches with the given number of threads */
+  private static ForkJoinPool getPool(int parallelism) {
+    return POOLS.computeIfAbsent(parallelism, ForkJoinPool::new);
+  }
+
+  /** Pair each of the given first haplotypes with their complements, in order */
+  private BestPairs searchStrandTwo(List<StrandOneCandidate> strandOnes, BestPairs best) throws InterruptedException {
+    // Reused for the approximate scores of every pair
+    double[] scores = new double[RaceGroup.values().length];
+    for (StrandOneCandidate strandOne : strandOnes) {
+      checkInterrupt();
+      if (pastDeadline()) {
+        break;
+      }
+      if (!best.canImprove(strandOne.bounds)) {
+        nodesPruned.increment();
+        continue;
+      }
+      for (StrandOneCandidate strandTwo : knownCandidates) {
+        if (timedOut) {
+          break;
+        }
+        nodesExplored.increment();
+        if (isComplement(strandOne, strandTwo)) {
+          scorePair(best, scores, strandOne, strandTwo);
+        }
+      }
+      // Fall back to the unknown second haplotypes only if one could still make a ranked pair
+      if (!best.canImprove(strandOne.unknownComplementBounds)) {
+        nodesPruned.increment();
+        continue;
+      }
+      generateStrandTwoHaplotypes(best, scores, strandOne, 0, 0, true);
+    }
+    return best;
+  }
+
+  /**
+   * @return true if the second haplotype can be paired with the first, and the pair is not the
+   *         mirror of one that is visited instead. The same pairs are accepted as by
+   *         {@link #generateStrandTwoHaplotypes}.
+   */
+  private boolean isComplement(StrandOneCandidate strandOne, StrandOneCandidate strandTwo) {
+    boolean tied = true;
+    for (int depth = 0; depth < visitOrder.size(); depth++) {
+      LocusOptions locus = visitOrder.get(depth);
+      int strandOneIndex = strandOne.indices[depth];
+      int strandTwoIndex = strandTwo.indices[depth];
+      if (!locus.canPair[strandOneIndex][strandTwoIndex]) {
+        return false;
+      }
+      if (tied) {
+        int c = Integer.compare(locus.sortRank[strandTwoIndex], locus.sortRank[strandOneIndex]);
+        if (c > 0) {
+          return false;
+        }
+        tied = c == 0;
+      }
+    }
+    return true;
+  }
+
+  /** Score the given pair, if it could be ranked */
+  private void scorePair(BestPairs best, double[] scores, StrandOneCandidate strandOne, StrandOneCandidate strandTwo) throws InterruptedException {
+    ScoredHaplotypes.approximateScores(strandOne.cwd + strandTwo.cwd, strandOne.frequencies, strandTwo.frequencies, scores);
+    // Only pairs that could become the new best are scored exactly
+    if (best.mayAccept(scores)) {
+      best.offer(memo.score(orient(strandOne, strandTwo)));
+    }
+  }
+
+  /** Split the given first haplotypes between fork/join tasks and merge their results */
+  private BestPairs searchInParallel(List<StrandOneCandidate> strandOnes) throws InterruptedException {
+    DoubleAccumulator[] floors = new DoubleAccumulator[RaceGroup.values().length];
+    for (int i = 0; i < floors.length; i++) {
+      floors[i] = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+    }
+    int chunkSize = Math.max(1, strandOnes.size() / (parallelism * TASKS_PER_THREAD));
+    SearchTask task = new SearchTask(strandOnes, floors, chunkSize);
+
+    getPool(parallelism).execute(task);
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      // Worker threads do not see our interrupt, so stop them explicitly
+      cancelled = true;
+      task.cancel(true);
+      throw e;
+    } catch (CancellationException e) {
+      cancelled = true;
+      throw new InterruptedException();
+    } catch (ExecutionException e) {
+      cancelled = true;
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Build pairs one locus at a time, in visit order, keeping only the {@link #beamWidth} partial pairs
+   * with the best estimated score after each locus. Each complete pair left at the end is scored.
+   */
+  private BestPairs searchBeam() throws InterruptedException {
+    BestPairs best = newBestPairs(null);
+    List<BeamState> beam = ImmutableList.of(new BeamState());
+    for (int depth = 0; depth < visitOrder.size(); depth++) {
+      LocusOptions locus = visitOrder.get(depth);
+      List<BeamState> expanded = new ArrayList<>();
+      for (BeamState state : beam) {
+        for (int strandOneIndex = 0; strandOneIndex < locus.strandOneCandidates.size(); strandOneIndex++) {
+          checkInterrupt();
+          if (pastDeadline()) {
+            return best;
+          }
+          for (int strandTwoIndex : locus.strandTwoOptions[strandOneIndex]) {
+            int c = state.tied ? Integer.compare(locus.sortRank[strandTwoIndex], locus.sortRank[strandOneIndex]) : -1;
+            if (c > 0) {
+              // The mirrored pair is visited with these haplotypes swapped
+              continue;
+            }
+            nodesExplored.increment();
+            expanded.add(new BeamState(state, depth, strandOneIndex, strandTwoIndex, c == 0));
+          }
+        }
+      }
+      // Stable, so equally promising pairs are kept in the order they were generated
+      expanded.sort(Comparator.comparingDouble((BeamState state) -> state.estimate).reversed());
+      if (expanded.size() > beamWidth) {
+        nodesPruned.add(expanded.size() - beamWidth);
+        expanded = expanded.subList(0, beamWidth);
+      }
+      beam = expanded;
+    }
+
+    double[] scores = new double[RaceGroup.values().length];
+    for (BeamState state : beam) {
+      checkInterrupt();
+      scorePair(best, scores, new StrandOneCandidate(state.strandOne, isKnown(state.knownOne)),
+          new StrandOneCandidate(state.strandTwo, isKnown(state.knownTwo)));
+    }
+    return best;
+  }
+
+  /**
+   * @param knownHaplotypes The known haplotypes containing every allele of a complete haplotype
+   * @return true if the haplotype itself is known: a known haplotype containing all of its alleles,
+   *         and nothing more, is the haplotype
+   */
+  private boolean isKnown(Set<Haplotype> knownHaplotypes) {
+    return knownHaplotypes.stream().anyMatch(h -> h.getTypes().size() == visitOrder.size());
+  }
+
+  /**
+   * @param knownHaplotypes The known haplotypes containing every allele chosen so far, or null if no
+   *        allele has been chosen
+   * @return The known haplotypes that also contain the given candidate
+   */
+  private Set<Haplotype> stillKnown(Set<Haplotype> knownHaplotypes, LocusOptions locus, int index) {
+    Set<Haplotype> candidateKnown = locus.knownHaplotypes.get(index);
+    if (knownHaplotypes == null) {
+      return candidateKnown;
+    }
+    // Guava iterates the first set, so it should be the smaller
+    return knownHaplotypes.size() <= candidateKnown.size() ? Sets.intersection(knownHaplotypes, candidateKnown).immutableCopy()
+        : Sets.intersection(candidateKnown, knownHaplotypes).immutableCopy();
+  }
+
+  /**
+   * @return The highest {@link #RANKING_ETHNICITY} frequency of any complete haplotype among the
+   *         given known haplotypes, or 0 if there are none
+   */
+  private double bestFrequency(Set<Haplotype> knownHaplotypes) {
+    double frequency = 0;
+    for (Haplotype h : knownHaplotypes) {
+      if (h.getTypes().size() == visitOrder.size()) {
+        frequency = Math.max(frequency, memo.frequencies(h)[RANKING_ETHNICITY.ordinal()]);
+      }
+    }
+    return frequency;
+  }
+
+  /**
+   * Recursively generate all possible haplotypes for the "first" strand, recording each along with
+   * its score bound.
+   *
+   * @param knownHaplotypes The known haplotypes containing every allele chosen so far, or null if no
+   *        allele has been chosen
+   */
+  private void generateStrandOneHaplotypes(List<StrandOneCandidate> strandOnes, int[] indices, int depth, Set<Haplotype> knownHaplotypes)
+      throws InterruptedException {
+    checkInterrupt();
+    nodesExplored.increment();
+
+    if (depth == visitOrder.size()) {
+      strandOnes.add(new StrandOneCandidate(indices.clone(), isKnown(knownHaplotypes)));
+      return;
+    }
+
+    LocusOptions locus = visitOrder.get(depth);
+    for (int i = 0; i < locus.strandOneCandidates.size() && !pastDeadline(); i++) {
+      indices[depth] = i;
+      generateStrandOneHaplotypes(strandOnes, indices, depth + 1, stillKnown(knownHaplotypes, locus, i));
+    }
+  }
+
+  /**
+   * Recursively generate all possible haplotypes for the "second" strand, complementary to the given
+   * first haplotype, and score the resulting pairs with unknown second haplotypes.
+   *
+   * @param scores Scratch space for the approximate scores of each pair
+   * @param code Mixed-radix code of the second haplotype so far
+   * @param tied Whether the second haplotype is so far identical to the first. While tied, the second
+   *        haplotype may not sort ahead of the first, so each mirrored pair is only visited once.
+   */
+  private void generateStrandTwoHaplotypes(BestPairs best, double[] scores, StrandOneCandidate strandOne, int depth, int code, boolean tied)
+      throws InterruptedException {
+    checkInterrupt();
+    nodesExplored.increment();
+
+    if (depth == visitOrder.size()) {
+      StrandOneCandidate strandTwo = candidatesByCode.get(code);
+      // Known second haplotypes were already paired
+      if (!strandTwo.known) {
+        scorePair(best, scores, strandOne, strandTwo);
+      }
+      return;
+    }
+
+    LocusOptions locus = visitOrder.get(depth);
+    int strandOneIndex = strandOne.indices[depth];
+    for (int strandTwoIndex : locus.strandTwoOptions[strandOneIndex]) {
+      if (timedOut) {
+        return;
+      }
+      int c = tied ? Integer.compare(locus.sortRank[strandTwoIndex], locus.sortRank[strandOneIndex]) : -1;
+      if (c > 0) {
+        // The mirrored pair is visited with these haplotypes swapped
+        continue;
+      }
+      generateStrandTwoHaplotypes(best, scores, strandOne, depth + 1, code + strandTwoIndex * strides[depth], c == 0);
+    }
+  }
+
+  /**
+   * @return The given pair, ordered as the exhaustive search would have generated it. If both
+   *         orientations were possible, the one that sorts highest is used.
+   */
+  private List<Haplotype> orient(StrandOneCandidate strandOne, StrandOneCandidate strandTwo) {
+    LocusOptions first = loci.get(0);
+    HLAType one = strandOne.alleles[firstLocusIndex];
+    HLAType two = strandTwo.alleles[firstLocusIndex];
+
+    boolean forward = first.firstStrandTypes.contains(one) && first.secondStrandTypes.contains(two);
+    boolean reverse = first.firstStrandTypes.contains(two) && first.secondStrandTypes.contains(one);
+
+    if (reverse && (!forward || strandTwo.haplotype.compareTo(strandOne.haplotype) > 0)) {
+      return ImmutableList.of(strandTwo.haplotype, strandOne.haplotype);
+    }
+    return ImmutableList.of(strandOne.haplotype, strandTwo.haplotype);
+  }
+
+  private void checkInterrupt() throws InterruptedException {
+    if (cancelled || Thread.currentThread().isInterrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  /** @return The CWD weight of the given allele */
+  private static double weight(CommonWellDocumented.Catalog cwd, HLAType type) {
+    return cwd.getEquivStatus(type).getWeight();
+  }
+
+  /**
+   * @return The given alleles, sorted by descending CWD weight, with anything below the best weight
+   *         removed
+   */
+  private static List<HLAType> bestWeighted(CommonWellDocumented.Catalog cwd, Collection<HLAType> types) {
+    List<HLAType> sorted = new ArrayList<>(types);
+    // sorts in descending order, notice h2's weight is found first
+    sorted.sort((h1, h2) -> {
+      int d = Double.compare(weight(cwd, h2), weight(cwd, h1));
+      if (d != 0)
+        return d;
+      return h2.compareTo(h1);
+    });
+    if (!sorted.isEmpty()) {
+      double bestCWD = weight(cwd, sorted.get(0));
+      sorted.removeIf(t -> weight(cwd, t) != bestCWD);
+    }
+    return sorted;
+  }
+
+  /** Candidate alleles for a single locus */
+  private static class LocusOptions {
+    private final List<HLAType> firstStrandTypes;
+    private final List<HLAType> secondStrandTypes;
+    private final List<HLAType> strandOneCandidates;
+    /** Indices of the candidates each candidate can be paired with */
+    private final int[][] strandTwoOptions;
+    /** Whether each pair of candidates, by index, is in {@link #strandTwoOptions} */
+    private final boolean[][] canPair;
+    /** Position of each candidate in the natural ordering, with equal candidates sharing a position */
+    private final int[] sortRank;
+    private final double[] weights;
+    private final double[] bestStrandTwoWeight;
+    /** The known haplotypes containing each candidate */
+    private final List<Set<Haplotype>> knownHaplotypes;
+
+    private LocusOptions(Multimap<Strand, HLAType> types, Set<String> tableLoci, HaplotypeFrequencies.Snapshot frequencyTables,
+        CommonWellDocumented.Catalog cwd) {
+      firstStrandTypes = bestWeighted(cwd, types.get(Strand.FIRST));
+      List<HLAType> second = bestWeighted(cwd, types.get(Strand.SECOND));
+
+      List<List<HLAType>> orientations = new ArrayList<>();
+      if (firstStrandTypes.isEmpty() || second.isEmpty()) {
+        // Homozygous - both strands draw from the same alleles
+        List<HLAType> only = firstStrandTypes.isEmpty() ? second : firstStrandTypes;
+        secondStrandTypes = only;
+        orientations.add(only);
+        orientations.add(only);
+      } else {
+        secondStrandTypes = second;
+        orientations.add(firstStrandTypes);
+        orientations.add(second);
+        // The strand notations are arbitrary, so both alignments are possible. The first locus is
+        // restricted to its original alignment when the pair is oriented.
+        orientations.add(second);
+        orientations.add(firstStrandTypes);
+      }
+
+      Map<HLAType, Set<HLAType>> options = new LinkedHashMap<>();
+      for (int i = 0; i < orientations.size(); i += 2) {
+        for (HLAType strandOne : orientations.get(i)) {
+          options.computeIfAbsent(strandOne, k -> new LinkedHashSet<>()).addAll(orientations.get(i + 1));
+        }
+      }
+      strandOneCandidates = ImmutableList.copyOf(options.keySet());
+
+      int size = strandOneCandidates.size();
+      strandTwoOptions = new int[size][];
+      canPair = new boolean[size][size];
+      sortRank = new int[size];
+      weights = new double[size];
+      bestStrandTwoWeight = new double[size];
+      for (int i = 0; i < size; i++) {
+        HLAType candidate = strandOneCandidates.get(i);
+        strandTwoOptions[i] = options.get(candidate).stream().mapToInt(strandOneCandidates::indexOf).toArray();
+        for (int j : strandTwoOptions[i]) {
+          canPair[i][j] = true;
+        }
+        for (HLAType other : strandOneCandidates) {
+          if (other.compareTo(candidate) < 0) {
+            sortRank[i]++;
+          }
+        }
+        weights[i] = weight(cwd, candidate);
+        bestStrandTwoWeight[i] = options.get(candidate).stream().mapToDouble(t -> weight(cwd, t)).max().orElse(0);
+      }
+      knownHaplotypes = strandOneCandidates.stream().map(c -> frequencyTables.getKnownHaplotypes(c, tableLoci)).collect(ImmutableList.toImmutableList());
+    }
+  }
+
+  /** A complete first haplotype, with the best score any pairing could achieve for each ethnicity */
+  private class StrandOneCandidate {
+    private final int[] indices;
+    private final HLAType[] alleles;
+    private final Haplotype haplotype;
+    /** CWD weight of this haplotype alone */
+    private final double cwd;
+    /** Whether this haplotype has a frequency in any ethnicity */
+    private final boolean known;
+    private final double[] frequencies;
+    private final double[] bounds = new double[RaceGroup.values().length];
+    /** As {@link #bounds}, if the second haplotype is not known */
+    private final double[] unknownComplementBounds = new double[RaceGroup.values().length];
+
+    private StrandOneCandidate(int[] indices, boolean known) {
+      this.indices = indices;
+      alleles = new HLAType[indices.length];
+      double weight = 0;
+      double boundCwd = 0;
+      for (int i = 0; i < indices.length; i++) {
+        LocusOptions locus = visitOrder.get(i);
+        alleles[i] = locus.strandOneCandidates.get(indices[i]);
+        weight += locus.weights[indices[i]];
+        boundCwd += locus.weights[indices[i]] + locus.bestStrandTwoWeight[indices[i]];
+      }
+      cwd = weight;
+      this.known = known;
+      haplotype = new Haplotype(Arrays.asList(alleles));
+      frequencies = known ? memo.frequencies(haplotype) : NO_FREQUENCIES;
+
+      for (RaceGroup e : RaceGroup.values()) {
+        double frequency = frequencies[e.ordinal()];
+        double maxFrequency = maxFrequencies[e.ordinal()];
+        double best;
+        if (frequency > 0) {
+          // Either the complement is also known, or it is missing and contributes no frequency
+          best = maxFrequency > 0 ? 2 * ScoredHaplotypes.NO_MISSING_WEIGHT + frequency * maxFrequency : ScoredHaplotypes.NO_MISSING_WEIGHT + frequency;
+        } else {
+          // At most the complement is known; if neither is known the frequency product is 1
+          best = maxFrequency > 0 ? ScoredHaplotypes.NO_MISSING_WEIGHT + maxFrequency : 1;
+        }
+        bounds[e.ordinal()] = boundCwd + best;
+        unknownComplementBounds[e.ordinal()] = boundCwd + (frequency > 0 ? ScoredHaplotypes.NO_MISSING_WEIGHT + frequency : 1);
+      }
+    }
+
+    private double maxBound() {
+      return Arrays.stream(bounds).max().getAsDouble();
+    }
+
+    private double maxFrequency() {
+      return Arrays.stream(frequencies).max().getAsDouble();
+    }
+  }
+
+  /** A partial haplotype pair, covering the first loci in visit order, kept by the beam search */
+  private class BeamState {
+    private final int[] strandOne;
+    private final int[] strandTwo;
+    /** Known haplotypes containing the alleles of each strand so far; null before the first locus */
+    private final Set<Haplotype> knownOne;
+    private final Set<Haplotype> knownTwo;
+    /** Whether the strands are so far identical, see {@link #generateStrandTwoHaplotypes} */
+    private final boolean tied;
+    private final double cwd;
+    /**
+     * Optimistic {@link #RANKING_ETHNICITY} score of the complete pair: the CWD weight so far plus
+     * the best frequencies still reachable by each strand
+     */
+    private final double estimate;
+
+    /** The empty pair, before any locus */
+    private BeamState() {
+      strandOne = new int[visitOrder.size()];
+      strandTwo = new int[visitOrder.size()];
+      knownOne = null;
+      knownTwo = null;
+      tied = true;
+      cwd = 0;
+      estimate = 0;
+    }
+
+    /** Extend the given pair with a candidate for each strand at the given depth */
+    private BeamState(BeamState parent, int depth, int strandOneIndex, int strandTwoIndex, boolean tied) {
+      LocusOptions locus = visitOrder.get(depth);
+      strandOne = parent.strandOne.clone();
+      strandTwo = parent.strandTwo.clone();
+      strandOne[depth] = strandOneIndex;
+      strandTwo[depth] = strandTwoIndex;
+      knownOne = stillKnown(parent.knownOne, locus, strandOneIndex);
+      knownTwo = stillKnown(parent.knownTwo, locus, strandTwoIndex);
+      this.tied = tied;
+      cwd = parent.cwd + locus.weights[strandOneIndex] + locus.weights[strandTwoIndex];
+
+      double one = bestFrequency(knownOne);
+      double two = bestFrequency(knownTwo);
+      double known = 0;
+      double product = 1;
+      for (double frequency : new double[] {one, two}) {
+        if (frequency > 0) {
+          known += ScoredHaplotypes.NO_MISSING_WEIGHT;
+          product *= frequency;
+        }
+      }
+      estimate = cwd + known + product;
+    }
+  }
+
+  /**
+   * Results that depend only on the candidate alleles, and so can be shared between searches. Used
+   * when searching each Bw4/Bw6 alignment of a B-C typing, as the C locus and many B candidates are
+   * common to both.
+   */
+  static class Memo {
+    private final HaplotypeFrequencies.Snapshot frequencyTables;
+    private final CommonWellDocumented.Catalog cwd;
+    private final Map<List<Object>, LocusOptions> locusOptions = new ConcurrentHashMap<>();
+    private final Map<Haplotype, double[]> frequencies = new ConcurrentHashMap<>();
+    private final Map<List<Haplotype>, ScoredHaplotypes> scoredPairs = new ConcurrentHashMap<>();
+
+    /** Share work between searches using the current frequency tables and CWD catalog */
+    Memo() {
+      this(HaplotypeFrequencies.current(), CommonWellDocumented.current());
+    }
+
+    /**
+     * @param frequencyTables The frequency tables every search sharing this memo looks up, even if
+     *        the tables are reloaded during the search
+     * @param cwd The CWD statuses every search sharing this memo weighs alleles with
+     */
+    Memo(HaplotypeFrequencies.Snapshot frequencyTables, CommonWellDocumented.Catalog cwd) {
+      this.frequencyTables = frequencyTables;
+      this.cwd = cwd;
+    }
+
+    /** @return The frequency tables of the searches sharing this memo */
+    HaplotypeFrequencies.Snapshot frequencyTables() {
+      return frequencyTables;
+    }
+
+    /**
+     * @return The candidate alleles for a locus with the given types, in a haplotype spanning the
+     *         given table loci
+     */
+    private LocusOptions locusOptions(Multimap<Strand, HLAType> types, Set<String> tableLoci) {
+      return locusOptions.computeIfAbsent(ImmutableList.of(ImmutableSetMultimap.copyOf(types), tableLoci),
+          k -> new LocusOptions(types, tableLoci, frequencyTables, cwd));
+    }
+
+    /**
+     * @return The frequency of the given haplotype in each ethnicity, indexed by
+     *         {@link RaceGroup#ordinal()}. Must not be modified.
+     */
+    private double[] frequencies(Haplotype haplotype) {
+      return frequencies.computeIfAbsent(haplotype, h -> {
+        double[] f = new double[RaceGroup.values().length];
+        frequencyTables.getFrequencies(h, f);
+        return f;
+      });
+    }
+
+    /** @return The given haplotype pair, scored */
+    ScoredHaplotypes score(Collection<Haplotype> pair) throws InterruptedException {
+      List<Haplotype> key = ImmutableList.copyOf(pair);
+      ScoredHaplotypes scored = scoredPairs.get(key);
+      if (scored == null) {
+        scored = new ScoredHaplotypes(key, frequencyTables, cwd);
+        ScoredHaplotypes existing = scoredPairs.putIfAbsent(key, scored);
+        if (existing != null) {
+          scored = existing;
+        }
+      }
+      return scored;
+    }
+  }
+
+  /** Searches a contiguous range of first haplotypes, forking while the range is large */
+  private class SearchTask extends RecursiveTask<BestPairs> {
+    private static final long serialVersionUID = 1L;
+    private final List<StrandOneCandidate> strandOnes;
+    private final DoubleAccumulator[] floors;
+    private final int chunkSize;
+
+    private SearchTask(List<StrandOneCandidate> strandOnes, DoubleAccumulator[] floors, int chunkSize) {
+      this.strandOnes = strandOnes;
+      this.floors = floors;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected BestPairs compute() {
+      if (strandOnes.size() <= chunkSize) {
+        try {
+          return searchStrandTwo(strandOnes, newBestPairs(floors));
+        } catch (InterruptedException e) {
+          cancelled = true;
+          throw new CancellationException();
+        }
+      }
+      int mid = strandOnes.size() / 2;
+      SearchTask second = new SearchTask(strandOnes.subList(mid, strandOnes.size()), floors, chunkSize);
+      second.fork();
+      BestPairs best = new SearchTask(strandOnes.subList(0, mid), floors, chunkSize).compute();
+      best.merge(second.join());
+      return best;
+    }
+  }
+
+  /**
+   * The highest-scoring haplotype pairs found so far for each {@link RaceGroup}, best first by the
+   * ethnicity's own score. The best {@link #RANKING_ETHNICITY} pair is reported for every ethnicity.
+   */
+  static class BestPairs {
+    private final int capacity;
+    private final List<List<ScoredHaplotypes>> best = new ArrayList<>();
+
+    /**
+     * Lowest score of a full set of pairs found by any task sharing this search, indexed by
+     * {@link RaceGroup#ordinal()}. Null if the search is not shared.
+     */
+    private final DoubleAccumulator[] floors;
+
+    /** Notified each time a pair is recorded for any ethnicity. May be null. */
+    private Consumer<ScoredHaplotypes> improvementListener = null;
+
+    BestPairs() {
+      this(1, null);
+    }
+
+    /**
+     * @param capacity Number of pairs to keep for each ethnicity
+     * @param floors Scores shared between tasks, or null if the search is not split
+     */
+    private BestPairs(int capacity, DoubleAccumulator[] floors) {
+      this.capacity = capacity;
+      this.floors = floors;
+      for (int i = 0; i < RaceGroup.values().length; i++) {
+        best.add(new ArrayList<>(capacity + 1));
+      }
+    }
+
+    /**
+     * Record the given pair for any ethnicity where it ranks among the best
+     *
+     * @return true if the pair was recorded for any ethnicity
+     */
+    boolean offer(ScoredHaplotypes candidate) {
+      boolean improved = false;
+      for (RaceGroup e : RaceGroup.values()) {
+        improved |= insert(e, candidate);
+      }
+      if (improved && improvementListener != null) {
+        improvementListener.accept(candidate);
+      }
+      return improved;
+    }
+
+    /** @return true if the pair ranks among the best for this ethnicity, and was recorded */
+    private boolean insert(RaceGroup e, ScoredHaplotypes candidate) {
+      List<ScoredHaplotypes> pairs = best.get(e.ordinal());
+      EthnicityHaplotypeComp ranking = EthnicityHaplotypeComp.of(e);
+      int i = pairs.size();
+      while (i > 0 && ranking.compare(pairs.get(i - 1), candidate) < 0) {
+        i--;
+      }
+      if (i >= capacity) {
+        return false;
+      }
+      pairs.add(i, candidate);
+      if (pairs.size() > capacity) {
+        pairs.remove(capacity);
+      }
+      if (floors != null && pairs.size() == capacity) {
+        floors[e.ordinal()].accumulate(pairs.get(capacity - 1).getScore(e));
+      }
+      return true;
+    }
+
+    /**
+     * @return The score that a pair must reach to be recorded for the given ethnicity. Negative
+     *         infinity if any pair would be recorded.
+     */
+    private double threshold(RaceGroup e) {
+      List<ScoredHaplotypes> pairs = best.get(e.ordinal());
+      double threshold = pairs.size() < capacity ? Double.NEGATIVE_INFINITY : pairs.get(capacity - 1).getScore(e);
+      // Another task's pairs can only exclude scores that are strictly lower, so ties are kept
+      if (floors != null) {
+        threshold = Math.max(threshold, floors[e.ordinal()].get());
+      }
+      return threshold;
+    }
+
+    /**
+     * @param scores Approximate scores of a pair, from
+     *        {@link ScoredHaplotypes#approximateScores(double, double[], double[], double[])}
+     * @return false if a pair with these scores can not be recorded for any ethnicity
+     */
+    boolean mayAccept(double[] scores) {
+      for (RaceGroup e : RaceGroup.values()) {
+        if (scores[e.ordinal()] + ScoredHaplotypes.APPROXIMATE_SCORE_TOLERANCE >= threshold(e)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Combine the best pairs found by another search into this one */
+    void merge(BestPairs other) {
+      for (RaceGroup e : RaceGroup.values()) {
+        for (ScoredHaplotypes candidate : other.best.get(e.ordinal())) {
+          insert(e, candidate);
+        }
+      }
+    }
+
+    /**
+     * @param bounds Upper bound on score, indexed by {@link RaceGroup#ordinal()}
+     * @return true if a pair with these bounds could be recorded for any ethnicity
+     */
+    boolean canImprove(double[] bounds) {
+      for (RaceGroup e : RaceGroup.values()) {
+        if (bounds[e.ordinal()] + BOUND_TOLERANCE >= threshold(e)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** @return The pair reported for every ethnicity, or null if no pair has been recorded */
+    private ScoredHaplotypes reported() {
+      List<ScoredHaplotypes> pairs = best.get(RANKING_ETHNICITY.ordinal());
+      return pairs.isEmpty() ? null : pairs.get(0);
+    }
+
+    /** @return The current reported pair of each ethnicity */
+    Map<RaceGroup, ScoredHaplotypes> asMap() {
+      Map<RaceGroup, ScoredHaplotypes> map = new EnumMap<>(RaceGroup.class);
+      ScoredHaplotypes reported = reported();
+      if (reported != null) {
+        for (RaceGroup e : RaceGroup.values()) {
+          map.put(e, reported);
+        }
+      }
+      return map;
+    }
+
+    /**
+     * @return The current pairs of each ethnicity: the reported pair, then the best of the others by
+     *         the ethnicity's own score
+     */
+    Map<RaceGroup, List<ScoredHaplotypes>> asRankedMap() {
+      Map<RaceGroup, List<ScoredHaplotypes>> map = new EnumMap<>(RaceGroup.class);
+      ScoredHaplotypes reported = reported();
+      if (reported != null) {
+        for (RaceGroup e : RaceGroup.values()) {
+          ImmutableList.Builder<ScoredHaplotypes> ranked = ImmutableList.builder();
+          ranked.add(reported);
+          // Every pair is offered to every ethnicity, so the reported pair is the same instance
+          best.get(e.ordinal()).stream().filter(pair -> pair != reported).limit(capacity - 1).forEach(ranked::add);
+          map.put(e, ranked.build());
+        }
+      }
+      return map;
+    }
+  }
+}
@@ -0,0 +1,308 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.StringJoiner;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+import org.pankratzlab.unet.deprecated.hla.DonorCheckProperties;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.deprecated.util.SerializeUtils;
+import org.pankratzlab.unet.hapstats.AlleleGroups;
+import org.pankratzlab.unet.hapstats.CommonWellDocumented;
+import org.pankratzlab.unet.hapstats.Haplotype;
+import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
+import org.pankratzlab.unet.hapstats.RaceGroup;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimap;
+import com.google.common.hash.Hashing;
+
+/**
+ * Disk cache of haplotype search results, so a donor that is opened again does not need its
+ * haplotypes searched again.
+ *
+ * <p>
+ * Results are keyed by the candidate alleles of each locus and the number of ranked pairs, and
+ * stored in a directory for the reference data in use: the CWD/CIWD database, the G group file and
+ * the haplotype frequency tables. When any of these change, results for the previous reference data
+ * are deleted. The least recently used results are removed once the cache exceeds its entry or size
+ * limit.
+ */
+public class HaplotypeResultCache {
+
+  /** Changed whenever the search or the stored format changes in a way that invalidates results */
+  private static final int FORMAT_VERSION = 2;
+  private static final String ENTRY_SUFFIX = ".ser";
+  private static final Object LOCK = new Object();
+
+  private final File directory;
+  private final int maxEntries;
+  private final long maxBytes;
+  private final String referenceDataVersion;
+
+  /**
+   * @param directory Root directory of the cache
+   * @param maxEntries Maximum number of results to keep
+   * @param maxBytes Maximum total size of the stored results
+   */
+  public HaplotypeResultCache(File directory, int maxEntries, long maxBytes) {
+    this(directory, maxEntries, maxBytes, referenceDataVersion());
+  }
+
+  /**
+   * @param referenceDataVersion Version of the reference data the results are searched with
+   * @see #HaplotypeResultCache(File, int, long)
+   */
+  private HaplotypeResultCache(File directory, int maxEntries, long maxBytes, String referenceDataVersion) {
+    this.directory = directory;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.referenceDataVersion = referenceDataVersion;
+  }
+
+  /**
+   * @return The cache in the directory and with the limits set in {@link DonorCheckProperties}.
+   *         Empty if caching is disabled.
+   */
+  public static Optional<HaplotypeResultCache> configured() {
+    return configured(HaplotypeFrequencies.current(), CommonWellDocumented.getLoadedSource());
+  }
+
+  /**
+   * @param frequencies The frequency tables the cached results are searched with
+   * @param cwd The CWD database the cached results are searched with
+   * @return As {@link #configured()}, for results searched with the given reference data. Empty for
+   *         marginal frequencies, see {@link HaplotypeFrequencies.Snapshot#withMarginals()}: the
+   *         results would be stored alongside, and could be loaded by, searches of the same
+   *         candidates with exact frequencies.
+   */
+  static Optional<HaplotypeResultCache> configured(HaplotypeFrequencies.Snapshot frequencies, CommonWellDocumented.SOURCE cwd) {
+    int maxEntries;
+    long maxMegabytes;
+    try {
+      maxEntries = Integer.parseInt(DonorCheckProperties.getOrDefault(DonorCheckProperties.HAPLOTYPE_CACHE_ENTRIES).trim());
+      maxMegabytes = Long.parseLong(DonorCheckProperties.getOrDefault(DonorCheckProperties.HAPLOTYPE_CACHE_MAX_MB).trim());
+    } catch (NumberFormatException e) {
+      maxEntries = Integer.parseInt(DonorCheckProperties.HAPLOTYPE_CACHE_ENTRIES_DEFAULT);
+      maxMegabytes = Long.parseLong(DonorCheckProperties.HAPLOTYPE_CACHE_MAX_MB_DEFAULT);
+    }
+    if (maxEntries < 1 || maxMegabytes < 1 || frequencies.usesMarginals()) {
+      return Optional.empty();
+    }
+    File directory = new File(DonorCheckProperties.getOrDefault(DonorCheckProperties.HAPLOTYPE_CACHE_DIRECTORY));
+    return Optional.of(new HaplotypeResultCache(directory, maxEntries, maxMegabytes * FileUtils.ONE_MB, referenceDataVersion(frequencies, cwd)));
+  }
+
+  /**
+   * @param typesByLocus The candidate alleles of each locus, as searched
+   * @param rankedPairCount The number of pairs ranked for each ethnicity
+   * @return The stored pairs of each ethnicity, best first, if these candidates have been searched
+   *         with the current reference data
+   */
+  public Optional<Map<RaceGroup, List<List<Haplotype>>>> load(List<Multimap<Strand, HLAType>> typesByLocus, int rankedPairCount) {
+    String key = key(typesByLocus, rankedPairCount);
+    synchronized (LOCK) {
+      File entryFile = entryFile(key);
+      if (!entryFile.exists()) {
+        return Optional.empty();
+      }
+      CachedPairs cached = SerializeUtils.read(entryFile.getPath(), CachedPairs.class);
+      if (cached == null || !Objects.equals(key, cached.key)) {
+        // Unreadable, or a hash collision
+        entryFile.delete();
+        return Optional.empty();
+      }
+      // Mark as recently used
+      entryFile.setLastModified(System.currentTimeMillis());
+      return Optional.of(cached.toPairs());
+    }
+  }
+
+  /**
+   * Store the result of a search, replacing any results for previous reference data and removing
+   * the least recently used results as needed
+   *
+   * @param typesByLocus The candidate alleles of each locus, as searched
+   * @param rankedPairCount The number of pairs ranked for each ethnicity
+   * @param pairsByEthnicity The pairs of each ethnicity, best first
+   */
+  public void store(List<Multimap<Strand, HLAType>> typesByLocus, int rankedPairCount,
+      Map<RaceGroup, ? extends List<? extends Iterable<Haplotype>>> pairsByEthnicity) {
+    String key = key(typesByLocus, rankedPairCount);
+    synchronized (LOCK) {
+      File versionDirectory = versionDirectory();
+      deleteOtherVersions(versionDirectory);
+      try {
+        SerializeUtils.write(new CachedPairs(key, pairsByEthnicity), entryFile(key).getPath());
+      } catch (IOException e) {
+        System.err.println("Unable to write haplotype cache entry to " + versionDirectory);
+        e.printStackTrace();
+        return;
+      }
+      evict(versionDirectory, entryFile(key));
+    }
+  }
+
+  /** Remove every stored result */
+  public void clear() {
+    synchronized (LOCK) {
+      try {
+        FileUtils.deleteDirectory(directory);
+      } catch (IOException e) {
+        System.err.println("Unable to delete haplotype cache " + directory);
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /** @return The directory holding results for the current reference data */
+  private File versionDirectory() {
+    return new File(directory, hash("format=" + FORMAT_VERSION + ";" + referenceDataVersion));
+  }
+
+  /** @return The versions of the reference data haplotype search results depend on */
+  static String referenceDataVersion() {
+    return referenceDataVersion(HaplotypeFrequencies.current(), CommonWellDocumented.getLoadedSource());
+  }
+
+  /**
+   * @param frequencies The frequency tables searched with
+   * @param cwd The CWD database searched with
+   * @return The versions of the reference data haplotype search results depend on
+   */
+  static String referenceDataVersion(HaplotypeFrequencies.Snapshot frequencies, CommonWellDocumented.SOURCE cwd) {
+    StringJoiner versions = new StringJoiner(";");
+    versions.add("cwd=" + cwd);
+    versions.add("g=" + AlleleGroups.getGGroupVersion());
+    versions.add("frequencies=" + frequencies.getTableVersion());
+    return versions.toString();
+  }
+
+  private File entryFile(String key) {
+    return new File(versionDirectory(), hash(key) + ENTRY_SUFFIX);
+  }
+
+  /** Delete results stored for any other reference data */
+  private void deleteOtherVersions(File versionDirectory) {
+    File[] versions = directory.listFiles(File::isDirectory);
+    if (versions == null) {
+      return;
+    }
+    for (File version : versions) {
+      if (!version.equals(versionDirectory)) {
+        try {
+          FileUtils.deleteDirectory(version);
+        } catch (IOException e) {
+          System.err.println("Unable to delete outdated haplotype cache " + version);
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete the least recently used results until the cache is within its limits
+   *
+   * @param newest The entry just stored, which is kept even if its timestamp ties with older ones
+   */
+  private void evict(File versionDirectory, File newest) {
+    File[] entries = versionDirectory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX) && !name.equals(newest.getName()));
+    if (entries == null) {
+      return;
+    }
+    Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+    long totalBytes = newest.length() + Arrays.stream(entries).mapToLong(File::length).sum();
+    int count = entries.length + 1;
+    for (int i = 0; i < entries.length && (count > maxEntries || totalBytes > maxBytes); i++) {
+      long length = entries[i].length();
+      if (entries[i].delete()) {
+        count--;
+        totalBytes -= length;
+      }
+    }
+  }
+
+  /** @return A canonical description of the search inputs */
+  private static String key(List<Multimap<Strand, HLAType>> typesByLocus, int rankedPairCount) {
+    StringJoiner key = new StringJoiner(";");
+    key.add("pairs=" + rankedPairCount);
+    for (Multimap<Strand, HLAType> types : typesByLocus) {
+      StringJoiner locus = new StringJoiner("|");
+      for (Strand strand : Strand.values()) {
+        locus.add(strand + "=" + types.get(strand).stream().sorted().map(HLAType::toString).distinct().collect(Collectors.joining(",")));
+      }
+      key.add(locus.toString());
+    }
+    return key.toString();
+  }
+
+  private static String hash(String s) {
+    return Hashing.sha256().hashString(s, StandardCharsets.UTF_8).toString();
+  }
+
+  /** The stored result of a search */
+  private static class CachedPairs implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+    /** For each ethnicity, each pair, the alleles of each haplotype */
+    private final EnumMap<RaceGroup, ArrayList<ArrayList<ArrayList<HLAType>>>> pairs = new EnumMap<>(RaceGroup.class);
+
+    private CachedPairs(String key, Map<RaceGroup, ? extends List<? extends Iterable<Haplotype>>> pairsByEthnicity) {
+      this.key = key;
+      for (Entry<RaceGroup, ? extends List<? extends Iterable<Haplotype>>> entry : pairsByEthnicity.entrySet()) {
+        ArrayList<ArrayList<ArrayList<HLAType>>> ranked = new ArrayList<>();
+        for (Iterable<Haplotype> pair : entry.getValue()) {
+          ArrayList<ArrayList<HLAType>> haplotypes = new ArrayList<>();
+          pair.forEach(h -> haplotypes.add(new ArrayList<>(h.getTypes())));
+          ranked.add(haplotypes);
+        }
+        pairs.put(entry.getKey(), ranked);
+      }
+    }
+
+    private Map<RaceGroup, List<List<Haplotype>>> toPairs() {
+      Map<RaceGroup, List<List<Haplotype>>> pairsByEthnicity = new EnumMap<>(RaceGroup.class);
+      for (Entry<RaceGroup, ArrayList<ArrayList<ArrayList<HLAType>>>> entry : pairs.entrySet()) {
+        List<List<Haplotype>> ranked = new ArrayList<>();
+        for (ArrayList<ArrayList<HLAType>> pair : entry.getValue()) {
+          ranked.add(pair.stream().map(Haplotype::new).collect(ImmutableList.toImmutableList()));
+        }
+        pairsByEthnicity.put(entry.getKey(), ranked);
+      }
+      return pairsByEthnicity;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.model;
+
+import java.util.List;
+import org.pankratzlab.unet.hapstats.Haplotype;
+import org.pankratzlab.unet.hapstats.RaceGroup;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Outcome of the B-C and DR-DQ haplotype searches for one {@link ValidationModel}: the most likely
+ * haplotypes, the ranked pairs behind them, and how the searches went.
+ */
+public class HaplotypeResults {
+
+  private final ImmutableMultimap<RaceGroup, Haplotype> bcHaplotypes;
+  private final ImmutableMultimap<RaceGroup, Haplotype> drdqHaplotypes;
+  private final ImmutableListMultimap<RaceGroup, RankedHaplotypePair> bcRankedPairs;
+  private final ImmutableListMultimap<RaceGroup, RankedHaplotypePair> drdqRankedPairs;
+  private final HaplotypeSearchStats searchStats;
+  private final ImmutableList<String> auditMessages;
+
+  /**
+   * @param bcHaplotypes Most likely B-C haplotypes, by ethnicity
+   * @param drdqHaplotypes Most likely DRB345-DRB1-DQB1 haplotypes, by ethnicity
+   * @param bcRankedPairs Most likely B-C pairs of each ethnicity, best first
+   * @param drdqRankedPairs Most likely DR-DQ pairs of each ethnicity, best first
+   * @param searchStats Combined stats of the searches
+   * @param auditMessages Audit messages describing the searches
+   */
+  public HaplotypeResults(Multimap<RaceGroup, Haplotype> bcHaplotypes, Multimap<RaceGroup, Haplotype> drdqHaplotypes,
+      Multimap<RaceGroup, RankedHaplotypePair> bcRankedPairs, Multimap<RaceGroup, RankedHaplotypePair> drdqRankedPairs,
+      HaplotypeSearchStats searchStats, List<String> auditMessages) {
+    this.bcHaplotypes = ImmutableMultimap.copyOf(bcHaplotypes);
+    this.drdqHaplotypes = ImmutableMultimap.copyOf(drdqHaplotypes);
+    this.bcRankedPairs = ImmutableListMultimap.copyOf(bcRankedPairs);
+    this.drdqRankedPairs = ImmutableListMultimap.copyOf(drdqRankedPairs);
+    this.searchStats = searchStats;
+    this.auditMessages = ImmutableList.copyOf(auditMessages);
+  }
+
+  public ImmutableMultimap<RaceGroup, Haplotype> getBCHaplotypes() {
+    return bcHaplotypes;
+  }
+
+  public ImmutableMultimap<RaceGroup, Haplotype> getDRDQHaplotypes() {
+    return drdqHaplotypes;
+  }
+
+  public ImmutableListMultimap<RaceGroup, RankedHaplotypePair> getBCRankedPairs() {
+    return bcRankedPairs;
+  }
+
+  public ImmutableListMultimap<RaceGroup, RankedHaplotypePair> getDRDQRankedPairs() {
+    return drdqRankedPairs;
+  }
+
+  public HaplotypeSearchStats getSearchStats() {
+    return searchStats;
+  }
+
+  /** @return Audit messages describing the searches */
+  public ImmutableList<String> getAuditMessages() {
+    return auditMessages;
+  }
+}
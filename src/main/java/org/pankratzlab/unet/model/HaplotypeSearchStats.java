@@ -0,0 +1,71 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.model;
+
+/**
+ * Summary of the haplotype searches run when building a {@link ValidationModel}: whether they ran to
+ * completion, and how much of the search space they covered.
+ */
+public class HaplotypeSearchStats {
+
+  /** Stats for a model where no haplotype search was needed */
+  public static final HaplotypeSearchStats NONE = new HaplotypeSearchStats(true, 0, 0);
+
+  private final boolean optimal;
+  private final long nodesExplored;
+  private final long nodesPruned;
+
+  public HaplotypeSearchStats(boolean optimal, long nodesExplored, long nodesPruned) {
+    this.optimal = optimal;
+    this.nodesExplored = nodesExplored;
+    this.nodesPruned = nodesPruned;
+  }
+
+  /**
+   * @return true if every search ran to completion, so the reported haplotypes are the most likely.
+   *         false if any search stopped at its time limit with the best haplotypes found so far, or
+   *         was an approximate beam search.
+   */
+  public boolean isOptimal() {
+    return optimal;
+  }
+
+  /** @return Number of search nodes visited */
+  public long getNodesExplored() {
+    return nodesExplored;
+  }
+
+  /** @return Number of search subtrees skipped because they could not beat the best pair found */
+  public long getNodesPruned() {
+    return nodesPruned;
+  }
+
+  /** @return The combined stats of this and another search */
+  public HaplotypeSearchStats combine(HaplotypeSearchStats other) {
+    return new HaplotypeSearchStats(optimal && other.optimal, nodesExplored + other.nodesExplored, nodesPruned + other.nodesPruned);
+  }
+
+  @Override
+  public String toString() {
+    return (optimal ? "optimal" : "partial") + " search, " + nodesExplored + " nodes explored, " + nodesPruned + " pruned";
+  }
+}
@@ -0,0 +1,87 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.model;
+
+import org.pankratzlab.unet.hapstats.Haplotype;
+import org.pankratzlab.unet.hapstats.RaceGroup;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * One of the most likely haplotype pairs for an ethnicity, with its position in the ranking and how
+ * far its score falls behind the highest-scoring pair. The first pair is the one reported for the
+ * ethnicity, and the rest follow in order of score.
+ */
+public class RankedHaplotypePair {
+
+  private final int rank;
+  private final ImmutableList<Haplotype> haplotypes;
+  private final RaceGroup scoredBy;
+  private final double score;
+  private final double scoreGap;
+
+  /**
+   * @param rank 1-based position in the ranking
+   * @param haplotypes The two haplotypes of the pair
+   * @param scoredBy Ethnicity whose frequencies produced the score
+   * @param score Score the pairs were ranked by
+   * @param scoreGap Difference between the highest score of the ranked pairs and this one
+   */
+  public RankedHaplotypePair(int rank, ImmutableList<Haplotype> haplotypes, RaceGroup scoredBy, double score, double scoreGap) {
+    this.rank = rank;
+    this.haplotypes = haplotypes;
+    this.scoredBy = scoredBy;
+    this.score = score;
+    this.scoreGap = scoreGap;
+  }
+
+  /** @return 1-based position in the ranking, 1 being the reported pair */
+  public int getRank() {
+    return rank;
+  }
+
+  public ImmutableList<Haplotype> getHaplotypes() {
+    return haplotypes;
+  }
+
+  /** @return The ethnicity whose frequencies produced {@link #getScore()} */
+  public RaceGroup getScoredBy() {
+    return scoredBy;
+  }
+
+  /** @return The score this pair was ranked by, combining CWD status and haplotype frequencies */
+  public double getScore() {
+    return score;
+  }
+
+  /**
+   * @return How far this pair's score falls behind the highest-scoring of the ranked pairs. 0 for
+   *         that pair, which is usually the first.
+   */
+  public double getScoreGap() {
+    return scoreGap;
+  }
+
+  @Override
+  public String toString() {
+    return rank + ": " + haplotypes + " (score " + score + ", " + scoreGap + " behind)";
+  }
+}
@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.model;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.hapstats.CommonWellDocumented;
+import org.pankratzlab.unet.hapstats.Haplotype;
+import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
+import org.pankratzlab.unet.hapstats.RaceGroup;
+
+/** Helper wrapper class to cache the scores for haplotypes */
+class ScoredHaplotypes extends ArrayList<Haplotype> {
+  private static final long serialVersionUID = 3780864438450985328L;
+  static final int NO_MISSING_WEIGHT = 10;
+
+  /**
+   * Largest possible difference between {@link #approximateScores(double, double[], double[], double[])}
+   * and {@link #getScore(RaceGroup)} for the same pair
+   */
+  static final double APPROXIMATE_SCORE_TOLERANCE = 1e-9;
+
+  private final double[] scoresByEthnicity = new double[RaceGroup.values().length];
+  private final TieBreakKey tieBreakKey;
+
+  ScoredHaplotypes(Collection<Haplotype> initialHaplotypes) throws InterruptedException {
+    this(initialHaplotypes, HaplotypeFrequencies.current(), CommonWellDocumented.current());
+  }
+
+  /**
+   * @param initialHaplotypes The haplotype pair
+   * @param frequencyTables The tables to score the pair's frequencies with
+   * @param cwd The CWD statuses to score the pair's alleles with
+   */
+  ScoredHaplotypes(Collection<Haplotype> initialHaplotypes, HaplotypeFrequencies.Snapshot frequencyTables, CommonWellDocumented.Catalog cwd)
+      throws InterruptedException {
+    super();
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedException();
+    }
+    BigDecimal cwdScore1 = BigDecimal.ZERO;
+
+    for (Haplotype haplotype : initialHaplotypes) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedException();
+      }
+      add(haplotype);
+
+      for (HLAType allele : haplotype.getTypes()) {
+        cwdScore1 = cwdScore1.add(new BigDecimal(cwd.getEquivStatus(allele).getWeight()));
+      }
+    }
+    BigDecimal cwdScore = cwdScore1;
+    tieBreakKey = new TieBreakKey(this);
+
+    for (RaceGroup e : RaceGroup.values()) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedException();
+      }
+      int noMissingCount = 0;
+
+      // starting from 1
+      BigDecimal frequency = new BigDecimal(1.0);
+
+      for (Haplotype haplotype : this) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedException();
+        }
+        BigDecimal f = frequencyTables.getFrequency(e, haplotype);
+
+        if (f.compareTo(BigDecimal.ZERO) > 0) {
+          frequency = frequency.multiply(f);
+          noMissingCount++;
+        }
+      }
+
+      BigDecimal weights = cwdScore.add(BigDecimal.valueOf(NO_MISSING_WEIGHT * noMissingCount));
+
+      double s = weights.add(frequency).doubleValue();
+      scoresByEthnicity[e.ordinal()] = s;
+    }
+  }
+
+  /**
+   * Score a pair of haplotypes for every ethnicity without allocating, using the same weighting as
+   * the constructor. Scores are only accurate to within {@link #APPROXIMATE_SCORE_TOLERANCE}, so
+   * should only be used to rule out pairs.
+   *
+   * @param cwdWeight Sum of the CWD weights of every allele in the pair
+   * @param frequencies1 Frequency of the first haplotype, indexed by {@link RaceGroup#ordinal()}
+   * @param frequencies2 Frequency of the second haplotype, indexed by {@link RaceGroup#ordinal()}
+   * @param scores Output, indexed by {@link RaceGroup#ordinal()}
+   */
+  static void approximateScores(double cwdWeight, double[] frequencies1, double[] frequencies2, double[] scores) {
+    for (int e = 0; e < scores.length; e++) {
+      int noMissingCount = 0;
+      double frequency = 1.0;
+      if (frequencies1[e] > 0) {
+        frequency *= frequencies1[e];
+        noMissingCount++;
+      }
+      if (frequencies2[e] > 0) {
+        frequency *= frequencies2[e];
+        noMissingCount++;
+      }
+      scores[e] = cwdWeight + NO_MISSING_WEIGHT * noMissingCount + frequency;
+    }
+  }
+
+  @Override
+  public String toString() {
+    Map<RaceGroup, Double> scores = new EnumMap<>(RaceGroup.class);
+    for (RaceGroup e : RaceGroup.values()) {
+      scores.put(e, getScore(e));
+    }
+    return super.toString() + " - " + scores.toString();
+  }
+
+  /**
+   * @return A weighted score for this ethnicity, prioritizing haplotypes without missing frequencies.
+   */
+  public double getScore(RaceGroup ethnicity) {
+    return scoresByEthnicity[ethnicity.ordinal()];
+  }
+
+  /** @return Sorted encoding of this pair's alleles, for breaking ties between equal scores */
+  TieBreakKey getTieBreakKey() {
+    return tieBreakKey;
+  }
+
+  public int compareTo(ScoredHaplotypes o, RaceGroup e) {
+    // Prefer larger frequencies for this ethnicity
+    int c = Double.compare(getScore(e), o.getScore(e));
+    Iterator<Haplotype> myIterator = iterator();
+    Iterator<Haplotype> otherIterator = o.iterator();
+    // Fall back to the haplotypes themselves
+    while (myIterator.hasNext() && otherIterator.hasNext() && c == 0) {
+      c = myIterator.next().compareTo(otherIterator.next());
+    }
+    return c;
+  }
+}
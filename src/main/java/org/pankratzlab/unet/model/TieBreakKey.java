@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.hapstats.Haplotype;
+
+/**
+ * Sorted primitive encoding of every allele in a collection of {@link Haplotype}s. Used to break
+ * ties between equally scored {@link ScoredHaplotypes} without allocating.
+ */
+final class TieBreakKey implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Each allele is encoded as its locus ordinal followed by its specificity fields */
+  private final int[] encoded;
+
+  /** Start of each allele in {@link #encoded}, with a trailing end offset */
+  private final int[] starts;
+
+  TieBreakKey(Collection<Haplotype> haplotypes) {
+    List<HLAType> sorted = new ArrayList<>();
+    int length = 0;
+    for (Haplotype haplotype : haplotypes) {
+      for (HLAType allele : haplotype.getTypes()) {
+        sorted.add(allele);
+        length += 1 + allele.resolution();
+      }
+    }
+    Collections.sort(sorted);
+
+    encoded = new int[length];
+    starts = new int[sorted.size() + 1];
+    int offset = 0;
+    for (int i = 0; i < sorted.size(); i++) {
+      HLAType allele = sorted.get(i);
+      starts[i] = offset;
+      encoded[offset++] = allele.locus().ordinal();
+      for (int field : allele.spec()) {
+        encoded[offset++] = field;
+      }
+    }
+    starts[sorted.size()] = offset;
+  }
+
+  /** @return The number of alleles in this key */
+  int size() {
+    return starts.length - 1;
+  }
+
+  /**
+   * Drop every allele present in both keys, then sum {@link HLAType#compareTo(HLAType)} over the
+   * remaining alleles of the two keys in sorted order.
+   *
+   * @return The summed comparison of this key's unshared alleles against the other's
+   */
+  int compareUnshared(TieBreakKey other) {
+    int result = 0;
+    int i = 0;
+    int j = 0;
+    // Probes into the opposite key, used to detect shared alleles
+    int otherProbe = 0;
+    int thisProbe = 0;
+
+    while (true) {
+      while (i < size()) {
+        int c = 1;
+        while (otherProbe < other.size() && (c = compareAllele(this, i, other, otherProbe)) > 0) {
+          otherProbe++;
+        }
+        if (otherProbe >= other.size() || c != 0) {
+          break;
+        }
+        i++;
+      }
+      while (j < other.size()) {
+        int c = 1;
+        while (thisProbe < size() && (c = compareAllele(other, j, this, thisProbe)) > 0) {
+          thisProbe++;
+        }
+        if (thisProbe >= size() || c != 0) {
+          break;
+        }
+        j++;
+      }
+      if (i >= size() || j >= other.size()) {
+        return result;
+      }
+      result += compareAllele(this, i, other, j);
+      i++;
+      j++;
+    }
+  }
+
+  /** Same ordering, and values, as {@link HLAType#compareTo(HLAType)} on the encoded alleles */
+  private static int compareAllele(TieBreakKey k1, int i1, TieBreakKey k2, int i2) {
+    int start1 = k1.starts[i1];
+    int start2 = k2.starts[i2];
+    // Enum comparison is the difference of the ordinals
+    int c = k1.encoded[start1] - k2.encoded[start2];
+
+    int resolution1 = k1.starts[i1 + 1] - start1 - 1;
+    int resolution2 = k2.starts[i2 + 1] - start2 - 1;
+    for (int f = 1; c == 0 && f <= Math.min(resolution1, resolution2); f++) {
+      c = Integer.compare(k1.encoded[start1 + f], k2.encoded[start2 + f]);
+    }
+
+    if (c == 0) {
+      c = Integer.compare(resolution1, resolution2);
+    }
+    return c;
+  }
+}
@@ -21,12 +21,17 @@
  */
 package org.pankratzlab.unet.model;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import org.apache.commons.lang3.tuple.Pair;
 import org.pankratzlab.unet.deprecated.hla.HLALocus;
@@ -36,14 +41,17 @@ import org.pankratzlab.unet.deprecated.hla.SourceType;
 import org.pankratzlab.unet.hapstats.Haplotype;
 import org.pankratzlab.unet.hapstats.RaceGroup;
 import org.pankratzlab.unet.model.ValidationModelBuilder.TypePair;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
- * Backing, immutable model representing a single donor typing.
+ * Backing, immutable model representing a single donor typing. Haplotypes are only computed the
+ * first time they are needed, as the haplotype search is far more expensive than the typing.
  *
  * @see ValidationModelBuilder
  */
@@ -66,17 +74,22 @@ public class ValidationModel {
   private final ImmutableList<HLAType> dr51Locus;
   private final ImmutableList<HLAType> dr52Locus;
   private final ImmutableList<HLAType> dr53Locus;
-  private final ImmutableMultimap<RaceGroup, Haplotype> bcHaplotypes;
-  private final ImmutableMultimap<RaceGroup, Haplotype> drdqHaplotypes;
   private final ImmutableMap<HLALocus, Pair<Set<TypePair>, Set<TypePair>>> remapping;
   private final ImmutableMap<HLALocus, Set<HLAType>> manualAssignments;
   private final ImmutableList<String> auditMessages;
+  private final FutureTask<HaplotypeResults> haplotypeTask;
+  private final AtomicBoolean prefetched = new AtomicBoolean(false);
+  private final List<Runnable> haplotypeListeners = new ArrayList<>();
+  // Thread running the haplotype search, and whether it was asked to stop. Guarded by searchLock.
+  private final Object searchLock = new Object();
+  private Thread searchThread = null;
+  private boolean stopRequested = false;
 
   public ValidationModel(String donorId, String filepath, String source, SourceType sourceType, Collection<SeroType> a, Collection<SeroType> b,
       Collection<SeroType> c, Collection<SeroType> drb, Collection<SeroType> dqb, Collection<SeroType> dqa, Collection<SeroType> dpa,
       Collection<HLAType> dpb, boolean bw4, boolean bw6, List<HLAType> dr51, List<HLAType> dr52, List<HLAType> dr53,
-      Multimap<RaceGroup, Haplotype> bcCwdHaplotypes, Multimap<RaceGroup, Haplotype> drdqCwdHaplotypes,
-      Map<HLALocus, Pair<Set<TypePair>, Set<TypePair>>> remapping, Map<HLALocus, Set<HLAType>> manualAssignments, List<String> auditMessages) {
+      Map<HLALocus, Pair<Set<TypePair>, Set<TypePair>>> remapping, Map<HLALocus, Set<HLAType>> manualAssignments, List<String> auditMessages,
+      Callable<HaplotypeResults> haplotypes) {
     this.donorId = donorId;
     this.filepath = filepath;
     this.source = source;
@@ -100,12 +113,20 @@ public class ValidationModel {
     dr52Locus = ImmutableList.copyOf(dr52);
     dr53Locus = ImmutableList.copyOf(dr53);
 
-    bcHaplotypes = ImmutableMultimap.copyOf(bcCwdHaplotypes);
-    drdqHaplotypes = ImmutableMultimap.copyOf(drdqCwdHaplotypes);
-
     this.remapping = ImmutableMap.copyOf(remapping);
     this.manualAssignments = ImmutableMap.copyOf(manualAssignments);
     this.auditMessages = ImmutableList.copyOf(auditMessages);
+    haplotypeTask = new FutureTask<>(() -> searchHaplotypes(haplotypes)) {
+      @Override
+      protected void done() {
+        List<Runnable> listeners;
+        synchronized (haplotypeListeners) {
+          listeners = new ArrayList<>(haplotypeListeners);
+          haplotypeListeners.clear();
+        }
+        listeners.forEach(Runnable::run);
+      }
+    };
   }
 
   public String getDonorId() {
@@ -229,11 +250,118 @@ public class ValidationModel {
   }
 
   public ImmutableMultimap<RaceGroup, Haplotype> getBCHaplotypes() {
-    return bcHaplotypes;
+    return getHaplotypeResults().getBCHaplotypes();
   }
 
   public ImmutableMultimap<RaceGroup, Haplotype> getDRDQHaplotypes() {
-    return drdqHaplotypes;
+    return getHaplotypeResults().getDRDQHaplotypes();
+  }
+
+  /**
+   * @return The haplotypes of this model, computing them on the calling thread if they have not
+   *         been computed yet. If they are being computed on another thread, waits for them.
+   */
+  public HaplotypeResults getHaplotypeResults() {
+    // Does nothing if the task already ran, or is running on another thread
+    haplotypeTask.run();
+    try {
+      return Uninterruptibles.getUninterruptibly(haplotypeTask);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException("Haplotype search failed", e.getCause());
+    }
+  }
+
+  /** Run the haplotype search on the calling thread, so it can be stopped */
+  private HaplotypeResults searchHaplotypes(Callable<HaplotypeResults> haplotypes) throws Exception {
+    synchronized (searchLock) {
+      searchThread = Thread.currentThread();
+      if (stopRequested) {
+        searchThread.interrupt();
+      }
+    }
+    try {
+      return haplotypes.call();
+    } finally {
+      synchronized (searchLock) {
+        searchThread = null;
+        if (stopRequested) {
+          // The interrupt was only for the search
+          Thread.interrupted();
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop searching for this model's haplotypes, keeping the most likely found so far. If the search
+   * has not started, it finds none. Does nothing if the haplotypes have been computed.
+   */
+  public void stopHaplotypeSearch() {
+    synchronized (searchLock) {
+      stopRequested = true;
+      if (searchThread != null) {
+        searchThread.interrupt();
+      }
+    }
+  }
+
+  /** @return Whether this model's haplotypes have been computed */
+  public boolean haplotypesComputed() {
+    return haplotypeTask.isDone();
+  }
+
+  /**
+   * @param listener Run once this model's haplotypes are computed, on the thread that computed them.
+   *        Run immediately on the calling thread if they already are. Does not start the search.
+   */
+  public void whenHaplotypesComputed(Runnable listener) {
+    synchronized (haplotypeListeners) {
+      if (!haplotypeTask.isDone()) {
+        haplotypeListeners.add(listener);
+        return;
+      }
+    }
+    listener.run();
+  }
+
+  /**
+   * Start computing this model's haplotypes on a background thread, so they are ready, or closer to
+   * ready, when first needed. Does nothing if they were already requested.
+   */
+  public void prefetchHaplotypes() {
+    if (!haplotypeTask.isDone() && prefetched.compareAndSet(false, true)) {
+      Thread prefetch = new Thread(haplotypeTask, "Haplotypes " + donorId);
+      // Should not keep the application open if the results are never needed
+      prefetch.setDaemon(true);
+      prefetch.start();
+    }
+  }
+
+  /**
+   * @return Whether the haplotype searches for this model finished, and how much work they did. If
+   *         not optimal, the reported haplotypes are the most likely found before the time limit.
+   */
+  public HaplotypeSearchStats getHaplotypeSearchStats() {
+    return getHaplotypeResults().getSearchStats();
+  }
+
+  /**
+   * @return The most likely B-C haplotype pairs of each ethnicity. The first pair of each
+   *         ethnicity is the one reported by {@link #getBCHaplotypes()}, and the rest follow in order
+   *         of the ethnicity's own score, see {@link RankedHaplotypePair#getScoredBy()}.
+   */
+  public ImmutableListMultimap<RaceGroup, RankedHaplotypePair> getBCRankedPairs() {
+    return getHaplotypeResults().getBCRankedPairs();
+  }
+
+  /**
+   * @return The most likely DR-DQ haplotype pairs of each ethnicity. The first pair of each
+   *         ethnicity is the one reported by {@link #getDRDQHaplotypes()}, and the rest follow in order
+   *         of the ethnicity's own score, see {@link RankedHaplotypePair#getScoredBy()}.
+   */
+  public ImmutableListMultimap<RaceGroup, RankedHaplotypePair> getDRDQRankedPairs() {
+    return getHaplotypeResults().getDRDQRankedPairs();
   }
 
   private String inGroupString(boolean group) {
@@ -254,13 +382,15 @@ public class ValidationModel {
     return list.get(index);
   }
 
+  // Equality deliberately ignores the haplotypes and their inputs, the allele-level strand
+  // candidates, which are not determined by the typing. Models of the same typing with different
+  // candidates are equal. Comparing the haplotypes would also force their search.
   @Override
   public int hashCode() {
     final int prime = 31;
     int result = 1;
     result = prime * result + ((aLocus == null) ? 0 : aLocus.hashCode());
     result = prime * result + ((bLocus == null) ? 0 : bLocus.hashCode());
-    result = prime * result + ((bcHaplotypes == null) ? 0 : bcHaplotypes.hashCode());
     result = prime * result + (bw4 ? 1231 : 1237);
     result = prime * result + (bw6 ? 1231 : 1237);
     result = prime * result + ((cLocus == null) ? 0 : cLocus.hashCode());
@@ -273,7 +403,6 @@ public class ValidationModel {
     result = prime * result + ((dr52Locus == null) ? 0 : dr52Locus.hashCode());
     result = prime * result + ((dr53Locus == null) ? 0 : dr53Locus.hashCode());
     result = prime * result + ((drbLocus == null) ? 0 : drbLocus.hashCode());
-    result = prime * result + ((drdqHaplotypes == null) ? 0 : drdqHaplotypes.hashCode());
     result = prime * result + ((source == null) ? 0 : source.hashCode());
     return result;
   }
@@ -297,11 +426,6 @@ public class ValidationModel {
         return false;
     } else if (!bLocus.equals(other.bLocus))
       return false;
-    if (bcHaplotypes == null) {
-      if (other.bcHaplotypes != null)
-        return false;
-    } else if (!bcHaplotypes.equals(other.bcHaplotypes))
-      return false;
     if (bw4 != other.bw4)
       return false;
     if (bw6 != other.bw6)
@@ -356,11 +480,6 @@ public class ValidationModel {
         return false;
     } else if (!drbLocus.equals(other.drbLocus))
       return false;
-    if (drdqHaplotypes == null) {
-      if (other.drdqHaplotypes != null)
-        return false;
-    } else if (!drdqHaplotypes.equals(other.drdqHaplotypes))
-      return false;
     if (source == null) {
       if (other.source != null)
         return false;
@@ -440,8 +559,17 @@ public class ValidationModel {
     return manualAssignments;
   }
 
+  /** @return Audit messages of the typing */
   public ImmutableList<String> getAuditMessages() {
     return auditMessages;
   }
 
+  /**
+   * @return Audit messages of the haplotype searches, computing the haplotypes if needed
+   * @see #getHaplotypeResults()
+   */
+  public ImmutableList<String> getHaplotypeAuditMessages() {
+    return getHaplotypeResults().getAuditMessages();
+  }
+
 }
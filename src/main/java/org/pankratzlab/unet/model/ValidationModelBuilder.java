@@ -21,15 +21,14 @@
  */
 package org.pankratzlab.unet.model;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -38,7 +37,13 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import org.apache.commons.lang3.tuple.Pair;
@@ -51,6 +56,7 @@ import org.pankratzlab.unet.deprecated.hla.SourceType;
 import org.pankratzlab.unet.hapstats.AlleleGroups;
 import org.pankratzlab.unet.hapstats.CommonWellDocumented;
 import org.pankratzlab.unet.hapstats.CommonWellDocumented.Status;
+import org.pankratzlab.unet.hapstats.FrequencyTable;
 import org.pankratzlab.unet.hapstats.Haplotype;
 import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
 import org.pankratzlab.unet.hapstats.RaceGroup;
@@ -62,17 +68,17 @@ import org.pankratzlab.unet.parser.util.DRAssociations;
 import org.pankratzlab.unet.parser.util.RabinKarp;
 import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
-import com.google.common.collect.Sets;
-import com.google.common.collect.Table;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * Mutable builder class for creating a {@link ValidationModel}.
@@ -87,18 +93,10 @@ public class ValidationModelBuilder {
   public static final Set<HLALocus> REPORT_SERO =
       Set.of(HLALocus.A, HLALocus.B, HLALocus.C, HLALocus.DRB1, HLALocus.DQB1, HLALocus.DQA1, HLALocus.DPA1);
 
-  private static final Map<RaceGroup, EthnicityHaplotypeComp> comparators = new EnumMap<>(RaceGroup.class);
-  private static final Table<Haplotype, RaceGroup, BigDecimal> frequencyTable = HashBasedTable.create();
   private static final String NEGATIVE_ALLELE = "N-Negative";
   public static final String NOT_ON_CELL_SURFACE = ".+[0-9]+[LSCAQlscaq]$";
   public static final String NOT_EXPRESSED = ".+[0-9]+[Nn]$";
 
-  {
-    for (RaceGroup ethnicity : RaceGroup.values()) {
-      comparators.put(ethnicity, new EthnicityHaplotypeComp(ethnicity));
-    }
-  }
-
   private String donorId;
   private String filepath;
   private String source;
@@ -129,6 +127,25 @@ public class ValidationModelBuilder {
   private Map<HLALocus, Set<HLAType>> manualAssignments = new HashMap<>();
   private List<String> auditMessages = new ArrayList<>();
 
+  // State of the haplotype searches for the current searchHaplotypeFamilies(..) call
+  private long searchDeadline;
+  private boolean hasSearchDeadline = false;
+  // Searches of the call that are running, and whether the call was interrupted. Guarded by
+  // runningSearches.
+  private final Set<HaplotypePairSearch> runningSearches = new HashSet<>();
+  private boolean searchesStopped = false;
+  // Tables every search of the call uses, even if the tables are reloaded part way through
+  private HaplotypeFrequencies.Snapshot frequencyTables = null;
+  // CWD statuses this builder uses. Those in use when it was created, unless set explicitly.
+  private CommonWellDocumented.Catalog cwdCatalog = CommonWellDocumented.loadedCatalog();
+  private HaplotypeProgressListener progressListener = null;
+  private Multimap<RaceGroup, Haplotype> provisionalBCHaplotypes = ImmutableMultimap.of();
+  private Multimap<RaceGroup, Haplotype> provisionalDRDQHaplotypes = ImmutableMultimap.of();
+
+  // Exact haplotype searches that finished, by family. Shared with the copies made by build(..), so
+  // rebuilding, e.g. after remapping, only searches a family again if its loci changed.
+  private Map<String, FamilySearch> finishedSearches = new ConcurrentHashMap<>();
+
   private Set<SeroType> drbLocus;
   private Set<SeroType> drbLocusNonCWD;
 
@@ -170,7 +187,24 @@ public class ValidationModelBuilder {
     return this;
   }
 
-  /** @param source Name for the source of this model */
+  /**
+   * @param catalog CWD statuses to prune and rank alleles with, instead of the database in use when
+   *        this builder was created
+   */
+  public ValidationModelBuilder cwdCatalog(CommonWellDocumented.Catalog catalog) {
+    cwdCatalog = catalog;
+    return this;
+  }
+
+  /** @return The CWD statuses of this builder, loading the configured database if none was set */
+  private CommonWellDocumented.Catalog cwd() {
+    if (cwdCatalog == null) {
+      cwdCatalog = CommonWellDocumented.current();
+    }
+    return cwdCatalog;
+  }
+
+  /** @param filepath Path of the file this model was read from */
   public ValidationModelBuilder file(String filepath) {
     this.filepath = filepath;
     return this;
@@ -673,29 +707,308 @@ public class ValidationModelBuilder {
 
   /** @return The immutable {@link ValidationModel} based on the current builder state. */
   public ValidationModel build() {
-    Multimap<RaceGroup, Haplotype> bcCwdHaplotypes = ArrayListMultimap.create();
-    Multimap<RaceGroup, Haplotype> drDqDR345Haplotypes = ArrayListMultimap.create();
+    return build(-1, TimeUnit.SECONDS, null);
+  }
+
+  /**
+   * Build the {@link ValidationModel}, limiting the time spent searching for haplotypes. The search
+   * starts the first time the model's haplotypes are needed, or when
+   * {@link ValidationModel#prefetchHaplotypes()} is called, and uses the haplotypes of this builder
+   * as they are now. If the limit is reached, or the searching thread is interrupted (see
+   * {@link ValidationModel#stopHaplotypeSearch()}), the most likely haplotypes found so far are used,
+   * which is reported in {@link ValidationModel#getHaplotypeSearchStats()} and
+   * {@link ValidationModel#getHaplotypeAuditMessages()}.
+   *
+   * @param timeLimit Maximum time to spend on haplotypes once the search starts, or negative for no
+   *        limit
+   * @param unit Unit of the time limit
+   * @param listener Notified each time more likely haplotypes are found, possibly from another
+   *        thread. May be null.
+   * @return The immutable {@link ValidationModel} based on the current builder state.
+   */
+  public ValidationModel build(long timeLimit, TimeUnit unit, HaplotypeProgressListener listener) {
+    // The model may search long after this call, so it gets its own copy of the haplotype inputs
+    ValidationModelBuilder haplotypeInputs = copyHaplotypeInputs();
+
+    Set<SeroType> aTypes = getFinalTypes(HLALocus.A);
+    Set<SeroType> bTypes = getFinalTypes(HLALocus.B);
+    Set<SeroType> cTypes = getFinalTypes(HLALocus.C);
+    Set<SeroType> drb1Types = getFinalTypes(HLALocus.DRB1);
+    Set<SeroType> dqb1Types = getFinalTypes(HLALocus.DQB1);
+    Set<SeroType> dqa1Types = getFinalTypes(HLALocus.DQA1);
+    Set<SeroType> dpa1Types = getFinalTypes(HLALocus.DPA1);
+    Set<HLAType> dpb1Types = getFinalDPBTypes();
+
+    ValidationModel validationModel = new ValidationModel(donorId, filepath, source, sourceType, aTypes, bTypes, cTypes, drb1Types, dqb1Types,
+        dqa1Types, dpa1Types, dpb1Types, bw4, bw6, dr51Locus, dr52Locus, dr53Locus, remapping, manualAssignments, auditMessages,
+        () -> haplotypeInputs.searchHaplotypeFamilies(timeLimit, unit, listener));
+    return validationModel;
+  }
+
+  /** @return A builder with a copy of the Bw groups and haplotypes of this builder */
+  private ValidationModelBuilder copyHaplotypeInputs() {
+    ValidationModelBuilder copy = new ValidationModelBuilder();
+    copy.bw4 = bw4;
+    copy.bw6 = bw6;
+    copy.bHaplotypes = HashMultimap.create(bHaplotypes);
+    copy.cHaplotypes = HashMultimap.create(cHaplotypes);
+    copy.drb1Haplotypes = HashMultimap.create(drb1Haplotypes);
+    copy.dqb1Haplotypes = HashMultimap.create(dqb1Haplotypes);
+    copy.dr345Haplotypes = HashMultimap.create(dr345Haplotypes);
+    copy.finishedSearches = finishedSearches;
+    copy.cwdCatalog = cwd();
+    return copy;
+  }
+
+  /**
+   * Search for the B-C and DR-DQ haplotypes of this builder
+   *
+   * @see #build(long, TimeUnit, HaplotypeProgressListener)
+   */
+  private HaplotypeResults searchHaplotypeFamilies(long timeLimit, TimeUnit unit, HaplotypeProgressListener listener) {
+    frequencyTables = HaplotypeFrequencies.current();
+    cwdCatalog = cwd();
+    // Resolve CWD statuses for every candidate now, rather than during the first comparisons
+    Stream.of(bHaplotypes, cHaplotypes, drb1Haplotypes, dqb1Haplotypes, dr345Haplotypes).forEach(types -> cwdCatalog.warmUp(types.values()));
+    hasSearchDeadline = timeLimit >= 0;
+    searchDeadline = System.nanoTime() + unit.toNanos(Math.max(0, timeLimit));
+    synchronized (runningSearches) {
+      // Interrupted before starting, the searches find nothing, rather than racing the interrupt
+      searchesStopped = Thread.currentThread().isInterrupted();
+    }
+    progressListener = listener;
+    provisionalBCHaplotypes = ImmutableMultimap.of();
+    provisionalDRDQHaplotypes = ImmutableMultimap.of();
+
+    FamilySearch bc = familySearch("B-C", Arrays.asList(bw4, bw6), ImmutableList.of(bHaplotypes, cHaplotypes));
+    FamilySearch drdq = familySearch("DR-DQ", ImmutableList.of(), ImmutableList.of(drb1Haplotypes, dqb1Haplotypes, dr345Haplotypes));
+
+    // The B-C and DR-DQ haplotypes are independent of each other, so are searched on their own
+    // threads
+    Map<FamilySearch, FutureTask<Multimap<RaceGroup, Haplotype>>> tasks = new LinkedHashMap<>();
+    if (!bc.finished) {
+      tasks.put(bc, new FutureTask<>(() -> buildBCHaplotypes(bHaplotypes, cHaplotypes, bc)));
+    }
+    if (!drdq.finished) {
+      tasks.put(drdq, new FutureTask<>(() -> buildDRDQHaplotypes(drdq)));
+    }
+    List<Thread> workers = new ArrayList<>();
+    tasks.forEach((family, task) -> workers.add(new Thread(task, family.family + " haplotypes")));
+    workers.forEach(Thread::start);
+
+    boolean interrupted = false;
     try {
-      bcCwdHaplotypes = buildBCHaplotypes(bHaplotypes, cHaplotypes);
+      for (FutureTask<Multimap<RaceGroup, Haplotype>> task : tasks.values()) {
+        task.get();
+      }
     } catch (InterruptedException ie) {
-      // skip
+      // Stop both searches as if the time limit had passed, keeping the best pairs found so far
+      interrupted = true;
+      stopSearches();
+    } catch (ExecutionException ee) {
+      // Reported when the results are collected
     }
+    // Searches check their deadline often, so workers end promptly once stopped. Waiting for them
+    // keeps them from changing the builder after the results are collected.
+    workers.forEach(Uninterruptibles::joinUninterruptibly);
+    progressListener = null;
+    tasks.forEach(this::finishSearch);
 
-    if (!Thread.interrupted()) {
-      try {
-        drDqDR345Haplotypes = buildHaplotypes(ImmutableList.of(drb1Haplotypes, dqb1Haplotypes, dr345Haplotypes));
-      } catch (InterruptedException ie) {
-        Thread.interrupted();
+    HaplotypeSearchStats searchStats = bc.stats.combine(drdq.stats);
+    List<String> messages = new ArrayList<>(bc.messages);
+    messages.addAll(drdq.messages);
+    if (!searchStats.isOptimal()) {
+      messages.add("Haplotype search was not exhaustive (" + searchStats + "). Reported haplotypes are the most likely found and may not be optimal.");
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return new HaplotypeResults(bc.haplotypes, drdq.haplotypes, bc.rankedPairs, drdq.rankedPairs, searchStats, messages);
+  }
+
+  /** Stop the running searches of the current call, and any it starts from now on */
+  private void stopSearches() {
+    synchronized (runningSearches) {
+      searchesStopped = true;
+      runningSearches.forEach(HaplotypePairSearch::stop);
+    }
+  }
+
+  /**
+   * Search for the most likely haplotype pairs spanning the given loci, without a time limit. Loci
+   * outside the B-C and DR-DQ families need a loaded frequency table covering them, see
+   * {@link HaplotypeFrequencies#NMDP_MULTI_PROP}; haplotypes over fewer loci than a table use its
+   * marginal frequencies. Bw groups are not enforced. Results are not kept in the
+   * {@link HaplotypeResultCache}, as they are not comparable with those of {@link #build()}.
+   *
+   * @param loci Loci of the haplotypes. Any of B, C, DRB1, DQB1 and DRB3/4/5, which are searched as
+   *        one locus.
+   * @return The most likely pairs of each ethnicity, the reported pair first
+   * @throws IllegalArgumentException If haplotypes are not tracked for one of the loci
+   * @throws InterruptedException If the calling thread is interrupted during the search
+   */
+  public ListMultimap<RaceGroup, RankedHaplotypePair> searchHaplotypes(List<HLALocus> loci) throws InterruptedException {
+    ValidationModelBuilder inputs = copyHaplotypeInputs();
+    inputs.frequencyTables = HaplotypeFrequencies.current().withMarginals();
+    Map<String, Multimap<Strand, HLAType>> typesByLocus = new LinkedHashMap<>();
+    for (HLALocus locus : loci) {
+      typesByLocus.put(FrequencyTable.locusKey(locus), inputs.haplotypeTypes(locus));
+    }
+    typesByLocus.values().forEach(types -> inputs.cwd().warmUp(types.values()));
+
+    FamilySearch search = new FamilySearch(String.join("-", typesByLocus.keySet()), ImmutableList.of());
+    Map<RaceGroup, List<ScoredHaplotypes>> rankedPairs = new EnumMap<>(RaceGroup.class);
+    inputs.buildHaplotypes(ImmutableList.copyOf(typesByLocus.values()), null, new HaplotypePairSearch.Memo(inputs.frequencyTables, inputs.cwd()), rankedPairs, search);
+    return rankPairs(rankedPairs);
+  }
+
+  /** @return The strand types of the given locus, as used in haplotype searches */
+  private Multimap<Strand, HLAType> haplotypeTypes(HLALocus locus) {
+    if (locus.isDRB345()) {
+      return dr345Haplotypes;
+    }
+    switch (locus) {
+      case B:
+        return bHaplotypes;
+      case C:
+        return cHaplotypes;
+      case DRB1:
+        return drb1Haplotypes;
+      case DQB1:
+        return dqb1Haplotypes;
+      default:
+        throw new IllegalArgumentException("Haplotypes are not tracked for locus " + locus);
+    }
+  }
+
+  /**
+   * @param family Name of the haplotype family
+   * @param bwGroups Bw groups the haplotypes depend on
+   * @param loci Types of each locus in the family
+   * @return A copy of the results of the finished exact search of this family if it was for the
+   *         same loci and reference data, otherwise a new search
+   */
+  private FamilySearch familySearch(String family, List<Boolean> bwGroups, List<Multimap<Strand, HLAType>> loci) {
+    List<Object> inputs = new ArrayList<>(bwGroups);
+    loci.forEach(types -> inputs.add(ImmutableSetMultimap.copyOf(types)));
+    inputs.add(HaplotypeResultCache.referenceDataVersion(frequencyTables, cwd().getSource()));
+    inputs.add(HaplotypePairSearch.configuredRankedPairCount());
+
+    FamilySearch finished = finishedSearches.get(family);
+    if (finished != null && finished.inputs.equals(inputs)) {
+      return finished.reused();
+    }
+    return new FamilySearch(family, inputs);
+  }
+
+  /**
+   * Record the haplotypes found by a finished search task. These are empty, and recorded as a partial
+   * search, if the task ended with an interrupt. Exact searches are kept to be reused by later builds.
+   */
+  private void finishSearch(FamilySearch family, FutureTask<Multimap<RaceGroup, Haplotype>> task) {
+    try {
+      if (!task.isCancelled()) {
+        family.haplotypes = task.get();
+        if (family.stats.isOptimal()) {
+          family.finished = true;
+          finishedSearches.put(family.family, family);
+        }
+        return;
+      }
+    } catch (InterruptedException e) {
+      // Not possible, the task is finished
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
       }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      // Interrupted
     }
+    family.stats = family.stats.combine(new HaplotypeSearchStats(false, 0, 0));
+    family.haplotypes = ArrayListMultimap.create();
+    family.rankedPairs = ArrayListMultimap.create();
+  }
 
-    frequencyTable.clear();
+  /**
+   * State and results of the haplotype search for one family of linked loci. Only changed by the
+   * thread searching it.
+   */
+  private static class FamilySearch {
+    private final String family;
+    // Everything the results depend on
+    private final List<Object> inputs;
+    private final List<String> messages = new ArrayList<>();
+    private Multimap<RaceGroup, Haplotype> haplotypes = ArrayListMultimap.create();
+    private ListMultimap<RaceGroup, RankedHaplotypePair> rankedPairs = ArrayListMultimap.create();
+    private HaplotypeSearchStats stats = HaplotypeSearchStats.NONE;
+    // Whether this is a completed exact search, which can be reused
+    private boolean finished = false;
+
+    private FamilySearch(String family, List<Object> inputs) {
+      this.family = family;
+      this.inputs = inputs;
+    }
 
-    ValidationModel validationModel = new ValidationModel(donorId, filepath, source, sourceType, getFinalTypes(HLALocus.A), getFinalTypes(HLALocus.B),
-        getFinalTypes(HLALocus.C), getFinalTypes(HLALocus.DRB1), getFinalTypes(HLALocus.DQB1), getFinalTypes(HLALocus.DQA1),
-        getFinalTypes(HLALocus.DPA1), getFinalDPBTypes(), bw4, bw6, dr51Locus, dr52Locus, dr53Locus, bcCwdHaplotypes, drDqDR345Haplotypes, remapping,
-        manualAssignments, auditMessages);
-    return validationModel;
+    /**
+     * @return The results of this finished search, without its messages and stats, as no search is
+     *         run to reuse them
+     */
+    private FamilySearch reused() {
+      FamilySearch reused = new FamilySearch(family, inputs);
+      reused.haplotypes = haplotypes;
+      reused.rankedPairs = rankedPairs;
+      reused.finished = true;
+      reused.messages.add(family + " haplotypes: reused the result of the previous exact search.");
+      return reused;
+    }
+  }
+
+  /** Helper method to build the DRB345-DRB1-DQB1 haplotypes */
+  private Multimap<RaceGroup, Haplotype> buildDRDQHaplotypes(FamilySearch family) throws InterruptedException {
+    Map<RaceGroup, List<ScoredHaplotypes>> rankedPairs = new EnumMap<>(RaceGroup.class);
+    Multimap<RaceGroup, Haplotype> haplotypes = buildHaplotypes(ImmutableList.of(drb1Haplotypes, dqb1Haplotypes, dr345Haplotypes), publishDRDQ(),
+        new HaplotypePairSearch.Memo(frequencyTables, cwd()), rankedPairs, family);
+    family.rankedPairs = rankPairs(rankedPairs);
+    return haplotypes;
+  }
+
+  /** Receives the most likely haplotypes found so far while a {@link ValidationModel} is built */
+  @FunctionalInterface
+  public interface HaplotypeProgressListener {
+    /**
+     * @param bcHaplotypes Most likely B-C haplotypes found so far, by ethnicity
+     * @param drdqHaplotypes Most likely DRB345-DRB1-DQB1 haplotypes found so far, by ethnicity
+     */
+    void haplotypesUpdated(Multimap<RaceGroup, Haplotype> bcHaplotypes, Multimap<RaceGroup, Haplotype> drdqHaplotypes);
+  }
+
+  /** @return A consumer of provisional B-C haplotypes, or null if progress is not being reported */
+  private Consumer<Multimap<RaceGroup, Haplotype>> publishBC() {
+    return progressListener == null ? null : haplotypes -> publishProgress(haplotypes, null);
+  }
+
+  /** @return A consumer of provisional DR-DQ haplotypes, or null if progress is not being reported */
+  private Consumer<Multimap<RaceGroup, Haplotype>> publishDRDQ() {
+    return progressListener == null ? null : haplotypes -> publishProgress(null, haplotypes);
+  }
+
+  /** Report provisional haplotypes to the progress listener. Null arguments are left unchanged. */
+  private synchronized void publishProgress(Multimap<RaceGroup, Haplotype> bc, Multimap<RaceGroup, Haplotype> drdq) {
+    HaplotypeProgressListener listener = progressListener;
+    if (listener == null) {
+      return;
+    }
+    if (bc != null) {
+      provisionalBCHaplotypes = ImmutableMultimap.copyOf(bc);
+    }
+    if (drdq != null) {
+      provisionalDRDQHaplotypes = ImmutableMultimap.copyOf(drdq);
+    }
+    listener.haplotypesUpdated(provisionalBCHaplotypes, provisionalDRDQHaplotypes);
   }
 
   // Shorten the allele designation to allele group and specific HLA protein. Further fields can
@@ -739,285 +1052,303 @@ public class ValidationModelBuilder {
   /**
    * Helper method to build the B/C haplotypes. Extra filtering is needed based on the Bw groups.
    */
-  private Multimap<RaceGroup, Haplotype> buildBCHaplotypes(Multimap<Strand, HLAType> bHaps, Multimap<Strand, HLAType> cHaps)
+  private Multimap<RaceGroup, Haplotype> buildBCHaplotypes(Multimap<Strand, HLAType> bHaps, Multimap<Strand, HLAType> cHaps, FamilySearch family)
       throws InterruptedException {
     if (bw4 && bw6) {
       // One strand is Bw4 and one is Bw6, but we can't know for sure which. So we try both
       Multimap<Strand, HLAType> s4s6 = enforceBws(BwGroup.Bw4, BwGroup.Bw6, bHaps);
       Multimap<Strand, HLAType> s6s4 = enforceBws(BwGroup.Bw6, BwGroup.Bw4, bHaps);
-      Multimap<RaceGroup, Haplotype> s4s6Haplotypes = s4s6.isEmpty() ? ImmutableMultimap.of() : buildHaplotypes(ImmutableList.of(s4s6, cHaplotypes));
-      Multimap<RaceGroup, Haplotype> s6s4Haplotypes = s6s4.isEmpty() ? ImmutableMultimap.of() : buildHaplotypes(ImmutableList.of(s6s4, cHaplotypes));
-
-      // Merge the bw4/bw6 sets into a combined Scoring set
-      List<ScoredHaplotypes> scoredHaplotypePairs = new ArrayList<>();
-      for (RaceGroup raceGroup : RaceGroup.values()) {
-        if (s6s4Haplotypes.containsKey(raceGroup)) {
-          scoredHaplotypePairs.add(new ScoredHaplotypes(s6s4Haplotypes.get(raceGroup)));
-        }
-
-        if (s4s6Haplotypes.containsKey(raceGroup)) {
-          scoredHaplotypePairs.add(new ScoredHaplotypes(s4s6Haplotypes.get(raceGroup)));
-        }
-      }
-
-      // For each ethnicity pick best haplotype pairs from these sets
-      Multimap<RaceGroup, Haplotype> haplotypesByEthnicity = HashMultimap.create();
-
-      if (!scoredHaplotypePairs.isEmpty()) {
-        for (RaceGroup ethnicity : RaceGroup.values()) {
-
-          // Sort the haplotype pairs to find the most likely pairing for this ethnicity
-          ScoredHaplotypes max = Collections.max(scoredHaplotypePairs, new EthnicityHaplotypeComp(ethnicity));
-
-          // Record each haplotype in the pair
-          for (Haplotype t : max) {
-            haplotypesByEthnicity.put(ethnicity, t);
-          }
-        }
-      }
-      return haplotypesByEthnicity;
+      // The alignments share the C locus and many B candidates, so share work between the searches
+      HaplotypePairSearch.Memo memo = new HaplotypePairSearch.Memo(frequencyTables, cwd());
+      List<Multimap<RaceGroup, Haplotype>> variants = new ArrayList<>(List.of(ImmutableMultimap.of(), ImmutableMultimap.of()));
+      Map<RaceGroup, List<ScoredHaplotypes>> s4s6Ranked = new EnumMap<>(RaceGroup.class);
+      Map<RaceGroup, List<ScoredHaplotypes>> s6s4Ranked = new EnumMap<>(RaceGroup.class);
+      Multimap<RaceGroup, Haplotype> s4s6Haplotypes = s4s6.isEmpty() ? ImmutableMultimap.of()
+          : buildHaplotypes(ImmutableList.of(s4s6, cHaplotypes), publishBwVariant(variants, 0, memo), memo, s4s6Ranked, family);
+      variants.set(0, s4s6Haplotypes);
+      Multimap<RaceGroup, Haplotype> s6s4Haplotypes = s6s4.isEmpty() ? ImmutableMultimap.of()
+          : buildHaplotypes(ImmutableList.of(s6s4, cHaplotypes), publishBwVariant(variants, 1, memo), memo, s6s4Ranked, family);
+      Multimap<RaceGroup, Haplotype> merged = mergeBwVariants(s4s6Haplotypes, s6s4Haplotypes, memo);
+      family.rankedPairs = mergeRankedBwVariants(merged, s4s6Ranked, s6s4Ranked, memo);
+      return merged;
     } else if (bw4) {
       // Both strands bw4
       Multimap<Strand, HLAType> s4s4 = enforceBws(BwGroup.Bw4, BwGroup.Bw4, bHaps);
-      return buildHaplotypes(ImmutableList.of(s4s4, cHaplotypes));
+      Map<RaceGroup, List<ScoredHaplotypes>> rankedPairs = new EnumMap<>(RaceGroup.class);
+      Multimap<RaceGroup, Haplotype> haplotypes =
+          buildHaplotypes(ImmutableList.of(s4s4, cHaplotypes), publishBC(), new HaplotypePairSearch.Memo(frequencyTables, cwd()), rankedPairs, family);
+      family.rankedPairs = rankPairs(rankedPairs);
+      return haplotypes;
     } else if (bw6) {
       // Both strands bw6
       Multimap<Strand, HLAType> s6s6 = enforceBws(BwGroup.Bw6, BwGroup.Bw6, bHaps);
-      return buildHaplotypes(ImmutableList.of(s6s6, cHaplotypes));
+      Map<RaceGroup, List<ScoredHaplotypes>> rankedPairs = new EnumMap<>(RaceGroup.class);
+      Multimap<RaceGroup, Haplotype> haplotypes =
+          buildHaplotypes(ImmutableList.of(s6s6, cHaplotypes), publishBC(), new HaplotypePairSearch.Memo(frequencyTables, cwd()), rankedPairs, family);
+      family.rankedPairs = rankPairs(rankedPairs);
+      return haplotypes;
     }
 
     return ArrayListMultimap.create();
   }
 
   /**
-   * Helper method to enforce a particular Bw strand alignment for any B alleles in the given multimap
+   * @param variants Current haplotypes of the Bw4/Bw6 and Bw6/Bw4 searches
+   * @param index The search to report progress for
+   * @param memo Scored pairs shared by the searches
+   * @return A consumer of provisional haplotypes for one of the Bw4/Bw6 searches, reporting the
+   *         merged B-C haplotypes. Null if progress is not being reported.
    */
-  private Multimap<Strand, HLAType> enforceBws(BwGroup strandOneGroup, BwGroup strandTwoGroup, Multimap<Strand, HLAType> haplotypes) {
-    ListMultimap<Strand, HLAType> enforced = ArrayListMultimap.create();
-    // check alleles in first strand
-    for (HLAType t : haplotypes.get(Strand.FIRST)) {
-      if (!HLALocus.B.equals(t.locus()) || strandOneGroup.equals(BwSerotypes.getBwGroup(t)) || BwGroup.Unknown.equals(BwSerotypes.getBwGroup(t))) {
-        enforced.put(Strand.FIRST, t);
-      }
+  private Consumer<Multimap<RaceGroup, Haplotype>> publishBwVariant(List<Multimap<RaceGroup, Haplotype>> variants, int index,
+      HaplotypePairSearch.Memo memo) {
+    Consumer<Multimap<RaceGroup, Haplotype>> publish = publishBC();
+    if (publish == null) {
+      return null;
     }
-    for (HLAType t : haplotypes.get(Strand.SECOND)) {
-      if (!HLALocus.B.equals(t.locus()) || strandTwoGroup.equals(BwSerotypes.getBwGroup(t)) || BwGroup.Unknown.equals(BwSerotypes.getBwGroup(t))) {
-        enforced.put(Strand.SECOND, t);
+    return haplotypes -> {
+      variants.set(index, haplotypes);
+      try {
+        publish.accept(mergeBwVariants(variants.get(0), variants.get(1), memo));
+      } catch (InterruptedException e) {
+        // The search will stop on its own; there is nothing more to report
       }
-    }
-    return enforced;
+    };
   }
 
-  private boolean isPositive(String dr) {
-    return !Objects.equals(dr, NEGATIVE_ALLELE);
-  }
+  /**
+   * @param memo Scored pairs from the searches, so the found pairs need not be scored again
+   * @return For each ethnicity, the most likely of the haplotype pairs found by the Bw4/Bw6 and
+   *         Bw6/Bw4 searches
+   */
+  private Multimap<RaceGroup, Haplotype> mergeBwVariants(Multimap<RaceGroup, Haplotype> s4s6Haplotypes,
+      Multimap<RaceGroup, Haplotype> s6s4Haplotypes, HaplotypePairSearch.Memo memo) throws InterruptedException {
+    // Merge the bw4/bw6 sets into a combined Scoring set
+    List<ScoredHaplotypes> scoredHaplotypePairs = new ArrayList<>();
+    for (RaceGroup raceGroup : RaceGroup.values()) {
+      if (s6s4Haplotypes.containsKey(raceGroup)) {
+        scoredHaplotypePairs.add(memo.score(s6s4Haplotypes.get(raceGroup)));
+      }
 
-  /** @return A table of the highest-probability haplotypes for each ethnicity */
-  private Multimap<RaceGroup, Haplotype> buildHaplotypes(List<Multimap<Strand, HLAType>> typesByLocus) throws InterruptedException {
-    Map<RaceGroup, ScoredHaplotypes> maxScorePairsByEthnicity = new HashMap<>();
-    Multimap<RaceGroup, Haplotype> haplotypesByEthnicity = MultimapBuilder.enumKeys(RaceGroup.class).arrayListValues().build();
+      if (s4s6Haplotypes.containsKey(raceGroup)) {
+        scoredHaplotypePairs.add(memo.score(s4s6Haplotypes.get(raceGroup)));
+      }
+    }
 
-    List<Multimap<Strand, HLAType>> presentTypesByLocus = typesByLocus.stream().filter(m -> !m.isEmpty()).collect(Collectors.toList());
-    presentTypesByLocus.forEach(this::pruneUnknown);
-    presentTypesByLocus.forEach(this::condenseGroups);
+    // For each ethnicity pick best haplotype pairs from these sets
+    Multimap<RaceGroup, Haplotype> haplotypesByEthnicity = HashMultimap.create();
 
-    if (!presentTypesByLocus.isEmpty()) {
-      // Recursively generate the set of all possible haplotype pairs
-      generateHaplotypePairs(maxScorePairsByEthnicity, presentTypesByLocus);
-      for (Entry<RaceGroup, ScoredHaplotypes> entry : maxScorePairsByEthnicity.entrySet()) {
-        for (Haplotype h : entry.getValue()) {
-          haplotypesByEthnicity.put(entry.getKey(), h);
+    if (!scoredHaplotypePairs.isEmpty()) {
+      for (RaceGroup ethnicity : RaceGroup.values()) {
+
+        // Sort the haplotype pairs to find the most likely pairing for this ethnicity
+        ScoredHaplotypes max = Collections.max(scoredHaplotypePairs, new EthnicityHaplotypeComp(ethnicity));
+
+        // Record each haplotype in the pair
+        for (Haplotype t : max) {
+          haplotypesByEthnicity.put(ethnicity, t);
         }
       }
     }
-
     return haplotypesByEthnicity;
   }
 
   /**
-   * Recursive entry point for generating all possible {@link Haplotype} pairs.
+   * Rank the pairs of each ethnicity the same way as a single search, see {@link #rankPairs(Map)}.
+   * The alignment whose pair {@link #mergeBwVariants} reported for an ethnicity is the one ranked
+   * for it, so its ranked pairs start with the reported pair.
    *
-   * @param maxScorePairsByEthnicity Collection to populate with possible haplotype pairs
-   * @param typesByLocus List of mappings, one per locus, of {@link Strand} to possible alleles for
-   *        that strand.
-   * @throws InterruptedException
+   * @param merged The pairs chosen by {@link #mergeBwVariants}
+   * @param s4s6Ranked Most likely pairs of the Bw4/Bw6 search, best first
+   * @param s6s4Ranked Most likely pairs of the Bw6/Bw4 search, best first
+   * @param memo Scored pairs from the searches
+   * @return For each ethnicity, the most likely pairs of the alignment reported for it
    */
-  private void generateHaplotypePairs(Map<RaceGroup, ScoredHaplotypes> maxScorePairsByEthnicity, List<Multimap<Strand, HLAType>> typesByLocus)
+  private ListMultimap<RaceGroup, RankedHaplotypePair> mergeRankedBwVariants(Multimap<RaceGroup, Haplotype> merged,
+      Map<RaceGroup, List<ScoredHaplotypes>> s4s6Ranked, Map<RaceGroup, List<ScoredHaplotypes>> s6s4Ranked, HaplotypePairSearch.Memo memo)
       throws InterruptedException {
-    // Overview:
-    // 1. Recurse through strand 1 sets - for each locus, record the possible complementary options
-    // 2. At the terminal strand 1 step, start recursing through the possible strand 2 options
-    // 3. At the terminal strand 2 step, create a ScoredHaplotype for the pair
-
-    generateStrandOneHaplotypes(maxScorePairsByEthnicity, typesByLocus, new ArrayList<>(), new ArrayList<>(), 0);
+    ListMultimap<RaceGroup, RankedHaplotypePair> rankedByEthnicity = MultimapBuilder.enumKeys(RaceGroup.class).arrayListValues().build();
+    for (RaceGroup ethnicity : RaceGroup.values()) {
+      if (!merged.containsKey(ethnicity)) {
+        continue;
+      }
+      // The merged haplotypes are a set, so compare as sets to match homozygous pairs
+      Set<Haplotype> reported = ImmutableSet.copyOf(merged.get(ethnicity));
+      List<ScoredHaplotypes> ranked = null;
+      for (Map<RaceGroup, List<ScoredHaplotypes>> variant : Arrays.asList(s4s6Ranked, s6s4Ranked)) {
+        List<ScoredHaplotypes> pairs = variant.getOrDefault(ethnicity, ImmutableList.of());
+        if (!pairs.isEmpty() && ImmutableSet.copyOf(pairs.get(0)).equals(reported)) {
+          ranked = pairs;
+          break;
+        }
+      }
+      if (ranked == null) {
+        ranked = ImmutableList.of(memo.score(merged.get(ethnicity)));
+      }
+      rankedByEthnicity.putAll(ethnicity, toRankedPairs(ranked, ethnicity));
+    }
+    return rankedByEthnicity;
   }
 
   /**
-   * Recursively generate all possible haplotypes for the "first" strand.
-   *
-   * @param maxScorePairsByEthnicity Collection to populate with possible haplotype pairs
-   * @param typesByLocus List of mappings, one per locus, of {@link Strand} to possible alleles for
-   *        that strand.
-   * @param currentHaplotypeAlleles Current alleles of the first haplotype
-   * @param strandTwoOptionsByLocus List of allele options, by locus, to populate for complementary
-   *        haplotype generation.
-   * @param locusIndex Current locus index in the {@code strandTwoOptionsByLocus} list
+   * @param pairsByEthnicity Most likely pairs of a search for each ethnicity, best first
+   * @return The pairs of each ethnicity, with their ranking, scored by the ethnicity. The first is
+   *         the reported pair, which may score below the others, see
+   *         {@link HaplotypePairSearch#RANKING_ETHNICITY}.
    */
-  private void generateStrandOneHaplotypes(Map<RaceGroup, ScoredHaplotypes> maxScorePairsByEthnicity, List<Multimap<Strand, HLAType>> typesByLocus,
-      List<HLAType> currentHaplotypeAlleles, List<List<HLAType>> strandTwoOptionsByLocus, int locusIndex) throws InterruptedException {
-
-    if (Thread.currentThread().isInterrupted()) {
-      throw new InterruptedException();
+  private static ListMultimap<RaceGroup, RankedHaplotypePair> rankPairs(Map<RaceGroup, List<ScoredHaplotypes>> pairsByEthnicity) {
+    ListMultimap<RaceGroup, RankedHaplotypePair> rankedByEthnicity = MultimapBuilder.enumKeys(RaceGroup.class).arrayListValues().build();
+    for (Entry<RaceGroup, List<ScoredHaplotypes>> entry : pairsByEthnicity.entrySet()) {
+      rankedByEthnicity.putAll(entry.getKey(), toRankedPairs(entry.getValue(), entry.getKey()));
     }
+    return rankedByEthnicity;
+  }
 
-    if (locusIndex == typesByLocus.size()) {
-      // Terminal step - we now have one haplotype; recursively generate the second
-      Haplotype firstHaplotype = new Haplotype(currentHaplotypeAlleles);
-      generateStrandTwoHaplotypes(maxScorePairsByEthnicity, firstHaplotype, strandTwoOptionsByLocus, new ArrayList<>(), 0);
-    } else {
-      // Recursive step -
-      Multimap<Strand, HLAType> currentLocus = typesByLocus.get(locusIndex);
+  /**
+   * @param pairs Haplotype pairs, the reported pair first
+   * @param scoredBy Ethnicity whose scores to report
+   */
+  private static List<RankedHaplotypePair> toRankedPairs(List<ScoredHaplotypes> pairs, RaceGroup scoredBy) {
+    List<RankedHaplotypePair> ranked = new ArrayList<>();
+    double bestScore = pairs.stream().mapToDouble(pair -> pair.getScore(scoredBy)).max().orElse(0);
+    for (ScoredHaplotypes pair : pairs) {
+      double score = pair.getScore(scoredBy);
+      ranked.add(new RankedHaplotypePair(ranked.size() + 1, ImmutableList.copyOf(pair), scoredBy, score, bestScore - score));
+    }
+    return ranked;
+  }
 
-      // The strand notations are arbitrary. So at each locus we need to consider each possible
-      // alignment of the alleles - including whether they are heterozygous or homozygous.
-      // However at the first locus we do not need to consider Strand1 + Strand2 AND
-      // Strand2 + Strand1, as the resulting haplotype pairs would mirror each other.
-      Set<Strand> firstStrandsSet = locusIndex == 0 ? ImmutableSet.of(Strand.FIRST) : currentLocus.keySet();
+  /**
+   * Helper method to enforce a particular Bw strand alignment for any B alleles in the given multimap
+   */
+  private Multimap<Strand, HLAType> enforceBws(BwGroup strandOneGroup, BwGroup strandTwoGroup, Multimap<Strand, HLAType> haplotypes) {
+    ListMultimap<Strand, HLAType> enforced = ArrayListMultimap.create();
+    // check alleles in first strand
+    for (HLAType t : haplotypes.get(Strand.FIRST)) {
+      if (!HLALocus.B.equals(t.locus()) || strandOneGroup.equals(BwSerotypes.getBwGroup(t)) || BwGroup.Unknown.equals(BwSerotypes.getBwGroup(t))) {
+        enforced.put(Strand.FIRST, t);
+      }
+    }
+    for (HLAType t : haplotypes.get(Strand.SECOND)) {
+      if (!HLALocus.B.equals(t.locus()) || strandTwoGroup.equals(BwSerotypes.getBwGroup(t)) || BwGroup.Unknown.equals(BwSerotypes.getBwGroup(t))) {
+        enforced.put(Strand.SECOND, t);
+      }
+    }
+    return enforced;
+  }
 
-      // Build the combinations of strand1 + strand2 alleles at this locus
-      for (Strand strandOne : firstStrandsSet) {
+  private boolean isPositive(String dr) {
+    return !Objects.equals(dr, NEGATIVE_ALLELE);
+  }
 
-        if (Thread.currentThread().isInterrupted()) {
-          throw new InterruptedException();
-        }
+  /**
+   * @param progress Notified with the most likely haplotypes found so far each time they improve.
+   *        May be null.
+   * @param memo Work to share with other searches over overlapping candidates
+   * @param rankedPairs Receives the most likely pairs of each ethnicity, the reported pair first, up
+   *        to the configured HAPLOTYPE_PAIR_COUNT
+   * @param family Receives the stats and audit messages of the search
+   * @return A table of the highest-probability haplotypes for each ethnicity
+   */
+  private Multimap<RaceGroup, Haplotype> buildHaplotypes(List<Multimap<Strand, HLAType>> typesByLocus,
+      Consumer<Multimap<RaceGroup, Haplotype>> progress, HaplotypePairSearch.Memo memo, Map<RaceGroup, List<ScoredHaplotypes>> rankedPairs,
+      FamilySearch family) throws InterruptedException {
+    List<Multimap<Strand, HLAType>> presentTypesByLocus = typesByLocus.stream().filter(m -> !m.isEmpty()).collect(Collectors.toList());
+    presentTypesByLocus.forEach(this::pruneUnknown);
+    presentTypesByLocus.forEach(this::condenseGroups);
 
-        List<HLAType> firstStrandTypes = Lists.newArrayList(currentLocus.get(strandOne));
-        List<HLAType> secondStrandTypes = Lists.newArrayList(currentLocus.get(strandOne.flip()));
-        if (secondStrandTypes.isEmpty()) {
-          secondStrandTypes = Lists.newArrayList(firstStrandTypes);
-        }
+    if (presentTypesByLocus.isEmpty()) {
+      return toMultimap(ImmutableMap.of());
+    }
 
-        // sorts in descending order, notice h2's weight is found first
-        Comparator<HLAType> c = ((h1, h2) -> {
-          int d = Double.compare(CommonWellDocumented.getEquivStatus(h2).getWeight(), CommonWellDocumented.getEquivStatus(h1).getWeight());
-          if (d != 0)
-            return d;
-          return h2.compareTo(h1);
-        });
-        firstStrandTypes.sort(c);
-        secondStrandTypes.sort(c);
-
-        double bestCWD;
-        int i;
-
-        if (!firstStrandTypes.isEmpty()) {
-          bestCWD = CommonWellDocumented.getEquivStatus(firstStrandTypes.get(0)).getWeight();
-          i = 1;
-          while (i < firstStrandTypes.size() && CommonWellDocumented.getEquivStatus(firstStrandTypes.get(i)).getWeight() == bestCWD) {
-            i++;
-          }
-          for (int j = firstStrandTypes.size() - 1; j >= i; j--) {
-            firstStrandTypes.remove(j);
-          }
+    String loci = presentTypesByLocus.stream().map(ValidationModelBuilder::locusName).collect(Collectors.joining("-"));
+    int rankedPairCount = HaplotypePairSearch.configuredRankedPairCount();
+    Optional<HaplotypeResultCache> cache = HaplotypeResultCache.configured(frequencyTables, cwd().getSource());
+    Optional<Map<RaceGroup, List<List<Haplotype>>>> cached = cache.flatMap(c -> c.load(presentTypesByLocus, rankedPairCount));
+    if (cached.isPresent()) {
+      Map<RaceGroup, ScoredHaplotypes> bestPairs = new EnumMap<>(RaceGroup.class);
+      for (Entry<RaceGroup, List<List<Haplotype>>> entry : cached.get().entrySet()) {
+        if (entry.getValue().isEmpty()) {
+          // As in a search, an ethnicity without pairs has no entry
+          continue;
         }
-
-        if (!secondStrandTypes.isEmpty()) {
-          bestCWD = CommonWellDocumented.getEquivStatus(secondStrandTypes.get(0)).getWeight();
-          i = 1;
-          while (i < secondStrandTypes.size() && CommonWellDocumented.getEquivStatus(secondStrandTypes.get(i)).getWeight() == bestCWD) {
-            i++;
-          }
-          for (int j = secondStrandTypes.size() - 1; j >= i; j--) {
-            secondStrandTypes.remove(j);
-          }
+        List<ScoredHaplotypes> scored = new ArrayList<>();
+        for (List<Haplotype> pair : entry.getValue()) {
+          scored.add(memo.score(pair));
         }
+        rankedPairs.put(entry.getKey(), scored);
+        bestPairs.put(entry.getKey(), scored.get(0));
+      }
+      family.messages.add(loci + " haplotypes: reused the result of a previous exact search.");
+      return toMultimap(bestPairs);
+    }
 
-        // set up the second strand options to iterate over after the first haplotype is built
-        setOrAdd(strandTwoOptionsByLocus, secondStrandTypes, locusIndex);
-
-        // Try each possible strand one allele
-        for (HLAType currentType : firstStrandTypes) {
-          if (Thread.currentThread().isInterrupted()) {
-            throw new InterruptedException();
-          }
-          setOrAdd(currentHaplotypeAlleles, currentType, locusIndex);
-
-          // Recurse to the next locus
-          generateStrandOneHaplotypes(maxScorePairsByEthnicity, typesByLocus, currentHaplotypeAlleles, strandTwoOptionsByLocus, locusIndex + 1);
-        }
+    HaplotypePairSearch search = new HaplotypePairSearch(presentTypesByLocus, HaplotypePairSearch.configuredParallelism(), memo);
+    search.setRankedPairCount(rankedPairCount);
+    selectSearchEngine(search, loci, family.messages);
+    if (hasSearchDeadline) {
+      search.setDeadline(searchDeadline);
+    }
+    if (progress != null) {
+      search.setProgressListener(pairs -> progress.accept(toMultimap(pairs)));
+    }
+    synchronized (runningSearches) {
+      if (searchesStopped) {
+        search.stop();
       }
+      runningSearches.add(search);
     }
+    Map<RaceGroup, ScoredHaplotypes> maxScorePairsByEthnicity;
+    try {
+      maxScorePairsByEthnicity = search.search();
+    } finally {
+      synchronized (runningSearches) {
+        runningSearches.remove(search);
+      }
+    }
+    family.stats = family.stats.combine(new HaplotypeSearchStats(search.isOptimal(), search.getNodesExplored(), search.getNodesPruned()));
+    rankedPairs.putAll(search.getRankedPairs());
+    if (search.isOptimal()) {
+      // Approximate and unfinished searches are not stored, so a cached result is always exact
+      cache.ifPresent(c -> c.store(presentTypesByLocus, rankedPairCount, search.getRankedPairs()));
+    }
+
+    return toMultimap(maxScorePairsByEthnicity);
   }
 
   /**
-   * Recursively generate all possible haplotypes for the "second" strand.
+   * Use the approximate beam search if the given search is estimated to be too large to search
+   * exactly, and record the choice in the audit messages
    *
-   * @param maxScorePairsByEthnicity Collection to populate with possible haplotype pairs
-   * @param firstHaplotype The fixed, complementary haplotype
-   * @param strandTwoOptionsByLocus List of allele options, by locus, to use when generating
-   *        haplotypes
-   * @param currentHaplotypeAlleles Current alleles of the second haplotype
-   * @param locusIndex Current locus index in the {@code strandTwoOptionsByLocus} list
-   * @throws InterruptedException
+   * @param loci Names of the searched loci, for the audit messages
+   * @param messages Receives the audit messages
    */
-  private void generateStrandTwoHaplotypes(Map<RaceGroup, ScoredHaplotypes> maxScorePairsByEthnicity, Haplotype firstHaplotype,
-      List<List<HLAType>> strandTwoOptionsByLocus, List<HLAType> currentHaplotypeAlleles, int locusIndex) throws InterruptedException {
-    if (Thread.currentThread().isInterrupted()) {
-      throw new InterruptedException();
-    }
-    if (locusIndex == strandTwoOptionsByLocus.size()) {
-      // Terminal step - we now have two haplotypes so we score them and compare
-      final Haplotype e2 = new Haplotype(currentHaplotypeAlleles);
-      ScoredHaplotypes scored = new ScoredHaplotypes(ImmutableList.of(firstHaplotype, e2));
-
-      Set<ScoredHaplotypes> maxSet = Sets.newHashSet(maxScorePairsByEthnicity.values());
-      // performance hack - shortcut if all the currently tracked max scores are the same
-      int sz = maxSet.size();
-      if (sz == 1) {
-        // doesn't matter which we use, all RaceGroups point to the same ScoredHaplotypes
-        if (comparators.get(RaceGroup.AFA).compare(maxSet.iterator().next(), scored) < 0) {
-          for (RaceGroup ethnicity : RaceGroup.values()) {
-            maxScorePairsByEthnicity.put(ethnicity, scored);
-          }
-        }
-      } else {
-        for (RaceGroup ethnicity : RaceGroup.values()) {
-          if (Thread.currentThread().isInterrupted()) {
-            throw new InterruptedException();
-          }
-          // if the map doesn't have a value yet
-          // or if the current value is less than the new value
-          // put the value into the map
-          if (!maxScorePairsByEthnicity.containsKey(ethnicity)
-              || comparators.get(ethnicity).compare(maxScorePairsByEthnicity.get(ethnicity), scored) < 0) {
-            maxScorePairsByEthnicity.put(ethnicity, scored);
-          }
-        }
-      }
-
+  private void selectSearchEngine(HaplotypePairSearch search, String loci, List<String> messages) {
+    long estimatedPairs = search.getEstimatedPairs();
+    long exactLimit = HaplotypePairSearch.configuredExactSearchLimit();
+    if (exactLimit >= 0 && estimatedPairs > exactLimit) {
+      int beamWidth = HaplotypePairSearch.configuredBeamWidth();
+      search.setBeamWidth(beamWidth);
+      messages.add(loci + " haplotypes: approximate beam search (width " + beamWidth + ") of an estimated " + estimatedPairs
+          + " allele pairings. Reported haplotypes may not be the most likely.");
     } else {
-      // Recursive step - iterate through the possible alleles for this locus, building up the
-      // current haplotype
-      for (HLAType currentType : strandTwoOptionsByLocus.get(locusIndex)) {
-        if (Thread.currentThread().isInterrupted()) {
-          throw new InterruptedException();
-        }
-        setOrAdd(currentHaplotypeAlleles, currentType, locusIndex);
-        generateStrandTwoHaplotypes(maxScorePairsByEthnicity, firstHaplotype, strandTwoOptionsByLocus, currentHaplotypeAlleles, locusIndex + 1);
-      }
+      messages.add(loci + " haplotypes: exact search of an estimated " + estimatedPairs + " allele pairings.");
     }
   }
 
-  /**
-   * Stupid helper method to set an item at a specific index, or add the item if the index == the
-   * list's size (indicating an append action)
-   */
-  private static <T> void setOrAdd(List<T> list, T toAdd, int index) {
-    if (index == list.size()) {
-      list.add(toAdd);
-    } else {
-      list.set(index, toAdd);
+  /** @return The name of the locus of the given types, with DRB3/4/5 combined */
+  private static String locusName(Multimap<Strand, HLAType> types) {
+    return FrequencyTable.locusKey(types.values().iterator().next());
+  }
+
+  /** @return The haplotypes of each pair, keyed by ethnicity */
+  private static Multimap<RaceGroup, Haplotype> toMultimap(Map<RaceGroup, ScoredHaplotypes> pairsByEthnicity) {
+    Multimap<RaceGroup, Haplotype> haplotypesByEthnicity = MultimapBuilder.enumKeys(RaceGroup.class).arrayListValues().build();
+    for (Entry<RaceGroup, ScoredHaplotypes> entry : pairsByEthnicity.entrySet()) {
+      for (Haplotype h : entry.getValue()) {
+        haplotypesByEthnicity.put(entry.getKey(), h);
+      }
     }
+    return haplotypesByEthnicity;
   }
 
   /** Replace all HLA types with their groups (condensing equivalent alleles) */
@@ -1051,7 +1382,7 @@ public class ValidationModelBuilder {
     for (Strand strand : typesForStrand.keySet()) {
       Multimap<Status, HLAType> typesByStatus = MultimapBuilder.enumKeys(Status.class).hashSetValues().build();
       Collection<HLAType> values = typesForStrand.get(strand);
-      values.forEach(t -> typesByStatus.put(CommonWellDocumented.getEquivStatus(t), t));
+      values.forEach(t -> typesByStatus.put(cwd().getEquivStatus(t), t));
 
       Set<HLAType> cwdTypes = new HashSet<>();
       for (Status s : Status.values()) {
@@ -1370,176 +1701,6 @@ public class ValidationModelBuilder {
 
   }
 
-  /** Helper wrapper class to cache the scores for haplotypes */
-  private static class ScoredHaplotypes extends ArrayList<Haplotype> {
-    private static final long serialVersionUID = 3780864438450985328L;
-    private static final int NO_MISSING_WEIGHT = 10;
-    private final Map<RaceGroup, Double> scoresByEthnicity = new HashMap<>();
-
-    private ScoredHaplotypes(Collection<Haplotype> initialHaplotypes) throws InterruptedException {
-      super();
-      if (Thread.currentThread().isInterrupted()) {
-        throw new InterruptedException();
-      }
-      BigDecimal cwdScore1 = BigDecimal.ZERO;
-
-      for (Haplotype haplotype : initialHaplotypes) {
-        if (Thread.currentThread().isInterrupted()) {
-          throw new InterruptedException();
-        }
-        add(haplotype);
-
-        for (RaceGroup e : RaceGroup.values()) {
-          BigDecimal f;
-          if (!frequencyTable.contains(haplotype, e)) {
-            f = HaplotypeFrequencies.getFrequency(e, haplotype);
-            frequencyTable.put(haplotype, e, f);
-          }
-        }
-
-        for (HLAType allele : haplotype.getTypes()) {
-          cwdScore1 = cwdScore1.add(new BigDecimal(CommonWellDocumented.getEquivStatus(allele).getWeight()));
-        }
-      }
-      BigDecimal cwdScore = cwdScore1;
-
-      for (RaceGroup e : RaceGroup.values()) {
-        if (Thread.currentThread().isInterrupted()) {
-          throw new InterruptedException();
-        }
-        int noMissingCount = 0;
-
-        // starting from 1
-        BigDecimal frequency = new BigDecimal(1.0);
-
-        for (Haplotype haplotype : this) {
-          if (Thread.currentThread().isInterrupted()) {
-            throw new InterruptedException();
-          }
-          BigDecimal f = frequencyTable.get(haplotype, e);
-
-          if (f.compareTo(BigDecimal.ZERO) > 0) {
-            frequency = frequency.multiply(f);
-            noMissingCount++;
-          }
-        }
-
-        BigDecimal weights = cwdScore.add(BigDecimal.valueOf(NO_MISSING_WEIGHT * noMissingCount));
-
-        double s = weights.add(frequency).doubleValue();
-        scoresByEthnicity.put(e, s);
-      }
-
-
-      // TODO - document walk-through
-      // scoresByEthnicity
-      // // calculate the score for each ethnicity
-      // .putAll(Arrays.stream(RaceGroup.values()).collect(Collectors.toMap(e -> e, e -> {
-      //
-      // int noMissingCount = 0;
-      //
-      // // starting from 1
-      // BigDecimal frequency = new BigDecimal(1.0);
-      //
-      // for (Haplotype haplotype : this) {
-      // BigDecimal f = frequencyTable.get(haplotype, e);
-      //
-      // if (f.compareTo(BigDecimal.ZERO) > 0) {
-      // frequency = frequency.multiply(f);
-      // noMissingCount++;
-      // }
-      // }
-      //
-      // BigDecimal weights = cwdScore.add(BigDecimal.valueOf(NO_MISSING_WEIGHT * noMissingCount));
-      //
-      // double s = weights.add(frequency).doubleValue();
-      //
-      // return s;
-      // })));
-    }
-
-    @Override
-    public String toString() {
-      return super.toString() + " - " + scoresByEthnicity.toString();
-    }
-
-    /**
-     * @return A weighted score for this ethnicity, prioritizing haplotypes without missing frequencies.
-     */
-    public double getScore(RaceGroup ethnicity) {
-      return scoresByEthnicity.get(ethnicity);
-    }
-
-    public int compareTo(ScoredHaplotypes o, RaceGroup e) {
-      // Prefer larger frequencies for this ethnicity
-      int c = Double.compare(getScore(e), o.getScore(e));
-      Iterator<Haplotype> myIterator = iterator();
-      Iterator<Haplotype> otherIterator = o.iterator();
-      // Fall back to the haplotypes themselves
-      while (myIterator.hasNext() && otherIterator.hasNext() && c == 0) {
-        c = myIterator.next().compareTo(otherIterator.next());
-      }
-      return c;
-    }
-  }
-
-  /**
-   * {@link Comparator} to sort collections of {@link Haplotype}s based on their frequency and the CWD
-   * status of their alleles.
-   */
-  private static class EthnicityHaplotypeComp implements Comparator<ScoredHaplotypes> {
-    private RaceGroup ethnicity;
-
-    private EthnicityHaplotypeComp(RaceGroup e) {
-      this.ethnicity = e;
-    }
-
-    @Override
-    public int compare(ScoredHaplotypes o1, ScoredHaplotypes o2) {
-
-      int result = o1.compareTo(o2, ethnicity);
-
-      if (result == 0) {
-        // If the scores are the same, we compare the unique HLATypes between these two
-        List<HLAType> t1 = makeList(o1);
-        List<HLAType> t2 = makeList(o2);
-        removeOverlapAndSort(t1, t2);
-        for (int i = 0; i < t1.size() && i < t2.size(); i++) {
-          result += t2.get(i).compareTo(t1.get(i));
-        }
-      }
-      return result;
-    }
-
-    /**
-     * Modify the two input sets to remove any overlap between them, and sort them both before
-     * returning.
-     */
-    private void removeOverlapAndSort(List<HLAType> t1, List<HLAType> t2) {
-      Set<HLAType> overlap = new HashSet<>(t1);
-      overlap.retainAll(t2);
-      t1.removeAll(overlap);
-      t2.removeAll(overlap);
-      Collections.sort(t1);
-      Collections.sort(t2);
-    }
-
-    /**
-     * Helper method to convert a {@link Haplotype} collection to a sorted list of the alleles contained
-     * in that haplotype.
-     */
-    private List<HLAType> makeList(Collection<Haplotype> haplotypes) {
-      List<HLAType> sorted = new ArrayList<>();
-      haplotypes.forEach(haplotype -> {
-        haplotype.getTypes().forEach(allele -> {
-          sorted.add(allele);
-        });
-      });
-      Collections.sort(sorted);
-      return sorted;
-    }
-  }
-
   public Set<HLALocus> getNonCWDLoci() {
     return nonCWDLoci;
   }
@@ -22,6 +22,7 @@
 package org.pankratzlab.unet.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
@@ -35,11 +36,16 @@ import org.pankratzlab.unet.deprecated.hla.HLAType;
 import org.pankratzlab.unet.deprecated.hla.SeroType;
 import org.pankratzlab.unet.deprecated.hla.SourceType;
 import org.pankratzlab.unet.deprecated.jfx.JFXPropertyHelper;
+import org.pankratzlab.unet.hapstats.CommonWellDocumented;
+import org.pankratzlab.unet.hapstats.Haplotype;
 import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
 import org.pankratzlab.unet.hapstats.RaceGroup;
 import org.pankratzlab.unet.model.ValidationModelBuilder.TypePair;
 import org.pankratzlab.unet.model.ValidationRow.RowBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimap;
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.binding.BooleanBinding;
 import javafx.beans.property.BooleanProperty;
@@ -74,6 +80,10 @@ public class ValidationTable {
   private final ReadOnlyListWrapper<BCHaplotypeRow> bcHaplotypeRows;
   private final ReadOnlyListWrapper<DRDQHaplotypeRow> drdqHaplotypeRows;
   private WritableImage validationImage = null;
+  // CWD statuses to show alleles with, or null for the configured database
+  private CommonWellDocumented.Catalog cwdCatalog = null;
+  // Whether the haplotype rows are those of a computed model, rather than provisional
+  private boolean haplotypeRowsFinal = false;
 
   public static final String REMAP_SYMBOL = "⦿";
 
@@ -152,6 +162,19 @@ public class ValidationTable {
     this.validationImage = validationImage;
   }
 
+  /**
+   * @param catalog CWD statuses to show the alleles of this table with, instead of the configured
+   *        database
+   */
+  public void setCWDCatalog(CommonWellDocumented.Catalog catalog) {
+    cwdCatalog = catalog;
+  }
+
+  /** @return The CWD status of the given allele, as shown in this table */
+  public CommonWellDocumented.Status getEquivStatus(HLAType allele) {
+    return cwdCatalog == null ? CommonWellDocumented.getEquivStatus(allele) : cwdCatalog.getEquivStatus(allele);
+  }
+
   /**
    * @param model New {@link ValidationModel} for the first column in the table
    */
@@ -271,16 +294,47 @@ public class ValidationTable {
 
     bcHaplotypeRows.clear();
     drdqHaplotypeRows.clear();
-
-    ValidationModel model = chooseHaplotypeModel(firstModelWrapper.get(), secondModelWrapper.get());
-    if (Objects.nonNull(model) && HaplotypeFrequencies.successfullyInitialized().get()) {
-      makeBCHaplotypeRows(bcHaplotypeRows, model);
-      makeDRDQHaplotypeRows(drdqHaplotypeRows, model);
+    haplotypeRowsFinal = false;
+    // Haplotypes are searched off this thread, and shown when the search completes
+    for (ValidationModel model : Arrays.asList(firstModelWrapper.get(), secondModelWrapper.get())) {
+      if (Objects.nonNull(model) && !model.haplotypesComputed()) {
+        model.whenHaplotypesComputed(() -> Platform.runLater(this::haplotypesComputed));
+      }
     }
+    generateHaplotypeRows();
 
     generateAuditLogLines();
   }
 
+  /** Show the haplotypes and search messages of a model whose haplotypes were just computed */
+  private void haplotypesComputed() {
+    generateHaplotypeRows();
+    generateAuditLogLines();
+  }
+
+  /**
+   * Show the haplotypes of the chosen model, if its haplotypes have been computed. Otherwise any
+   * provisional haplotypes are left in place.
+   */
+  private void generateHaplotypeRows() {
+    ValidationModel first = firstModelWrapper.get();
+    ValidationModel second = secondModelWrapper.get();
+    boolean firstComputed = Objects.isNull(first) || first.haplotypesComputed();
+    boolean secondComputed = Objects.isNull(second) || second.haplotypesComputed();
+    if (!firstComputed || (!hasHaplotypes(first) && !secondComputed)) {
+      return;
+    }
+
+    bcHaplotypeRows.clear();
+    drdqHaplotypeRows.clear();
+    haplotypeRowsFinal = true;
+    ValidationModel model = chooseHaplotypeModel(first, second);
+    if (Objects.nonNull(model) && HaplotypeFrequencies.successfullyInitialized().get()) {
+      makeBCHaplotypeRows(bcHaplotypeRows, model.getBCHaplotypes());
+      makeDRDQHaplotypeRows(drdqHaplotypeRows, model.getDRDQHaplotypes());
+    }
+  }
+
   private String generateRowLabel(HLALocus locus) {
     return locus.name() + (wasRemapped(locus, firstModelWrapper) || wasRemapped(locus, secondModelWrapper) ? (" " + REMAP_SYMBOL) : "");
   }
@@ -289,18 +343,35 @@ public class ValidationTable {
     return (modelWrapper.isNotNull().get() && modelWrapper.get().wasRemapped(locus));
   }
 
-  private void makeDRDQHaplotypeRows(ReadOnlyListWrapper<DRDQHaplotypeRow> rows, ValidationModel model) {
+  /**
+   * Show haplotypes from a model whose haplotypes are still being searched. These are replaced when
+   * the haplotypes of the table's models are computed.
+   *
+   * @param bcHaplotypes Most likely B-C haplotypes found so far, by ethnicity
+   * @param drdqHaplotypes Most likely DR-DQ haplotypes found so far, by ethnicity
+   */
+  public void setProvisionalHaplotypes(Multimap<RaceGroup, Haplotype> bcHaplotypes, Multimap<RaceGroup, Haplotype> drdqHaplotypes) {
+    if (haplotypeRowsFinal || !HaplotypeFrequencies.successfullyInitialized().get()) {
+      return;
+    }
+    bcHaplotypeRows.clear();
+    drdqHaplotypeRows.clear();
+    makeBCHaplotypeRows(bcHaplotypeRows, bcHaplotypes);
+    makeDRDQHaplotypeRows(drdqHaplotypeRows, drdqHaplotypes);
+  }
+
+  private void makeDRDQHaplotypeRows(ReadOnlyListWrapper<DRDQHaplotypeRow> rows, Multimap<RaceGroup, Haplotype> haplotypes) {
     for (RaceGroup ethnicity : RaceGroup.values()) {
-      model.getDRDQHaplotypes().get(ethnicity).forEach(haplotype -> {
+      haplotypes.get(ethnicity).forEach(haplotype -> {
         rows.add(new DRDQHaplotypeRow(ethnicity, haplotype));
       });
     } ;
   }
 
   /** Use the given model to populate a list of {@link BCHaplotypeRow}s */
-  private void makeBCHaplotypeRows(ReadOnlyListWrapper<BCHaplotypeRow> rows, ValidationModel model) {
+  private void makeBCHaplotypeRows(ReadOnlyListWrapper<BCHaplotypeRow> rows, Multimap<RaceGroup, Haplotype> haplotypes) {
     for (RaceGroup ethnicity : RaceGroup.values()) {
-      model.getBCHaplotypes().get(ethnicity).forEach(haplotype -> {
+      haplotypes.get(ethnicity).forEach(haplotype -> {
         rows.add(new BCHaplotypeRow(ethnicity, haplotype));
       });
     } ;
@@ -308,15 +379,19 @@ public class ValidationTable {
 
   /**
    * We only report one set of haplotypes, so we have to choose which model to use. We default to the
-   * first, but if the first is empty we use the second.
+   * first, but if the first is empty we use the second. The haplotypes of both must be computed.
    */
   private ValidationModel chooseHaplotypeModel(ValidationModel model1, ValidationModel model2) {
-    if (Objects.isNull(model1) || (model1.getBCHaplotypes().isEmpty() && model1.getDRDQHaplotypes().isEmpty())) {
+    if (!hasHaplotypes(model1)) {
       return model2;
     }
     return model1;
   }
 
+  private boolean hasHaplotypes(ValidationModel model) {
+    return Objects.nonNull(model) && !(model.getBCHaplotypes().isEmpty() && model.getDRDQHaplotypes().isEmpty());
+  }
+
   /**
    * Helper method to create a {@link ValidationRow}
    *
@@ -502,15 +577,22 @@ public class ValidationTable {
     if (firstModelWrapper.isNotNull().get()) {
       auditLogLines.addAll(generateRemappings(firstModelWrapper.get()));
       auditLogLines.addAll(firstModelWrapper.get().getAuditMessages());
+      auditLogLines.addAll(computedHaplotypeAuditMessages(firstModelWrapper.get()));
       auditLogLines.addAll(generateManualAssignments(firstModelWrapper.get()));
     }
     if (secondModelWrapper.isNotNull().get()) {
       auditLogLines.addAll(generateRemappings(secondModelWrapper.get()));
       auditLogLines.addAll(secondModelWrapper.get().getAuditMessages());
+      auditLogLines.addAll(computedHaplotypeAuditMessages(secondModelWrapper.get()));
       auditLogLines.addAll(generateManualAssignments(secondModelWrapper.get()));
     }
   }
 
+  /** @return The haplotype search messages of the model, or none if its search has not finished */
+  private List<String> computedHaplotypeAuditMessages(ValidationModel model) {
+    return model.haplotypesComputed() ? model.getHaplotypeAuditMessages() : ImmutableList.of();
+  }
+
   private String[] generateManualAssignments(ValidationModel validationModel) {
     return validationModel.getManuallyAssignedLoci().entrySet().stream().sorted((e1, e2) -> e1.getKey().compareTo(e2.getKey()))
         .map(e -> "HLA-" + e.getKey().name() + " was manually assigned to ["
@@ -526,6 +608,7 @@ public class ValidationTable {
         log.add(s);
       }
       log.addAll(firstModelWrapper.get().getAuditMessages());
+      log.addAll(computedHaplotypeAuditMessages(firstModelWrapper.get()));
       for (String s : generateManualAssignments(firstModelWrapper.get())) {
         log.add(s);
       }
@@ -539,7 +622,8 @@ public class ValidationTable {
       for (String s : generateRemappings(secondModelWrapper.get())) {
         log.add(s);
       }
-      log.addAll(firstModelWrapper.get().getAuditMessages());
+      log.addAll(secondModelWrapper.get().getAuditMessages());
+      log.addAll(computedHaplotypeAuditMessages(secondModelWrapper.get()));
       for (String s : generateManualAssignments(secondModelWrapper.get())) {
         log.add(s);
       }
@@ -0,0 +1,284 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.parser.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.pankratzlab.unet.deprecated.hla.AntigenDictionary;
+import org.pankratzlab.unet.deprecated.hla.HLALocus;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.deprecated.hla.NullType;
+import org.pankratzlab.unet.hapstats.AlleleGroups;
+import org.pankratzlab.unet.hapstats.CommonWellDocumented;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Resources;
+
+/**
+ * Binary pack of the bundled reference data, compiled from the text resources by {@link #main} as
+ * part of the build. Each dataset is stored as a named section, already parsed into the form its
+ * class uses at runtime. The pack is read with a single bulk read the first time a section is
+ * needed.
+ *
+ * <p>
+ * Each section is named by the path of the text resource it was compiled from, and records the size
+ * and SHA-256 checksum of that resource. Datasets fall back to parsing their text resource if the
+ * pack or their section is missing, was compiled for a different format, or was compiled from a
+ * different version of the resource. Files the user selects in place of the bundled data are always
+ * parsed as text.
+ */
+public final class ReferenceDataPack {
+
+  private ReferenceDataPack() {}
+
+  public static final String RESOURCE = "/reference-data.pack";
+
+  private static final int MAGIC = 0x44435250; // DCRP
+  /** Changed whenever the layout of the pack or of any section changes */
+  private static final int FORMAT_VERSION = 2;
+
+  private static final int NO_TYPE = -1;
+
+  // Set while compiling, so datasets are read from their text resources rather than an old pack
+  private static volatile boolean compiling = false;
+
+  /** Reads one section of the pack */
+  @FunctionalInterface
+  public interface SectionReader<T> {
+    T read(DataInputStream in) throws IOException;
+  }
+
+  /** Writes one section of the pack */
+  @FunctionalInterface
+  public interface SectionWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /**
+   * @param section Path of the resource the section was compiled from
+   * @param reader Reads the section
+   * @return The section as read, or empty if it is not in the pack, was compiled from a different
+   *         version of the resource, or could not be read
+   */
+  public static <T> Optional<T> read(String section, SectionReader<T> reader) {
+    if (compiling) {
+      return Optional.empty();
+    }
+    Slice slice = Contents.SECTIONS.get(section);
+    if (slice == null) {
+      return Optional.empty();
+    }
+    try {
+      if (!slice.source().equals(Source.of(section))) {
+        System.err.println("Reference data section " + section + " was compiled from a different resource, reading text instead");
+        return Optional.empty();
+      }
+    } catch (IOException e) {
+      System.err.println("Failed to check reference data section " + section + ", reading text instead");
+      e.printStackTrace();
+      return Optional.empty();
+    }
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(slice.bytes(), slice.offset(), slice.length()))) {
+      return Optional.of(reader.read(in));
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Failed to read reference data section " + section + ", reading text instead");
+      e.printStackTrace();
+      return Optional.empty();
+    }
+  }
+
+  /** @return Whether the pack was found, and its sections, for display */
+  public static String describe() {
+    if (Contents.SECTIONS.isEmpty()) {
+      return "not available";
+    }
+    return "version " + FORMAT_VERSION + ", sections " + Contents.SECTIONS.keySet();
+  }
+
+  /** Write a type, or null, as read by {@link #readType(DataInput)} */
+  public static void writeType(DataOutput out, HLAType type) throws IOException {
+    if (type == null) {
+      out.writeByte(NO_TYPE);
+      return;
+    }
+    if (type.getClass() != HLAType.class && type.getClass() != NullType.class) {
+      throw new IllegalArgumentException("Unsupported allele type: " + type.getClass());
+    }
+    out.writeByte(type.locus().ordinal());
+    out.writeBoolean(type instanceof NullType);
+    List<Integer> spec = type.spec();
+    out.writeByte(spec.size());
+    for (int field : spec) {
+      out.writeShort(field);
+    }
+  }
+
+  /** @return A type, or null, as written by {@link #writeType(DataOutput, HLAType)} */
+  public static HLAType readType(DataInput in) throws IOException {
+    int locus = in.readByte();
+    if (locus == NO_TYPE) {
+      return null;
+    }
+    boolean isNull = in.readBoolean();
+    int fields = in.readByte();
+    List<Integer> spec = new ArrayList<>(fields);
+    for (int i = 0; i < fields; i++) {
+      spec.add((int) in.readShort());
+    }
+    HLALocus l = HLALocus.values()[locus];
+    return isNull ? new NullType(l, spec) : new HLAType(l, spec);
+  }
+
+  /** Collects the sections of a pack while it is compiled */
+  public static final class Writer {
+    private final Map<String, byte[]> sections = new LinkedHashMap<>();
+    private final Map<String, Source> sources = new LinkedHashMap<>();
+
+    private Writer() {}
+
+    /**
+     * Add a section to the pack
+     *
+     * @param section Path of the resource the section is compiled from
+     */
+    public void write(String section, SectionWriter writer) throws IOException {
+      sources.put(section, Source.of(section));
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        writer.write(out);
+      }
+      sections.put(section, bytes.toByteArray());
+    }
+
+    private void writeTo(File file) throws IOException {
+      file.getParentFile().mkdirs();
+      try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(sections.size());
+        for (Map.Entry<String, byte[]> section : sections.entrySet()) {
+          Source source = sources.get(section.getKey());
+          out.writeUTF(section.getKey());
+          out.writeLong(source.size());
+          out.writeUTF(source.sha256());
+          out.writeInt(section.getValue().length);
+        }
+        for (byte[] section : sections.values()) {
+          out.write(section);
+        }
+      }
+    }
+  }
+
+  /**
+   * Compile the pack from the bundled text resources
+   *
+   * @param args Directory to write the pack to, normally the build's classes directory
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      throw new IllegalArgumentException("Usage: ReferenceDataPack <output directory>");
+    }
+    compiling = true;
+
+    Writer pack = new Writer();
+    AlleleGroups.compilePack(pack);
+    CommonWellDocumented.compilePack(pack);
+    AntigenDictionary.compilePack(pack);
+
+    File file = new File(args[0], RESOURCE.substring(1));
+    pack.writeTo(file);
+    System.out.println("Wrote " + pack.sections.size() + " reference data sections to " + file);
+  }
+
+  private record Slice(byte[] bytes, int offset, int length, Source source) {}
+
+  /** Size and SHA-256 checksum of the resource a section is compiled from */
+  private record Source(long size, String sha256) {
+
+    /** @param path Path of a bundled resource, as passed to {@link Class#getResource(String)} */
+    private static Source of(String path) throws IOException {
+      URL url = ReferenceDataPack.class.getResource(path.startsWith("/") ? path : "/" + path);
+      if (url == null) {
+        throw new IOException("Reference data resource not found: " + path);
+      }
+      ByteSource resource = Resources.asByteSource(url);
+      return new Source(resource.size(), resource.hash(Hashing.sha256()).toString());
+    }
+  }
+
+  /** The sections of the pack, read on first use */
+  private static final class Contents {
+    private static final Map<String, Slice> SECTIONS = readSections();
+
+    private static Map<String, Slice> readSections() {
+      try (InputStream is = ReferenceDataPack.class.getResourceAsStream(RESOURCE)) {
+        if (is == null) {
+          return ImmutableMap.of();
+        }
+        byte[] bytes = is.readAllBytes();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+          return ImmutableMap.of();
+        }
+        int count = in.readInt();
+        Map<String, Source> sources = new LinkedHashMap<>();
+        Map<String, Integer> lengths = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+          String section = in.readUTF();
+          sources.put(section, new Source(in.readLong(), in.readUTF()));
+          lengths.put(section, in.readInt());
+        }
+        // The sections follow the directory, in the same order
+        int offset = bytes.length - in.available();
+        ImmutableMap.Builder<String, Slice> sections = ImmutableMap.builderWithExpectedSize(count);
+        for (Map.Entry<String, Integer> section : lengths.entrySet()) {
+          sections.put(section.getKey(), new Slice(bytes, offset, section.getValue(), sources.get(section.getKey())));
+          offset += section.getValue();
+        }
+        if (offset != bytes.length) {
+          throw new IOException("Truncated reference data pack");
+        }
+        return sections.build();
+      } catch (IOException e) {
+        System.err.println("Failed to read reference data pack " + RESOURCE + ", reading text instead");
+        e.printStackTrace();
+        return ImmutableMap.of();
+      }
+    }
+  }
+}
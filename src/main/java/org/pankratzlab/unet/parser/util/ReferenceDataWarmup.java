@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * DonorCheck
+ * %%
+ * Copyright (C) 2018 - 2019 Computational Pathology - University of Minnesota
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.pankratzlab.unet.parser.util;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.pankratzlab.unet.deprecated.hla.AntigenDictionary;
+import org.pankratzlab.unet.hapstats.AlleleGroups;
+import org.pankratzlab.unet.hapstats.CommonWellDocumented;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Loads the bundled reference datasets on background threads when the application starts, so the
+ * first file parsed doesn't wait for all of them in turn.
+ *
+ * <p>
+ * Each dataset is loaded on its own thread. Code that uses a dataset needs no changes to wait for
+ * it: the static initializers, {@link AntigenDictionary}'s load lock and the CWD catalog map each
+ * block only callers of that dataset until it is ready, and any dataset not yet started is simply
+ * loaded by its first caller as before.
+ */
+public final class ReferenceDataWarmup {
+
+  private ReferenceDataWarmup() {}
+
+  public static enum Dataset {
+    ALLELE_GROUPS("G and P allele groups", () -> initialize(AlleleGroups.class)),
+    SEROTYPE_EQUIVALENCE("CareDx serotype equivalences", () -> initialize(SerotypeEquivalence.class)),
+    BW_SEROTYPES("Bw4/Bw6 serotypes", () -> initialize(BwSerotypes.class)),
+    ANTIGEN_DICTIONARY("Serotype lookup (rel_dna_ser)", AntigenDictionary::validHLA),
+    CWD("Common / Well-Documented alleles", () -> CommonWellDocumented.loadPropertyCWDSource().catalog());
+
+    private final String displayName;
+    private final Runnable loader;
+
+    private Dataset(String displayName, Runnable loader) {
+      this.displayName = displayName;
+      this.loader = loader;
+    }
+
+    public String getDisplayName() {
+      return displayName;
+    }
+  }
+
+  // Load time in milliseconds of each dataset, once warm-up has started
+  private static volatile Map<Dataset, FutureTask<Long>> tasks = ImmutableMap.of();
+
+  /** Start loading every dataset in the background. Has no effect after the first call. */
+  public static synchronized void start() {
+    if (!tasks.isEmpty()) {
+      return;
+    }
+    ImmutableMap.Builder<Dataset, FutureTask<Long>> builder = ImmutableMap.builder();
+    for (Dataset dataset : Dataset.values()) {
+      FutureTask<Long> task = new FutureTask<>(() -> load(dataset));
+      builder.put(dataset, task);
+      Thread loader = new Thread(task, "Load " + dataset.displayName);
+      loader.setDaemon(true);
+      loader.start();
+    }
+    tasks = builder.build();
+  }
+
+  /** @return True if the given dataset was loaded by the warm-up */
+  public static boolean isReady(Dataset dataset) {
+    FutureTask<Long> task = tasks.get(dataset);
+    if (task == null || !task.isDone()) {
+      return false;
+    }
+    try {
+      task.get();
+      return true;
+    } catch (InterruptedException | ExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Wait for the given dataset to be loaded, loading it on the calling thread if warm-up was not
+   * started
+   *
+   * @throws InterruptedException If the calling thread is interrupted while waiting
+   */
+  public static void await(Dataset dataset) throws InterruptedException {
+    FutureTask<Long> task = tasks.get(dataset);
+    if (task == null) {
+      dataset.loader.run();
+      return;
+    }
+    try {
+      task.get();
+    } catch (ExecutionException e) {
+      // Already reported. Callers see the same failure when they use the dataset.
+    }
+  }
+
+  /** @return Readiness of the given dataset, for display */
+  public static String describe(Dataset dataset) {
+    FutureTask<Long> task = tasks.get(dataset);
+    if (task == null) {
+      return "not started";
+    }
+    if (!task.isDone()) {
+      return "loading";
+    }
+    try {
+      return "ready in " + task.get() + " ms";
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return "loading";
+    } catch (ExecutionException e) {
+      return "failed: " + Throwables.getRootCause(e);
+    }
+  }
+
+  private static long load(Dataset dataset) {
+    long start = System.nanoTime();
+    try {
+      dataset.loader.run();
+    } catch (Throwable t) {
+      // Nothing else sees the failure until the dataset is next used
+      t.printStackTrace();
+      throw t;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  private static void initialize(Class<?> type) {
+    try {
+      Class.forName(type.getName(), true, type.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -818,20 +818,14 @@ public class ValidationTesting {
   }
 
   private static TestRun runTest(ValidationTestFileSet test) {
-    SOURCE current = CommonWellDocumented.loadPropertyCWDSource();
     String currentRel = DonorCheckProperties.get().getProperty(AntigenDictionary.REL_DNA_SER_PROP);
     Map<String, String> currentProps = DC_PERSISTED_PROPS.stream().collect(Collectors.toMap(k -> k, v -> DonorCheckProperties.getOrDefault(v)));
 
     SOURCE source = test.cwdSource.get();
     String rel = test.relDnaSerFile.get();
-    boolean changedCWID = false;
     boolean changedRel = false;
     boolean changedProps = false;
 
-    if (current != source || !CommonWellDocumented.isLoaded()) {
-      CommonWellDocumented.loadCIWDVersion(source);
-      changedCWID = true;
-    }
     if ((currentRel == null && rel != null) || !new File(currentRel).equals(new File(rel))) {
       DonorCheckProperties.get().setProperty(AntigenDictionary.REL_DNA_SER_PROP, rel);
       AntigenDictionary.clearCache();
@@ -845,12 +839,11 @@ public class ValidationTesting {
       }
     }
 
-    TestResultWithMultiData resultM = runTestInternal(test);
+    // Run against the test's CWD catalog without replacing the one the rest of the app is using
+    CommonWellDocumented.Catalog catalog = source == null ? CommonWellDocumented.current() : source.catalog();
+    TestResultWithMultiData resultM = runTestInternal(test, catalog);
     TestRun returnVal = new TestRun(test, resultM.testResult(), new Date(), resultM.getException(), resultM.getValidModels());
 
-    if (changedCWID) {
-      CommonWellDocumented.loadCIWDVersion(current);
-    }
     if (changedRel) {
       DonorCheckProperties.get().setProperty(AntigenDictionary.REL_DNA_SER_PROP, Optional.ofNullable(currentRel).orElse(""));
       AntigenDictionary.clearCache();
@@ -867,6 +860,14 @@ public class ValidationTesting {
     return returnVal;
   }
 
+  /** Run a test with the given CWD catalog for the static lookups of the parsers */
+  @SuppressWarnings("try")
+  private static TestResultWithMultiData runTestInternal(ValidationTestFileSet test, CommonWellDocumented.Catalog catalog) {
+    try (CommonWellDocumented.Scope cwdScope = catalog.use()) {
+      return runTestInternal(test);
+    }
+  }
+
   private static TestResultWithMultiData runTestInternal(ValidationTestFileSet test) {
     Map<String, ValidationModelBuilder> modelBuilders = new HashMap<>();
 
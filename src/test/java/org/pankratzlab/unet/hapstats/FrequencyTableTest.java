@@ -0,0 +1,211 @@
+package org.pankratzlab.unet.hapstats;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.unit.tests.HaplotypeTableFixture;
+
+public class FrequencyTableTest {
+
+  private static final String[] HEADER = HaplotypeTableFixture.BC_HEADER.split(",");
+  private static final String[][] ROWS = {{"C*07:01", "B*08:01", "0.08", "0.02", "0.01", "0.03", "0.04"},
+      {"C*07:02", "B*07:02", "0.06", "0.03", "0.02", "0.01", "0"}, {"C*05:01", "B*44:02", "0.03", "0.001", "0", "0.02", "0.01"},
+      {"C*04:01", "B*57:01", "0.0123456789", "0.04", "0.002", "0", "0.03"}, {"C*07:02", "B*57:01", "0", "0", "0", "0", "0"},
+      {"C*07:01", "B*07:02", "0.001", "0", "0.01", "0.005", "0.02"}};
+
+  @RegisterExtension
+  final HaplotypeTableFixture tables = new HaplotypeTableFixture();
+
+  @Test
+  public void FrequencyTable_readFormats() throws IOException {
+    File csv = new File(tables.getDirectory(), "bc.csv");
+    writeDelimited(csv, ",", false);
+    File tsv = new File(tables.getDirectory(), "bc.txt");
+    writeDelimited(tsv, "\t", false);
+    File gzip = new File(tables.getDirectory(), "bc.csv.gz");
+    writeDelimited(gzip, ",", true);
+    File xls = new File(tables.getDirectory(), "bc.xls");
+    try (HSSFWorkbook workbook = new HSSFWorkbook(); OutputStream os = new FileOutputStream(xls)) {
+      Sheet sheet = workbook.createSheet();
+      Row header = sheet.createRow(0);
+      for (int i = 0; i < HEADER.length; i++) {
+        header.createCell(i).setCellValue(HEADER[i]);
+      }
+      for (int r = 0; r < ROWS.length; r++) {
+        Row row = sheet.createRow(r + 1);
+        row.createCell(0).setCellValue(ROWS[r][0]);
+        row.createCell(1).setCellValue(ROWS[r][1]);
+        for (int i = 2; i < HEADER.length; i++) {
+          row.createCell(i).setCellValue(Double.parseDouble(ROWS[r][i]));
+        }
+      }
+      workbook.write(os);
+    }
+
+    Map<Haplotype, List<Double>> expected = readFrequencies(csv);
+    for (String[] row : ROWS) {
+      Haplotype haplotype = new Haplotype(HLAType.valueOf(row[0]), HLAType.valueOf(row[1]));
+      for (RaceGroup ethnicity : RaceGroup.values()) {
+        assertEquals(Double.parseDouble(row[ethnicity.ordinal() + 2]), expected.get(haplotype).get(ethnicity.ordinal()), 1e-12);
+      }
+    }
+    for (File table : Arrays.asList(tsv, gzip, xls)) {
+      assertEquals(expected, readFrequencies(table), table.getName());
+    }
+  }
+
+  @Test
+  public void FrequencyTable_snapshot() throws IOException {
+    File source = tables.write("bc.csv", Arrays.asList("compiled by the test"));
+    File snapshots = new File(tables.getDirectory(), "snapshots");
+    snapshots.mkdir();
+    FrequencyTable compiled = gridTable(30, 30, 2);
+    AtomicInteger compiles = new AtomicInteger();
+    FrequencyTableSnapshot.TableCompiler compiler = () -> {
+      compiles.incrementAndGet();
+      return compiled;
+    };
+
+    assertSame(compiled, FrequencyTableSnapshot.load(snapshots, source, "v1", compiler));
+    assertEquals(1, compiles.get());
+    FrequencyTable mapped = FrequencyTableSnapshot.load(snapshots, source, "v1", compiler);
+    assertEquals(1, compiles.get());
+    assertNotSame(compiled, mapped);
+    assertTablesEqual(compiled, mapped, 30, 30);
+
+    // Snapshots of other compile versions or file contents are not used
+    FrequencyTableSnapshot.load(snapshots, source, "v2", compiler);
+    assertEquals(2, compiles.get());
+    Files.write(source.toPath(), Arrays.asList("changed"));
+    FrequencyTableSnapshot.load(snapshots, source, "v2", compiler);
+    assertEquals(3, compiles.get());
+  }
+
+  @Test
+  public void FrequencyTable_keyIndexCollisions() {
+    // Enough rows that many packed keys share a slot of the index
+    int bCount = 150;
+    int cCount = 120;
+    int step = 3;
+    FrequencyTable table = gridTable(bCount, cCount, step);
+    assertTrue(table.hasPackedKeys());
+    int i = 0;
+    for (int b = 0; b < bCount; b++) {
+      for (int c = 0; c < cCount; c++) {
+        HLAType bType = gridType("B", b);
+        HLAType cType = gridType("C", c);
+        double[] expected = i % step == 0 ? gridFrequencies(i) : new double[RaceGroup.values().length];
+        for (RaceGroup ethnicity : RaceGroup.values()) {
+          assertEquals(expected[ethnicity.ordinal()], table.getFrequency(ethnicity, new Haplotype(bType, cType)), bType + "~" + cType);
+        }
+        i++;
+      }
+    }
+
+    // Alleles not in the table have no frequency
+    HLAType missing = gridType("B", bCount);
+    assertEquals(0, table.getFrequency(RaceGroup.CAU, new Haplotype(missing, gridType("C", 0))));
+  }
+
+  /**
+   * @return A table of haplotypes of the first {@code bCount} B and {@code cCount} C alleles of
+   *         {@link #gridType}, keeping one in every {@code step} pairings
+   */
+  private static FrequencyTable gridTable(int bCount, int cCount, int step) {
+    FrequencyTable.Builder builder = new FrequencyTable.Builder(Arrays.asList("C", "B"));
+    int i = 0;
+    for (int b = 0; b < bCount; b++) {
+      for (int c = 0; c < cCount; c++) {
+        if (i % step == 0) {
+          builder.add(Arrays.asList(gridType("B", b), gridType("C", c)), gridFrequencies(i));
+        }
+        i++;
+      }
+    }
+    return builder.build();
+  }
+
+  /** @return The frequencies of the {@code i}th pairing of {@link #gridTable}, some zero */
+  private static double[] gridFrequencies(int i) {
+    double[] frequencies = new double[RaceGroup.values().length];
+    for (int e = 0; e < frequencies.length; e++) {
+      frequencies[e] = (i * 7 + e * 13) % 10 == 0 ? 0 : 1.0 / (i + e + 3);
+    }
+    return frequencies;
+  }
+
+  private static HLAType gridType(String locus, int index) {
+    return HLAType.valueOf(locus + "*" + (10 + index) + ":01");
+  }
+
+  /** Check every lookup of the grid haplotypes gives the same result in both tables */
+  private static void assertTablesEqual(FrequencyTable expected, FrequencyTable actual, int bCount, int cCount) {
+    assertEquals(expected.getLoci(), actual.getLoci());
+    assertEquals(expected.size(), actual.size());
+    double[] expectedFrequencies = new double[RaceGroup.values().length];
+    double[] actualFrequencies = new double[RaceGroup.values().length];
+    for (RaceGroup ethnicity : RaceGroup.values()) {
+      assertEquals(expected.getMaxFrequency(ethnicity), actual.getMaxFrequency(ethnicity));
+    }
+    for (int b = 0; b < bCount; b++) {
+      assertEquals(expected.getKnownHaplotypes(gridType("B", b)), actual.getKnownHaplotypes(gridType("B", b)));
+      for (int c = 0; c < cCount; c++) {
+        Haplotype haplotype = new Haplotype(gridType("B", b), gridType("C", c));
+        expected.getFrequencies(haplotype, expectedFrequencies);
+        actual.getFrequencies(haplotype, actualFrequencies);
+        assertArrayEquals(expectedFrequencies, actualFrequencies, haplotype.toString());
+      }
+    }
+  }
+
+  /** @return The frequencies of every haplotype the table's alleles could form, loaded from the table */
+  private Map<Haplotype, List<Double>> readFrequencies(File table) {
+    tables.load(table, null);
+    assertTrue(HaplotypeFrequencies.successfullyInitialized().get(), table.getName());
+    Map<Haplotype, List<Double>> frequencies = new HashMap<>();
+    double[] f = new double[RaceGroup.values().length];
+    for (String[] c : ROWS) {
+      for (String[] b : ROWS) {
+        Haplotype haplotype = new Haplotype(HLAType.valueOf(c[0]), HLAType.valueOf(b[1]));
+        HaplotypeFrequencies.getFrequencies(haplotype, f);
+        List<Double> values = new ArrayList<>();
+        Arrays.stream(f).forEach(values::add);
+        frequencies.put(haplotype, values);
+      }
+    }
+    return frequencies;
+  }
+
+  private static void writeDelimited(File file, String delimiter, boolean gzip) throws IOException {
+    try (OutputStream os = gzip ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file);
+        Writer writer = new OutputStreamWriter(os, StandardCharsets.UTF_8)) {
+      writer.write(String.join(delimiter, HEADER) + "\n");
+      for (String[] row : ROWS) {
+        writer.write(String.join(delimiter, row) + "\n");
+      }
+    }
+  }
+}
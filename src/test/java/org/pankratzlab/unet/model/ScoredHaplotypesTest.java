@@ -0,0 +1,73 @@
+package org.pankratzlab.unet.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.hapstats.CommonWellDocumented;
+import org.pankratzlab.unet.hapstats.Haplotype;
+import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
+import org.pankratzlab.unet.hapstats.RaceGroup;
+import org.pankratzlab.unet.unit.tests.HaplotypeTableFixture;
+import com.google.common.collect.ImmutableList;
+
+public class ScoredHaplotypesTest {
+
+  private static final String[] B_TYPES = {"B*07:02", "B*08:01", "B*44:02", "B*57:01", "B*35:01", "B*15:01"};
+  private static final String[] C_TYPES = {"C*07:01", "C*07:02", "C*05:01", "C*04:01", "C*03:04", "C*06:02"};
+
+  @RegisterExtension
+  final HaplotypeTableFixture tables = new HaplotypeTableFixture();
+
+  @BeforeEach
+  public void loadCWD() {
+    CommonWellDocumented.loadCIWD300();
+  }
+
+  @Test
+  public void ScoredHaplotypes_approximateScores() throws IOException, InterruptedException {
+    // Frequencies with many significant digits, some missing in some ethnicities
+    Random random = new Random(42);
+    List<String> rows = new ArrayList<>();
+    for (String b : B_TYPES) {
+      for (String c : C_TYPES) {
+        StringBuilder row = new StringBuilder(c + "," + b);
+        for (int e = 0; e < RaceGroup.values().length; e++) {
+          row.append(',').append(random.nextInt(4) == 0 ? 0 : random.nextDouble() * 0.01);
+        }
+        rows.add(row.toString());
+      }
+    }
+    tables.loadBC(rows);
+
+    double[] frequencies1 = new double[RaceGroup.values().length];
+    double[] frequencies2 = new double[RaceGroup.values().length];
+    double[] scores = new double[RaceGroup.values().length];
+    for (int i = 0; i < 500; i++) {
+      // Pairs of random haplotypes, including unknown ones pairing alleles of different rows
+      Haplotype first = new Haplotype(HLAType.valueOf(B_TYPES[random.nextInt(B_TYPES.length)]), HLAType.valueOf(C_TYPES[random.nextInt(C_TYPES.length)]));
+      Haplotype second = new Haplotype(HLAType.valueOf(B_TYPES[random.nextInt(B_TYPES.length)]), HLAType.valueOf(C_TYPES[random.nextInt(C_TYPES.length)]));
+      List<Haplotype> pair = ImmutableList.of(first, second);
+
+      double cwdWeight = 0;
+      for (Haplotype haplotype : pair) {
+        for (HLAType allele : haplotype.getTypes()) {
+          cwdWeight += CommonWellDocumented.getEquivStatus(allele).getWeight();
+        }
+      }
+      HaplotypeFrequencies.getFrequencies(first, frequencies1);
+      HaplotypeFrequencies.getFrequencies(second, frequencies2);
+      ScoredHaplotypes.approximateScores(cwdWeight, frequencies1, frequencies2, scores);
+
+      ScoredHaplotypes scored = new ScoredHaplotypes(pair);
+      for (RaceGroup ethnicity : RaceGroup.values()) {
+        assertEquals(scored.getScore(ethnicity), scores[ethnicity.ordinal()], ScoredHaplotypes.APPROXIMATE_SCORE_TOLERANCE, pair + " " + ethnicity);
+      }
+    }
+  }
+}
@@ -7,6 +7,7 @@ import java.util.List;
 import org.junit.jupiter.api.Test;
 import org.pankratzlab.unet.deprecated.hla.HLAType;
 import org.pankratzlab.unet.hapstats.CommonWellDocumented;
+import com.google.common.cache.CacheStats;
 
 public class CommonWellDocumentedTest {
   @Test
@@ -37,4 +38,20 @@ public class CommonWellDocumentedTest {
         HLAType.valueOf("B*18:27"), HLAType.valueOf("DRB1*16:11")));
     assertEquals(0.0, CommonWellDocumented.cwdScore(z));
   }
+
+  @Test
+  public void CommonWellDocumented_warmUp() {
+    CommonWellDocumented.Catalog catalog = CommonWellDocumented.SOURCE.CIWD_300.catalog();
+    // Listed alleles are indexed, so never reach the cache
+    HLAType listed = HLAType.valueOf("A*01:02");
+    HLAType unlisted = HLAType.valueOf("B*18:27:99");
+    CacheStats before = catalog.getStatusCacheStats();
+    catalog.warmUp(Arrays.asList(listed, unlisted));
+    assertEquals(CommonWellDocumented.Status.COMMON, catalog.getStatus(listed));
+    assertEquals(CommonWellDocumented.Status.UNKNOWN, catalog.getStatus(unlisted));
+    CacheStats delta = catalog.getStatusCacheStats().minus(before);
+    // The unlisted allele is resolved once by the warm-up, then found by the lookup
+    assertEquals(1, delta.loadCount());
+    assertEquals(1, delta.hitCount());
+  }
 }
@@ -1,16 +1,24 @@
 package org.pankratzlab.unet.unit.tests;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
 import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.hapstats.FrequencyTable;
 import org.pankratzlab.unet.hapstats.Haplotype;
 import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
 import org.pankratzlab.unet.hapstats.RaceGroup;
+import com.google.common.collect.ImmutableSet;
 
 public class HaplotypeFrequencesTest {
 
@@ -19,6 +27,9 @@ public class HaplotypeFrequencesTest {
           HLAType.valueOf("B*15:62")));
   private static final Haplotype haplotypeFull = new Haplotype(listOfAlleles);
 
+  @RegisterExtension
+  final HaplotypeTableFixture tables = new HaplotypeTableFixture();
+
   @Test
   public void HaplotypeFrequences_successfullyInitialized() {
     // successfullyInitialized should return false as it has not been initialized
@@ -49,4 +60,86 @@ public class HaplotypeFrequencesTest {
         HLAType.valueOf("C*15:02:02:02G"), HLAType.valueOf("C*15:01G")));
     assertEquals(BigDecimal.ZERO, HaplotypeFrequencies.getFrequency(RaceGroup.AFA, haplotypeFull));
   }
+
+  @Test
+  public void HaplotypeFrequences_getFrequencyCacheStats() {
+    HaplotypeFrequencies.doInitialization();
+    assertEquals(0, HaplotypeFrequencies.getFrequencyCacheStats().requestCount());
+    HaplotypeFrequencies.getFrequency(RaceGroup.AFA, haplotypeFull);
+    HaplotypeFrequencies.getFrequency(RaceGroup.AFA, haplotypeFull);
+    assertEquals(1, HaplotypeFrequencies.getFrequencyCacheStats().missCount());
+    assertEquals(1, HaplotypeFrequencies.getFrequencyCacheStats().hitCount());
+    // loading the tables again should discard any cached lookups
+    HaplotypeFrequencies.doInitialization();
+    assertEquals(0, HaplotypeFrequencies.getFrequencyCacheStats().requestCount());
+  }
+
+  @Test
+  public void HaplotypeFrequences_getKnownHaplotypes() {
+    // no tables are loaded, so no haplotype is known
+    HaplotypeFrequencies.doInitialization();
+    assertTrue(HaplotypeFrequencies.getKnownHaplotypes(HLAType.valueOf("B*15:62")).isEmpty());
+  }
+
+  @Test
+  public void HaplotypeFrequences_snapshotSurvivesReload() {
+    HaplotypeFrequencies.doInitialization();
+    HaplotypeFrequencies.Snapshot before = HaplotypeFrequencies.current();
+    before.getFrequency(RaceGroup.AFA, haplotypeFull);
+    HaplotypeFrequencies.doInitialization();
+    HaplotypeFrequencies.Snapshot after = HaplotypeFrequencies.current();
+    // the earlier tables are unchanged, and keep their own cached lookups
+    assertTrue(after.getGeneration() > before.getGeneration());
+    assertEquals(1, before.getFrequencyCacheStats().requestCount());
+    assertEquals(0, after.getFrequencyCacheStats().requestCount());
+    assertEquals(BigDecimal.ZERO, before.getFrequency(RaceGroup.AFA, haplotypeFull));
+  }
+
+  @Test
+  public void HaplotypeFrequences_frequencyTableMarginal() {
+    HLAType c = HLAType.valueOf("C*07:01");
+    HLAType b1 = HLAType.valueOf("B*08:01");
+    HLAType b2 = HLAType.valueOf("B*44:02");
+    HLAType dq = HLAType.valueOf("DQB1*02:01");
+    double[] f1 = new double[RaceGroup.values().length];
+    double[] f2 = new double[RaceGroup.values().length];
+    f1[RaceGroup.CAU.ordinal()] = 0.25;
+    f2[RaceGroup.CAU.ordinal()] = 0.5;
+    FrequencyTable table = new FrequencyTable.Builder(Arrays.asList("C", "B", "DQB1")).add(Arrays.asList(c, b1, dq), f1)
+        .add(Arrays.asList(dq, b2, c), f2).build();
+
+    assertEquals(0.25, table.getFrequency(RaceGroup.CAU, new Haplotype(b1, c, dq)));
+    // the C-DQB1 haplotype is in both rows
+    assertEquals(0.75, table.getFrequency(RaceGroup.CAU, new Haplotype(c, dq)));
+    assertEquals(0.75, table.marginal(ImmutableSet.of("C", "DQB1")).getMaxFrequency(RaceGroup.CAU));
+    assertEquals(2, table.getKnownHaplotypes(c).size());
+    // known haplotypes are indexed once, including those of marginal tables
+    assertSame(table.getKnownHaplotypes(c), table.getKnownHaplotypes(c));
+    FrequencyTable marginal = table.marginal(ImmutableSet.of("C", "DQB1"));
+    assertEquals(ImmutableSet.of(new Haplotype(c, dq)), marginal.getKnownHaplotypes(dq));
+    assertSame(marginal.getKnownHaplotypes(dq), marginal.getKnownHaplotypes(dq));
+    assertEquals(0.0, table.getFrequency(RaceGroup.AFA, new Haplotype(c, b2)));
+  }
+
+  @Test
+  public void HaplotypeFrequences_exactLociOnly() throws IOException {
+    String freqColumns = "CAU_freq,AFA_freq,API_freq,HIS_freq,NAM_freq";
+    File bc = tables.write("bc.csv", Arrays.asList("C,B," + freqColumns, "C*07:01,B*08:01,0.1,0.2,0.3,0.4,0.5"));
+    File drdq = tables.write("drdq.csv", Arrays.asList("DRB3-4-5,DRB1,DQB1," + freqColumns, "DRB3*01:01,DRB1*03:01,DQB1*02:01,0.1,0.2,0.3,0.4,0.5"));
+    tables.load(bc, drdq);
+    HLAType drb1 = HLAType.valueOf("DRB1*03:01");
+    Haplotype drdqNoDrb345 = new Haplotype(drb1, HLAType.valueOf("DQB1*02:01"));
+    Haplotype drb1B = new Haplotype(drb1, HLAType.valueOf("B*08:01"));
+
+    assertNotEquals(BigDecimal.ZERO, HaplotypeFrequencies.getFrequency(RaceGroup.CAU, HLAType.valueOf("B*08:01"), HLAType.valueOf("C*07:01")));
+    // as before marginal tables, only haplotypes spanning all loci of a table have a frequency
+    assertEquals(BigDecimal.ZERO, HaplotypeFrequencies.getFrequency(RaceGroup.CAU, drdqNoDrb345));
+    assertEquals(BigDecimal.ZERO, HaplotypeFrequencies.getMaxFrequency(RaceGroup.CAU, ImmutableSet.of("DRB1", "DQB1")));
+    assertTrue(HaplotypeFrequencies.getKnownHaplotypes(drb1, ImmutableSet.of("DRB1", "DQB1")).isEmpty());
+
+    // marginal frequencies are only used when asked for
+    assertTrue(HaplotypeFrequencies.getTable(ImmutableSet.of("DRB1", "DQB1")).isPresent());
+    assertEquals(0.1, HaplotypeFrequencies.current().withMarginals().getFrequency(RaceGroup.CAU, drdqNoDrb345).doubleValue(), 1e-12);
+    assertEquals(BigDecimal.ZERO, HaplotypeFrequencies.current().withMarginals().getFrequency(RaceGroup.CAU, drb1B));
+  }
 }
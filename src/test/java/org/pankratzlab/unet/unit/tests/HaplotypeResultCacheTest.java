@@ -0,0 +1,57 @@
+package org.pankratzlab.unet.unit.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.hapstats.Haplotype;
+import org.pankratzlab.unet.hapstats.RaceGroup;
+import org.pankratzlab.unet.model.HaplotypeResultCache;
+import org.pankratzlab.unet.model.Strand;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimap;
+
+public class HaplotypeResultCacheTest {
+
+  private static final List<Multimap<Strand, HLAType>> bcTypes =
+      ImmutableList.of(ImmutableListMultimap.of(Strand.FIRST, HLAType.valueOf("B*07:02"), Strand.SECOND, HLAType.valueOf("B*08:01")),
+          ImmutableListMultimap.of(Strand.FIRST, HLAType.valueOf("C*07:02"), Strand.SECOND, HLAType.valueOf("C*07:01")));
+  private static final List<Multimap<Strand, HLAType>> otherBcTypes =
+      ImmutableList.of(ImmutableListMultimap.of(Strand.FIRST, HLAType.valueOf("B*07:02"), Strand.SECOND, HLAType.valueOf("B*44:02")),
+          ImmutableListMultimap.of(Strand.FIRST, HLAType.valueOf("C*07:02"), Strand.SECOND, HLAType.valueOf("C*05:01")));
+  private static final List<Haplotype> pair = ImmutableList.of(new Haplotype(HLAType.valueOf("B*07:02"), HLAType.valueOf("C*07:02")),
+      new Haplotype(HLAType.valueOf("B*08:01"), HLAType.valueOf("C*07:01")));
+  private static final Map<RaceGroup, List<List<Haplotype>>> pairs = ImmutableMap.of(RaceGroup.CAU, ImmutableList.of(pair));
+
+  @TempDir
+  File cacheDir;
+
+  @Test
+  public void HaplotypeResultCache_load() {
+    HaplotypeResultCache cache = new HaplotypeResultCache(cacheDir, 10, 1_000_000);
+    assertFalse(cache.load(bcTypes, 1).isPresent());
+    cache.store(bcTypes, 1, pairs);
+    assertEquals(pairs, cache.load(bcTypes, 1).get());
+    // results depend on the number of ranked pairs
+    assertFalse(cache.load(bcTypes, 3).isPresent());
+    cache.clear();
+    assertFalse(cache.load(bcTypes, 1).isPresent());
+  }
+
+  @Test
+  public void HaplotypeResultCache_evict() {
+    HaplotypeResultCache cache = new HaplotypeResultCache(cacheDir, 1, 1_000_000);
+    cache.store(bcTypes, 1, pairs);
+    cache.store(otherBcTypes, 1, pairs);
+    // only the most recently stored result fits
+    assertFalse(cache.load(bcTypes, 1).isPresent());
+    assertTrue(cache.load(otherBcTypes, 1).isPresent());
+  }
+}
@@ -0,0 +1,106 @@
+package org.pankratzlab.unet.unit.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.pankratzlab.unet.deprecated.hla.DonorCheckProperties;
+import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
+
+/**
+ * Frequency tables written to a temporary directory for each test. Tables loaded through the
+ * fixture are unloaded after the test. Table snapshots and haplotype search results are kept in the
+ * same directory, rather than the user's. Register with
+ * {@link org.junit.jupiter.api.extension.RegisterExtension}.
+ */
+public class HaplotypeTableFixture implements BeforeEachCallback, AfterEachCallback {
+
+  /** Header of a B-C table, with frequencies in CAU, AFA, API, HIS and NAM order */
+  public static final String BC_HEADER = "C,B,CAU_freq,AFA_freq,API_freq,HIS_freq,NAM_freq";
+
+  private static final List<String> DIRECTORY_PROPERTIES =
+      Arrays.asList(DonorCheckProperties.FREQUENCY_SNAPSHOT_DIRECTORY, DonorCheckProperties.HAPLOTYPE_CACHE_DIRECTORY);
+
+  private File directory;
+  private boolean loaded;
+  private final Map<String, String> replacedProperties = new HashMap<>();
+
+  @Override
+  public void beforeEach(ExtensionContext context) throws IOException {
+    directory = Files.createTempDirectory("haplotype-tables").toFile();
+    loaded = false;
+    Properties props = DonorCheckProperties.get();
+    for (String key : DIRECTORY_PROPERTIES) {
+      replacedProperties.put(key, props.getProperty(key));
+      props.setProperty(key, new File(directory, key.toLowerCase()).getPath());
+    }
+  }
+
+  @Override
+  public void afterEach(ExtensionContext context) throws IOException {
+    if (loaded) {
+      HaplotypeFrequencies.doInitialization();
+    }
+    Properties props = DonorCheckProperties.get();
+    replacedProperties.forEach((key, value) -> {
+      if (value == null) {
+        props.remove(key);
+      } else {
+        props.setProperty(key, value);
+      }
+    });
+    replacedProperties.clear();
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /** @return The directory of this test's tables */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @param name File name of the table
+   * @param lines Header and rows of the table
+   * @return The written table
+   */
+  public File write(String name, List<String> lines) throws IOException {
+    File table = new File(directory, name);
+    Files.write(table.toPath(), lines);
+    return table;
+  }
+
+  /**
+   * Write a B-C table and load it as the only frequency table
+   *
+   * @param rows C allele, B allele and frequencies of each row, see {@link #BC_HEADER}
+   * @return The written table
+   */
+  public File loadBC(List<String> rows) throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add(BC_HEADER);
+    lines.addAll(rows);
+    File bc = write("bc.csv", lines);
+    load(bc, null);
+    return bc;
+  }
+
+  /**
+   * Load the given tables, to be unloaded after the test
+   *
+   * @param bc B-C table, or null
+   * @param drdq DRB3/4/5-DRB1-DQB1 table, or null
+   */
+  public void load(File bc, File drdq) {
+    loaded = true;
+    HaplotypeFrequencies.doInitialization(bc == null ? null : bc.getPath(), drdq == null ? null : drdq.getPath());
+  }
+}
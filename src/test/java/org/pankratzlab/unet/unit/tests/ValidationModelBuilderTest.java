@@ -0,0 +1,325 @@
+package org.pankratzlab.unet.unit.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.pankratzlab.unet.deprecated.hla.DonorCheckProperties;
+import org.pankratzlab.unet.deprecated.hla.HLALocus;
+import org.pankratzlab.unet.deprecated.hla.HLAType;
+import org.pankratzlab.unet.deprecated.hla.SourceType;
+import org.pankratzlab.unet.hapstats.CommonWellDocumented;
+import org.pankratzlab.unet.hapstats.Haplotype;
+import org.pankratzlab.unet.hapstats.HaplotypeFrequencies;
+import org.pankratzlab.unet.hapstats.RaceGroup;
+import org.pankratzlab.unet.model.RankedHaplotypePair;
+import org.pankratzlab.unet.model.Strand;
+import org.pankratzlab.unet.model.ValidationModel;
+import org.pankratzlab.unet.model.ValidationModelBuilder;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimap;
+
+public class ValidationModelBuilderTest {
+
+  private static final Multimap<Strand, HLAType> bruteForceB = ImmutableListMultimap.of(Strand.FIRST, HLAType.valueOf("B*44:02"), Strand.FIRST,
+      HLAType.valueOf("B*08:01"), Strand.SECOND, HLAType.valueOf("B*57:01"), Strand.SECOND, HLAType.valueOf("B*07:02"));
+  private static final Multimap<Strand, HLAType> bruteForceC = ImmutableListMultimap.of(Strand.FIRST, HLAType.valueOf("C*07:01"), Strand.FIRST,
+      HLAType.valueOf("C*05:01"), Strand.SECOND, HLAType.valueOf("C*07:02"), Strand.SECOND, HLAType.valueOf("C*04:01"));
+
+  @RegisterExtension
+  final HaplotypeTableFixture tables = new HaplotypeTableFixture();
+
+  @BeforeEach
+  public void loadCWD() {
+    CommonWellDocumented.loadCIWD300();
+  }
+
+  @Test
+  public void ValidationModelBuilder_bw4Bw6RankedPairs() throws IOException {
+    // Frequencies in CAU, AFA, API, HIS and NAM order. The Bw4/Bw6 alignment has both the pair with
+    // the best AFA frequencies and a pair with far better CAU frequencies than the Bw6/Bw4 alignment
+    tables.loadBC(Arrays.asList("C*05:01,B*44:02,0.001,0.05,0,0,0", "C*07:02,B*07:02,0.001,0.05,0,0,0", "C*07:02,B*44:02,0.09,0.01,0,0,0",
+        "C*07:01,B*07:02,0.09,0.01,0,0,0", "C*07:01,B*08:01,0.02,0.03,0,0,0", "C*07:02,B*57:01,0.02,0.03,0,0,0"));
+
+    ValidationModel model = new ValidationModelBuilder().donorId("bw4bw6").sourceType(SourceType.values()[0]).a("1").a("2").b("44").b("7")
+        .c("5").c("7").drb("1").drb("4").dqbSerotype("5").dqaSerotype("1").dpaSerotype("1").dpb("01:01").bw4(true).bw6(true)
+        .bHaplotype(ImmutableListMultimap.of(Strand.FIRST, HLAType.valueOf("B*44:02"), Strand.FIRST, HLAType.valueOf("B*08:01"), Strand.SECOND,
+            HLAType.valueOf("B*57:01"), Strand.SECOND, HLAType.valueOf("B*07:02")))
+        .cHaplotype(ImmutableListMultimap.of(Strand.FIRST, HLAType.valueOf("C*07:01"), Strand.FIRST, HLAType.valueOf("C*05:01"), Strand.SECOND,
+            HLAType.valueOf("C*07:02")))
+        .build();
+
+    for (RaceGroup ethnicity : RaceGroup.values()) {
+      List<RankedHaplotypePair> ranked = model.getBCRankedPairs().get(ethnicity);
+      assertFalse(ranked.isEmpty());
+      // the first ranked pair is the reported one, and the rest follow by the ethnicity's own score
+      assertEquals(ImmutableSet.copyOf(model.getBCHaplotypes().get(ethnicity)), ImmutableSet.copyOf(ranked.get(0).getHaplotypes()));
+      double gap = 0;
+      for (RankedHaplotypePair pair : ranked.subList(1, ranked.size())) {
+        assertEquals(ethnicity, pair.getScoredBy());
+        assertTrue(pair.getScoreGap() >= gap);
+        gap = pair.getScoreGap();
+      }
+      assertEquals(0, ranked.stream().mapToDouble(RankedHaplotypePair::getScoreGap).min().getAsDouble(), 0);
+    }
+  }
+
+  @Test
+  public void ValidationModelBuilder_searchMatchesBruteForce() throws IOException, InterruptedException {
+    Map<ImmutableSet<Haplotype>, double[]> allPairs = loadBruteForceTable();
+
+    Properties props = DonorCheckProperties.get();
+    String threads = props.getProperty(DonorCheckProperties.HAPLOTYPE_SEARCH_THREADS);
+    String pairCount = props.getProperty(DonorCheckProperties.HAPLOTYPE_PAIR_COUNT);
+    String cacheEntries = props.getProperty(DonorCheckProperties.HAPLOTYPE_CACHE_ENTRIES);
+    try {
+      props.setProperty(DonorCheckProperties.HAPLOTYPE_PAIR_COUNT, "5");
+      // every build searches, rather than reusing the result of the previous one
+      props.setProperty(DonorCheckProperties.HAPLOTYPE_CACHE_ENTRIES, "0");
+      List<String> builtPairs = new ArrayList<>();
+      for (String parallelism : Arrays.asList("1", "4")) {
+        props.setProperty(DonorCheckProperties.HAPLOTYPE_SEARCH_THREADS, parallelism);
+        assertBestPairs(allPairs, searchBruteForceTypes(), true);
+
+        ValidationModel model = typedBuilder().bHaplotype(bruteForceB).cHaplotype(bruteForceC).build();
+        List<String> messages = model.getHaplotypeAuditMessages();
+        assertTrue(messages.stream().anyMatch(m -> m.startsWith("B-C haplotypes: exact search")), messages.toString());
+        assertTrue(messages.stream().noneMatch(m -> m.contains("reused")), messages.toString());
+        builtPairs.add(model.getBCRankedPairs().toString());
+      }
+      // the parallel search finds the same pairs, in the same order, as the serial one
+      assertEquals(builtPairs.get(0), builtPairs.get(1));
+    } finally {
+      restoreProperty(props, DonorCheckProperties.HAPLOTYPE_SEARCH_THREADS, threads);
+      restoreProperty(props, DonorCheckProperties.HAPLOTYPE_PAIR_COUNT, pairCount);
+      restoreProperty(props, DonorCheckProperties.HAPLOTYPE_CACHE_ENTRIES, cacheEntries);
+    }
+  }
+
+  @Test
+  public void ValidationModelBuilder_beamSearch() throws IOException, InterruptedException {
+    Map<ImmutableSet<Haplotype>, double[]> allPairs = loadBruteForceTable();
+
+    Properties props = DonorCheckProperties.get();
+    String exactLimit = props.getProperty(DonorCheckProperties.HAPLOTYPE_EXACT_SEARCH_LIMIT);
+    String beamWidth = props.getProperty(DonorCheckProperties.HAPLOTYPE_BEAM_WIDTH);
+    String pairCount = props.getProperty(DonorCheckProperties.HAPLOTYPE_PAIR_COUNT);
+    try {
+      props.setProperty(DonorCheckProperties.HAPLOTYPE_PAIR_COUNT, "5");
+      props.setProperty(DonorCheckProperties.HAPLOTYPE_EXACT_SEARCH_LIMIT, "1");
+      // a beam wide enough for every partial pair finds the same pairs as the exact search
+      props.setProperty(DonorCheckProperties.HAPLOTYPE_BEAM_WIDTH, "100");
+      assertBestPairs(allPairs, searchBruteForceTypes(), true);
+      // a narrow beam still reports real pairs, with their true scores
+      props.setProperty(DonorCheckProperties.HAPLOTYPE_BEAM_WIDTH, "1");
+      assertBestPairs(allPairs, searchBruteForceTypes(), false);
+    } finally {
+      restoreProperty(props, DonorCheckProperties.HAPLOTYPE_EXACT_SEARCH_LIMIT, exactLimit);
+      restoreProperty(props, DonorCheckProperties.HAPLOTYPE_BEAM_WIDTH, beamWidth);
+      restoreProperty(props, DonorCheckProperties.HAPLOTYPE_PAIR_COUNT, pairCount);
+    }
+  }
+
+  @Test
+  public void ValidationModelBuilder_stopHaplotypeSearch() throws IOException {
+    loadBruteForceTable();
+
+    Properties props = DonorCheckProperties.get();
+    String cacheEntries = props.getProperty(DonorCheckProperties.HAPLOTYPE_CACHE_ENTRIES);
+    try {
+      // A search that finishes before it is stopped would otherwise be reused by the second model
+      props.setProperty(DonorCheckProperties.HAPLOTYPE_CACHE_ENTRIES, "0");
+
+      // Stopped during the search, the best pair found so far is kept
+      AtomicReference<ValidationModel> stopping = new AtomicReference<>();
+      ValidationModel model = typedBuilder().bHaplotype(bruteForceB).cHaplotype(bruteForceC).build(-1, TimeUnit.SECONDS, (bc, drdq) -> {
+        if (!bc.isEmpty()) {
+          stopping.get().stopHaplotypeSearch();
+        }
+      });
+      stopping.set(model);
+      model.prefetchHaplotypes();
+      assertFalse(model.getBCHaplotypes().isEmpty());
+
+      // Stopped before the search, it finds nothing, and the interrupt does not reach the caller
+      model = typedBuilder().bHaplotype(bruteForceB).cHaplotype(bruteForceC).build();
+      model.stopHaplotypeSearch();
+      assertTrue(model.getBCHaplotypes().isEmpty());
+      assertFalse(model.getHaplotypeSearchStats().isOptimal());
+      assertFalse(Thread.currentThread().isInterrupted());
+    } finally {
+      restoreProperty(props, DonorCheckProperties.HAPLOTYPE_CACHE_ENTRIES, cacheEntries);
+    }
+  }
+
+  @Test
+  public void ValidationModelBuilder_marginalSearchNotReused() throws IOException, InterruptedException {
+    String freqColumns = "CAU_freq,AFA_freq,API_freq,HIS_freq,NAM_freq";
+    File drdq = tables.write("drdq.csv", Arrays.asList("DRB3-4-5,DRB1,DQB1," + freqColumns, "DRB3*01:01,DRB1*03:01,DQB1*02:01,0.1,0.2,0.3,0.4,0.5",
+        "DRB4*01:01,DRB1*04:01,DQB1*03:02,0.05,0.1,0.15,0.2,0.25"));
+    tables.load(null, drdq);
+    // DRB1 alleles with DRB3/4, so no DRB3/4/5 candidates are added
+    Multimap<Strand, HLAType> drb1 = ImmutableListMultimap.of(Strand.FIRST, HLAType.valueOf("DRB1*03:01"), Strand.SECOND, HLAType.valueOf("DRB1*04:01"));
+    Multimap<Strand, HLAType> dqb1 = ImmutableListMultimap.of(Strand.FIRST, HLAType.valueOf("DQB1*02:01"), Strand.SECOND, HLAType.valueOf("DQB1*03:02"));
+
+    // With marginal frequencies, the DRB1-DQB1 haplotypes are known
+    ListMultimap<RaceGroup, RankedHaplotypePair> marginal =
+        new ValidationModelBuilder().drHaplotype(drb1).dqHaplotype(dqb1).searchHaplotypes(ImmutableList.of(HLALocus.DRB1, HLALocus.DQB1));
+    // A build of the same candidates searches again, with exact frequencies, where they are not
+    ValidationModel model = typedBuilder().drHaplotype(drb1).dqHaplotype(dqb1).build();
+    assertTrue(model.getHaplotypeAuditMessages().stream().anyMatch(m -> m.contains("exact search")), model.getHaplotypeAuditMessages().toString());
+    assertTrue(model.getHaplotypeAuditMessages().stream().noneMatch(m -> m.contains("reused")), model.getHaplotypeAuditMessages().toString());
+    for (RaceGroup ethnicity : RaceGroup.values()) {
+      RankedHaplotypePair best = model.getDRDQRankedPairs().get(ethnicity).get(0);
+      for (Haplotype haplotype : best.getHaplotypes()) {
+        assertEquals(BigDecimal.ZERO, HaplotypeFrequencies.getFrequency(ethnicity, haplotype));
+      }
+      assertTrue(best.getScore() < marginal.get(ethnicity).get(0).getScore());
+    }
+  }
+
+  @Test
+  public void ValidationModelBuilder_reusedSearch() throws IOException {
+    loadBruteForceTable();
+    ValidationModelBuilder builder = typedBuilder().bHaplotype(bruteForceB).cHaplotype(bruteForceC);
+    ValidationModel searched = builder.build();
+    assertTrue(searched.getHaplotypeSearchStats().getNodesExplored() > 0);
+
+    // A second build of the same builder reports the same pairs, without the first search's
+    // messages and stats
+    ValidationModel reused = builder.build();
+    assertEquals(searched.getBCRankedPairs().toString(), reused.getBCRankedPairs().toString());
+    List<String> messages = reused.getHaplotypeAuditMessages();
+    assertTrue(messages.contains("B-C haplotypes: reused the result of the previous exact search."), messages.toString());
+    assertTrue(messages.stream().noneMatch(m -> m.contains("exact search of")), messages.toString());
+    assertEquals(0, reused.getHaplotypeSearchStats().getNodesExplored());
+    assertTrue(reused.getHaplotypeSearchStats().isOptimal());
+  }
+
+  /** @return A builder with the typing every model needs */
+  private static ValidationModelBuilder typedBuilder() {
+    return new ValidationModelBuilder().donorId("test").sourceType(SourceType.values()[0]).a("1").a("2").b("44").b("7").c("5").c("7").drb("1")
+        .drb("4").dqbSerotype("5").dqaSerotype("1").dpaSerotype("1").dpb("01:01").bw4(true).bw6(true);
+  }
+
+  /** @return Every pair of haplotypes {@link #bruteForceB} and {@link #bruteForceC} allow, with its scores */
+  private Map<ImmutableSet<Haplotype>, double[]> loadBruteForceTable() throws IOException {
+    tables.loadBC(Arrays.asList("C*07:01,B*08:01,0.08,0.02,0.01,0.03,0.04", "C*07:02,B*07:02,0.06,0.03,0.02,0.01,0",
+        "C*05:01,B*44:02,0.03,0.001,0,0.02,0.01", "C*04:01,B*57:01,0.01,0.04,0.002,0,0.03", "C*07:02,B*57:01,0.02,0.01,0.03,0.01,0",
+        "C*07:01,B*07:02,0.001,0,0.01,0.005,0.02", "C*04:01,B*44:02,0,0.02,0.04,0.01,0"));
+
+    Map<ImmutableSet<Haplotype>, double[]> allPairs = new HashMap<>();
+    for (HLAType b1 : bruteForceB.get(Strand.FIRST)) {
+      for (HLAType b2 : bruteForceB.get(Strand.SECOND)) {
+        for (HLAType c1 : bruteForceC.get(Strand.FIRST)) {
+          for (HLAType c2 : bruteForceC.get(Strand.SECOND)) {
+            for (ImmutableSet<Haplotype> pair : Arrays.asList(ImmutableSet.of(new Haplotype(b1, c1), new Haplotype(b2, c2)),
+                ImmutableSet.of(new Haplotype(b1, c2), new Haplotype(b2, c1)))) {
+              allPairs.put(pair, bruteForceScores(pair));
+            }
+          }
+        }
+      }
+    }
+    return allPairs;
+  }
+
+  private static ListMultimap<RaceGroup, RankedHaplotypePair> searchBruteForceTypes() throws InterruptedException {
+    return new ValidationModelBuilder().bHaplotype(bruteForceB).cHaplotype(bruteForceC).searchHaplotypes(ImmutableList.of(HLALocus.B, HLALocus.C));
+  }
+
+  /**
+   * @param allPairs Every possible pair, with its scores
+   * @param ranked Search results
+   * @param best Whether the results must be the best possible pairs
+   */
+  private static void assertBestPairs(Map<ImmutableSet<Haplotype>, double[]> allPairs, ListMultimap<RaceGroup, RankedHaplotypePair> ranked,
+      boolean best) {
+    // The pair reported for every ethnicity is the best by AFA score
+    double bestReportedScore = allPairs.values().stream().mapToDouble(scores -> scores[RaceGroup.AFA.ordinal()]).max().getAsDouble();
+    for (RaceGroup ethnicity : RaceGroup.values()) {
+      List<RankedHaplotypePair> pairs = ranked.get(ethnicity);
+      assertEquals(best ? 5 : pairs.size(), pairs.size());
+      assertFalse(pairs.isEmpty());
+      ImmutableSet<Haplotype> reported = ImmutableSet.copyOf(pairs.get(0).getHaplotypes());
+      assertNotNull(allPairs.get(reported), reported.toString());
+      if (best) {
+        assertEquals(bestReportedScore, allPairs.get(reported)[RaceGroup.AFA.ordinal()], 1e-9);
+      }
+      // The others are the best of the remaining pairs by the ethnicity's own score
+      List<Double> bestScores = new ArrayList<>();
+      allPairs.forEach((pair, scores) -> {
+        if (!pair.equals(reported)) {
+          bestScores.add(scores[ethnicity.ordinal()]);
+        }
+      });
+      bestScores.sort(Comparator.reverseOrder());
+
+      for (int i = 0; i < pairs.size(); i++) {
+        RankedHaplotypePair pair = pairs.get(i);
+        double[] scores = allPairs.get(ImmutableSet.copyOf(pair.getHaplotypes()));
+        assertNotNull(scores, pair.toString());
+        assertEquals(ethnicity, pair.getScoredBy());
+        assertEquals(scores[ethnicity.ordinal()], pair.getScore(), 1e-9);
+        if (i == 0) {
+          continue;
+        }
+        if (best) {
+          assertEquals(bestScores.get(i - 1), pair.getScore(), 1e-9);
+        } else {
+          assertTrue(pair.getScore() <= bestScores.get(i - 1) + 1e-9);
+        }
+      }
+    }
+  }
+
+  /** @return The score of each ethnicity for the pair, as in the haplotype search */
+  private static double[] bruteForceScores(ImmutableSet<Haplotype> pair) {
+    double cwdWeight = 0;
+    for (Haplotype haplotype : pair) {
+      for (HLAType allele : haplotype.getTypes()) {
+        cwdWeight += CommonWellDocumented.getEquivStatus(allele).getWeight();
+      }
+    }
+    double[] scores = new double[RaceGroup.values().length];
+    for (RaceGroup ethnicity : RaceGroup.values()) {
+      double frequency = 1.0;
+      int found = 0;
+      for (Haplotype haplotype : pair) {
+        double f = HaplotypeFrequencies.getFrequency(ethnicity, haplotype).doubleValue();
+        if (f > 0) {
+          frequency *= f;
+          found++;
+        }
+      }
+      scores[ethnicity.ordinal()] = cwdWeight + 10 * found + frequency;
+    }
+    return scores;
+  }
+
+  private static void restoreProperty(Properties props, String key, String value) {
+    if (value == null) {
+      props.remove(key);
+    } else {
+      props.setProperty(key, value);
+    }
+  }
+}